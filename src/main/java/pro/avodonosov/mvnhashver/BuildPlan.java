@@ -0,0 +1,361 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.project.MavenProject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Scheduling of a set of modules to build, using their estimated
+ * build durations: recorded durations of previous builds, or for the
+ * modules without a record, the average recorded duration of the set
+ * (1 if nothing is recorded, i.e. all the modules are equal).
+ * Every duration is at least 1.
+ *
+ * <p>For every module we compute its tail - the longest duration
+ * of a dependency path from the module start to the end of the build,
+ * and order the modules by it: the modules on the critical path
+ * should start first. A module is never ordered before its upstream
+ * modules.
+ */
+class BuildPlan {
+
+    // Build this fraction longer than the critical path
+    // is fine for the recommended thread count.
+    static final double THREADS_TOLERANCE = 0.1;
+
+    // In the dependency order
+    final List<MavenProject> projects;
+    final Map<MavenProject, Long> durations = new HashMap<>();
+    final Map<MavenProject, Long> tails = new HashMap<>();
+
+    // The upstream and downstream projects within the set
+    private final Map<MavenProject, List<MavenProject>> upstream =
+            new HashMap<>();
+    private final Map<MavenProject, List<MavenProject>> downstream =
+            new HashMap<>();
+
+    private final Map<MavenProject, Integer> index = new HashMap<>();
+
+    // Higher tail first, the dependency order for equal tails
+    private final Comparator<MavenProject> priority;
+
+    /**
+     * @param recordedDurations artifactId -> milliseconds
+     */
+    BuildPlan(ProjectDependencyGraph graph,
+              Collection<MavenProject> toBuild,
+              Map<String, Long> recordedDurations)
+    {
+        Set<MavenProject> set = new HashSet<>(toBuild);
+        projects = new ArrayList<>();
+        for (MavenProject prj : graph.getSortedProjects()) {
+            if (set.contains(prj)) {
+                index.put(prj, projects.size());
+                projects.add(prj);
+                upstream.put(prj, new ArrayList<>());
+                downstream.put(prj, new ArrayList<>());
+            }
+        }
+        // Transitive, because in the minimal build plan the modules
+        // may depend on each other through a module not being built.
+        for (MavenProject prj : projects) {
+            for (MavenProject up : graph.getUpstreamProjects(prj, true)) {
+                if (set.contains(up)) {
+                    upstream.get(prj).add(up);
+                    downstream.get(up).add(prj);
+                }
+            }
+        }
+
+        // The recorded durations are clamped to 1, as a module built
+        // in 0 milliseconds (or a hand edited record) would make
+        // the critical path 0.
+        Map<MavenProject, Long> recorded = new HashMap<>();
+        long knownSum = 0;
+        for (MavenProject prj : projects) {
+            Long d = recordedDurations.get(prj.getArtifactId());
+            if (d != null) {
+                recorded.put(prj, Math.max(1, d));
+                knownSum += Math.max(1, d);
+            }
+        }
+        long defaultDuration = recorded.isEmpty()
+                ? 1
+                : Math.max(1, knownSum / recorded.size());
+        for (MavenProject prj : projects) {
+            durations.put(prj, recorded.getOrDefault(prj, defaultDuration));
+        }
+
+        for (int i = projects.size() - 1; i >= 0; i--) {
+            MavenProject prj = projects.get(i);
+            long maxDownstreamTail = 0;
+            for (MavenProject down : downstream.get(prj)) {
+                maxDownstreamTail = Math.max(maxDownstreamTail,
+                                             tails.get(down));
+            }
+            tails.put(prj, durations.get(prj) + maxDownstreamTail);
+        }
+
+        priority = Comparator.<MavenProject>comparingLong(p -> -tails.get(p))
+                .thenComparingInt(index::get);
+    }
+
+    long criticalPath() {
+        return tails.values().stream().mapToLong(Long::longValue)
+                .max().orElse(0);
+    }
+
+    long totalDuration() {
+        return durations.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * The modules in the order to start their builds: by the tail,
+     * after all their upstream modules.
+     */
+    List<MavenProject> order() {
+        Map<MavenProject, Integer> pending = pendingUpstreamCounts();
+        PriorityQueue<MavenProject> ready = new PriorityQueue<>(priority);
+        for (MavenProject prj : projects) {
+            if (pending.get(prj) == 0) {
+                ready.add(prj);
+            }
+        }
+        List<MavenProject> result = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            MavenProject prj = ready.poll();
+            result.add(prj);
+            release(prj, pending, ready);
+        }
+        return result;
+    }
+
+    private Map<MavenProject, Integer> pendingUpstreamCounts() {
+        Map<MavenProject, Integer> result = new HashMap<>();
+        for (MavenProject prj : projects) {
+            result.put(prj, upstream.get(prj).size());
+        }
+        return result;
+    }
+
+    private void release(MavenProject finished,
+                         Map<MavenProject, Integer> pending,
+                         Collection<MavenProject> ready)
+    {
+        for (MavenProject down : downstream.get(finished)) {
+            int count = pending.merge(down, -1, Integer::sum);
+            if (count == 0) {
+                ready.add(down);
+            }
+        }
+    }
+
+    /**
+     * The estimated build duration with the given number of threads,
+     * if the ready modules are started in the priority order.
+     */
+    long makespan(int threads) {
+        Map<MavenProject, Integer> pending = pendingUpstreamCounts();
+        PriorityQueue<MavenProject> ready = new PriorityQueue<>(priority);
+        for (MavenProject prj : projects) {
+            if (pending.get(prj) == 0) {
+                ready.add(prj);
+            }
+        }
+        Map<MavenProject, Long> finishTimes = new HashMap<>();
+        PriorityQueue<MavenProject> running = new PriorityQueue<>(
+                Comparator.comparingLong(finishTimes::get));
+        long time = 0;
+        while (!ready.isEmpty() || !running.isEmpty()) {
+            while (running.size() < threads && !ready.isEmpty()) {
+                MavenProject prj = ready.poll();
+                finishTimes.put(prj, time + durations.get(prj));
+                running.add(prj);
+            }
+            MavenProject finished = running.poll();
+            time = finishTimes.get(finished);
+            release(finished, pending, ready);
+        }
+        return time;
+    }
+
+    /**
+     * The least number of threads building not more than
+     * {@link #THREADS_TOLERANCE} longer than the critical path.
+     */
+    int recommendedThreads() {
+        if (projects.isEmpty()) {
+            return 1;
+        }
+        long criticalPath = criticalPath();
+        long acceptable = criticalPath + (long) (criticalPath * THREADS_TOLERANCE);
+        // Fewer threads can not build faster than this
+        int threads = (int) Math.max(1, totalDuration() / acceptable);
+        while (threads < projects.size() && makespan(threads) > acceptable) {
+            threads++;
+        }
+        return threads;
+    }
+
+    /**
+     * Splits the modules into at most the specified number of shards
+     * per wave, to be built on different machines. The shards of
+     * a wave are built independently, after all the earlier waves
+     * are built and their artifacts published: a shard may fetch
+     * the modules of the earlier waves from the repository.
+     *
+     * <p>The modules depending on each other (directly or through
+     * other modules) form a group, and a group not longer than the
+     * total duration divided by the count goes to the first wave
+     * as a whole, so usually there is one wave. A longer group would
+     * make its shard take most of the build alone, so unless it is
+     * a chain of modules it is split
+     * by the dependency levels: the modules of level L (the longest
+     * chain of upstream modules within the group) go to the wave L
+     * and are distributed individually.
+     *
+     * <p>In every wave, the longest group or module goes first to the
+     * least loaded shard. Shards with nothing to build are omitted.
+     *
+     * @return the waves of non-empty shards, every shard
+     *         in the dependency order
+     */
+    List<List<List<MavenProject>>> shards(int count) {
+        // Union-find of the connected modules
+        Map<MavenProject, MavenProject> parents = new HashMap<>();
+        for (MavenProject prj : projects) {
+            parents.put(prj, prj);
+        }
+        for (MavenProject prj : projects) {
+            for (MavenProject up : upstream.get(prj)) {
+                parents.put(root(parents, prj), root(parents, up));
+            }
+        }
+        // group root -> modules, in the order of the first module
+        Map<MavenProject, List<MavenProject>> groups = new LinkedHashMap<>();
+        for (MavenProject prj : projects) {
+            groups.computeIfAbsent(root(parents, prj), r -> new ArrayList<>())
+                    .add(prj);
+        }
+
+        // Levels of the modules, in the dependency order
+        Map<MavenProject, Integer> levels = new HashMap<>();
+        for (MavenProject prj : projects) {
+            int level = 0;
+            for (MavenProject up : upstream.get(prj)) {
+                level = Math.max(level, levels.get(up) + 1);
+            }
+            levels.put(prj, level);
+        }
+
+        // The units distributed to the shards of every wave
+        long shardLoad = totalDuration() / count;
+        List<List<List<MavenProject>>> waveUnits = new ArrayList<>();
+        for (List<MavenProject> group : groups.values()) {
+            // A chain of modules can not be built faster split
+            long groupCriticalPath = group.stream().mapToLong(tails::get)
+                    .max().orElse(0);
+            if (duration(group) <= shardLoad
+                    || groupCriticalPath == duration(group))
+            {
+                wave(waveUnits, 0).add(group);
+            } else {
+                for (MavenProject prj : group) {
+                    wave(waveUnits, levels.get(prj))
+                            .add(Collections.singletonList(prj));
+                }
+            }
+        }
+
+        List<List<List<MavenProject>>> waves = new ArrayList<>();
+        for (List<List<MavenProject>> units : waveUnits) {
+            waves.add(distribute(units, count));
+        }
+        return waves;
+    }
+
+    private static <T> List<T> wave(List<List<T>> waves, int level) {
+        while (waves.size() <= level) {
+            waves.add(new ArrayList<>());
+        }
+        return waves.get(level);
+    }
+
+    private List<List<MavenProject>> distribute(
+            List<List<MavenProject>> units,
+            int count)
+    {
+        List<List<MavenProject>> sortedUnits = new ArrayList<>(units);
+        // Stable sort, so equal units keep the dependency order
+        sortedUnits.sort(Comparator.comparingLong(u -> -duration(u)));
+
+        List<List<MavenProject>> shards = new ArrayList<>();
+        long[] loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (List<MavenProject> unit : sortedUnits) {
+            int least = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[least]) {
+                    least = i;
+                }
+            }
+            shards.get(least).addAll(unit);
+            loads[least] += duration(unit);
+        }
+        List<List<MavenProject>> result = new ArrayList<>();
+        for (List<MavenProject> shard : shards) {
+            if (!shard.isEmpty()) {
+                shard.sort(Comparator.comparingInt(index::get));
+                result.add(shard);
+            }
+        }
+        return result;
+    }
+
+    long duration(Collection<MavenProject> modules) {
+        return modules.stream().mapToLong(durations::get).sum();
+    }
+
+    private static MavenProject root(Map<MavenProject, MavenProject> parents,
+                                     MavenProject prj)
+    {
+        while (parents.get(prj) != prj) {
+            MavenProject grandParent = parents.get(parents.get(prj));
+            parents.put(prj, grandParent);
+            prj = grandParent;
+        }
+        return prj;
+    }
+}
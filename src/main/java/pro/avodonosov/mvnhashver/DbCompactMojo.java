@@ -0,0 +1,63 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+
+import static pro.avodonosov.mvnhashver.Logging.LOG_PREFIX;
+
+/**
+ * <p>Converts the database of the "projects-to-build" mojo to the compact
+ * format (see {@link HashVerDb}), or compacts an already converted one:
+ * the entries of the file-per-hashversion layout and of the db log
+ * are merged into the sorted index file.
+ *
+ * <pre>
+ *     mvn hashver:db-compact -DdbDir=/shared/hashver-db
+ * </pre>
+ */
+@Mojo(name = "db-compact", requiresProject = false)
+public class DbCompactMojo extends AbstractMojo {
+
+    @Parameter(property = "dbDir", required = true)
+    File dbDir;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (!dbDir.isDirectory()) {
+            throw new MojoExecutionException(
+                    "Directory does not exist: " + dbDir.getAbsolutePath());
+        }
+        try {
+            long count = HashVerDb.compact(dbDir);
+            getLog().info(LOG_PREFIX + "The db " + dbDir.getAbsolutePath()
+                                  + " is compacted, " + count + " entries");
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error compacting db " + dbDir.getAbsolutePath(), e);
+        }
+    }
+}
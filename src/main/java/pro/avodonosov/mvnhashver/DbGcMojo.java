@@ -0,0 +1,163 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static pro.avodonosov.mvnhashver.Logging.LOG_PREFIX;
+
+/**
+ * <p>Removes old entries from the database of the "projects-to-build"
+ * mojo, and compacts it (see {@link HashVerDb}); a database in the
+ * file-per-hashversion format is converted to the compact format.
+ *
+ * <pre>
+ *     mvn hashver:db-gc -DdbDir=/shared/hashver-db \
+ *         -DdbGcKeepLast=20 -DdbGcMaxAgeDays=90 \
+ *         -DdbGcPinned=release/hashversions.properties \
+ *         -DdbGcDryRun
+ * </pre>
+ */
+@Mojo(name = "db-gc", requiresProject = false)
+public class DbGcMojo extends AbstractMojo {
+
+    @Parameter(property = "dbDir", required = true)
+    File dbDir;
+
+    /**
+     * How many latest hashversions of every artifact to keep.
+     * 0 - no limit.
+     */
+    @Parameter(property = "dbGcKeepLast", defaultValue = "0")
+    int keepLast;
+
+    /**
+     * Entries older than this number of days are removed.
+     * 0 - no limit.
+     */
+    @Parameter(property = "dbGcMaxAgeDays", defaultValue = "0")
+    int maxAgeDays;
+
+    /**
+     * Comma separated hashversions.properties files. The hashversions
+     * they list are kept regardless of the other settings.
+     */
+    @Parameter(property = "dbGcPinned")
+    String pinned;
+
+    /**
+     * Only report what would be removed.
+     */
+    @Parameter(property = "dbGcDryRun", defaultValue = "false")
+    boolean dryRun;
+
+    /**
+     * If specified, the removed entries are saved to this file.
+     */
+    @Parameter(property = "dbGcReport")
+    String reportFile;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (!dbDir.isDirectory()) {
+            throw new MojoExecutionException(
+                    "Directory does not exist: " + dbDir.getAbsolutePath());
+        }
+        if (keepLast < 0 || maxAgeDays < 0) {
+            throw new MojoExecutionException(
+                    "dbGcKeepLast and dbGcMaxAgeDays can not be negative");
+        }
+
+        long minTimestamp = maxAgeDays == 0
+                ? Long.MIN_VALUE
+                : System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays);
+        HashVerDb.GcReport report;
+        try {
+            HashVerDb.GcPolicy policy = new HashVerDb.GcPolicy(
+                    keepLast, minTimestamp, pinnedHashVers(pinned));
+            if (reportFile == null) {
+                report = HashVerDb.gc(dbDir, policy, dryRun, entry -> {});
+            } else {
+                File f = new File(reportFile);
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(f), UTF_8)))
+                {
+                    report = HashVerDb.gc(dbDir, policy, dryRun, entry -> {
+                        out.write(entry.line());
+                        out.write('\n');
+                    });
+                }
+                getLog().info(LOG_PREFIX + "The removed entries are saved to "
+                                      + f.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error collecting garbage in db " + dbDir.getAbsolutePath(),
+                    e);
+        }
+
+        for (Map.Entry<String, Long> e : report.removedPerArtifact.entrySet()) {
+            getLog().info(LOG_PREFIX + e.getKey() + ": "
+                                  + (dryRun ? "would remove " : "removed ")
+                                  + e.getValue());
+        }
+        getLog().info(LOG_PREFIX + (dryRun ? "Would remove " : "Removed ")
+                              + report.removed + " entries, kept "
+                              + report.kept);
+    }
+
+    static Set<String> pinnedHashVers(String files) throws IOException {
+        Set<String> result = new HashSet<>();
+        if (files == null) {
+            return result;
+        }
+        for (String path : files.split(",")) {
+            if (path.trim().isEmpty()) {
+                continue;
+            }
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(path.trim())) {
+                props.load(in);
+            }
+            for (String name : props.stringPropertyNames()) {
+                result.add(props.getProperty(name));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.artifact.ArtifactUtils;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.graph.DefaultProjectDependencyGraph;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.Profile;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.apache.maven.monitor.logging.DefaultLog;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.DefaultProjectBuildingRequest;
+import org.apache.maven.project.DuplicateProjectException;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectBuilder;
+import org.apache.maven.project.ProjectBuildingException;
+import org.apache.maven.project.ProjectBuildingRequest;
+import org.apache.maven.project.ProjectBuildingResult;
+import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.util.dag.CycleDetectedException;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.repository.WorkspaceReader;
+import org.eclipse.aether.repository.WorkspaceRepository;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static pro.avodonosov.mvnhashver.Logging.LOG_PREFIX;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.Config.isTrue;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.resolveFile;
+
+/**
+ * Computes hashversions in the build extension, before maven reads
+ * the projects, so that the hashver mode does not need a separate
+ * maven invocation of the hashver mojo.
+ *
+ * <p>The module version properties are found by parsing the raw poms
+ * of the module tree. Then the projects are read with a placeholder
+ * value for all these properties, and the hashversions are computed
+ * by the hashver mojo code. Reactor modules are represented in the
+ * dependency trees by their own hashes rather than by their versions,
+ * so the placeholders do not affect the result.
+ *
+ * <p>When maven has read the projects with the computed versions,
+ * {@link #verify(MavenSession)} computes the hashversions again,
+ * from the final project models, and fails the build if they differ.
+ *
+ * <p>The mojo parameters are taken from the system properties
+ * with the same names as the mojo parameter properties.
+ */
+class EarlyHashVers {
+
+    static final String PLACEHOLDER_VERSION = "0-hashver-placeholder";
+
+    private final ProjectBuilder projectBuilder;
+    private final Logger logger;
+    private final HashVerMojo hashVerMojo;
+
+    // Nullable. Present after the compute().
+    private Map<String, String> hashVers;
+
+    EarlyHashVers(ProjectBuilder projectBuilder,
+                  DependencyGraphBuilder dependencyGraphBuilder,
+                  Logger logger,
+                  MavenSession session)
+            throws MavenExecutionException
+    {
+        this.projectBuilder = projectBuilder;
+        this.logger = logger;
+        this.hashVerMojo = hashVerMojo(System.getProperties(),
+                                       dependencyGraphBuilder,
+                                       logger,
+                                       session);
+    }
+
+    /**
+     * @throws MavenExecutionException if a property value is invalid
+     */
+    static HashVerMojo hashVerMojo(Properties props,
+                                   DependencyGraphBuilder dependencyGraphBuilder,
+                                   Logger logger,
+                                   MavenSession session)
+            throws MavenExecutionException
+    {
+        HashVerMojo mojo = new HashVerMojo();
+        mojo.setLog(new DefaultLog(logger));
+        mojo.dependencyGraphBuilder = dependencyGraphBuilder;
+        mojo.includeGroupId = isTrue(props.getProperty("includeGroupId"));
+        String algorithm = props.getProperty("hashAlgorithm");
+        if (algorithm != null) {
+            try {
+                mojo.hashAlgorithm =
+                        HashVerMojo.HashAlgorithm.valueOf(algorithm.trim());
+            } catch (IllegalArgumentException e) {
+                throw new MavenExecutionException(
+                        "Invalid hashAlgorithm value: \"" + algorithm
+                                + "\", expected one of "
+                                + Arrays.toString(
+                                        HashVerMojo.HashAlgorithm.values()),
+                        (Throwable) null);
+            }
+        }
+        mojo.extraHashData = props.getProperty("extraHashData");
+        String threads = props.getProperty("hashverThreads", "0");
+        try {
+            mojo.threads = Integer.parseInt(threads.trim());
+        } catch (NumberFormatException e) {
+            mojo.threads = -1;
+        }
+        if (mojo.threads < 0) {
+            throw new MavenExecutionException(
+                    "Invalid hashverThreads value: \"" + threads
+                            + "\", expected a non-negative integer",
+                    (Throwable) null);
+        }
+        String fileCache = props.getProperty("hashverFileCache");
+        if (fileCache != null) {
+            mojo.fileCache = resolveFile(fileCache, session);
+        }
+        mojo.fileCacheRehash = isTrue(
+                props.getProperty("hashverFileCacheRehash"));
+        mojo.useGitIndex = isTrue(props.getProperty("hashverGitIndex"));
+        mojo.composeReactorHashes = isTrue(
+                props.getProperty("hashverComposeReactor"));
+        mojo.merkle = isTrue(props.getProperty("hashverMerkle"));
+        return mojo;
+    }
+
+    /**
+     * Computes the hashversions, and saves them
+     * to target/hashversions.properties as the hashver mojo does.
+     *
+     * @return property name -> hashversion
+     */
+    Map<String, String> compute(MavenSession session)
+            throws MavenExecutionException
+    {
+        File rootPom = session.getRequest().getPom();
+        if (rootPom == null) {
+            throw new MavenExecutionException(
+                    "No pom.xml to compute hashversions for",
+                    (Throwable) null);
+        }
+
+        Set<String> versionProps;
+        try {
+            versionProps = versionProperties(rootPom,
+                                             hashVerMojo.includeGroupId);
+        } catch (IOException | XmlPullParserException e) {
+            throw new MavenExecutionException(
+                    "Error reading module poms", e);
+        }
+        logInfo("Reading " + versionProps.size()
+                + " modules with placeholder versions to compute hashversions.");
+
+        ProjectBuildingRequest request = new DefaultProjectBuildingRequest(
+                session.getProjectBuildingRequest());
+        Properties sysProps = new Properties();
+        sysProps.putAll(request.getSystemProperties());
+        for (String prop : versionProps) {
+            sysProps.setProperty(prop, PLACEHOLDER_VERSION);
+        }
+        request.setSystemProperties(sysProps);
+
+        List<MavenProject> projects = new ArrayList<>();
+        try {
+            for (ProjectBuildingResult result : projectBuilder.build(
+                    Collections.singletonList(rootPom), true, request))
+            {
+                projects.add(result.getProject());
+            }
+        } catch (ProjectBuildingException e) {
+            throw new MavenExecutionException(
+                    "Error reading projects to compute hashversions", e);
+        }
+
+        // The maven reactor reader is unaware of these projects,
+        // so we resolve the reactor dependency poms ourselves,
+        // otherwise their dependencies would be missing in the trees.
+        // The poms are interpolated with the placeholders too.
+        DefaultRepositorySystemSession repositorySession =
+                new DefaultRepositorySystemSession(
+                        session.getRepositorySession());
+        repositorySession.setWorkspaceReader(new ProjectsWorkspaceReader(
+                projects,
+                session.getRepositorySession().getWorkspaceReader()));
+        repositorySession.setSystemProperties(sysProps);
+        MavenSession projectsSession = projectsSession(
+                new MavenSession(session.getContainer(),
+                                 repositorySession,
+                                 session.getRequest(),
+                                 session.getResult()),
+                projects);
+
+        try {
+            hashVers = hashVerMojo.executeImpl(projectsSession,
+                                               hashVerMojo.includeGroupId,
+                                               hashVerMojo.extraHashData);
+        } catch (MojoExecutionException | MojoFailureException e) {
+            throw new MavenExecutionException(
+                    "Error computing hashversions", e);
+        }
+        return hashVers;
+    }
+
+    /**
+     * Computes the hashversions from the projects read by maven
+     * and fails if they differ from the ones computed
+     * by {@link #compute(MavenSession)}.
+     */
+    void verify(MavenSession session) throws MavenExecutionException {
+        List<MavenProject> projects = session.getAllProjects() != null
+                ? session.getAllProjects()
+                : session.getProjects();
+
+        logInfo("Verifying the hashversions computed before reading"
+                + " the projects.");
+        Map<String, String> actual;
+        try {
+            actual = hashVerMojo.computeHashVers(
+                    projectsSession(session, projects),
+                    hashVerMojo.includeGroupId,
+                    hashVerMojo.extraHashData);
+        } catch (MojoExecutionException e) {
+            throw new MavenExecutionException(
+                    "Error verifying hashversions", e);
+        }
+
+        List<String> mismatches = mismatches(hashVers,
+                                             actual,
+                                             "computed early");
+        if (!mismatches.isEmpty()) {
+            for (String mismatch : mismatches) {
+                logger.error(LOG_PREFIX + mismatch);
+            }
+            throw new MavenExecutionException(
+                    "The hashversions computed before reading the projects"
+                            + " differ from the ones of the projects read"
+                            + " by maven: " + mismatches.size()
+                            + " mismatches.",
+                    (Throwable) null);
+        }
+        logInfo("All " + actual.size() + " hashversions verified.");
+    }
+
+    /**
+     * @param expectedLabel describes the expected values in the messages
+     */
+    static List<String> mismatches(Map<String, String> expected,
+                                   Map<String, String> actual,
+                                   String expectedLabel)
+    {
+        Set<String> keys = new TreeSet<>(expected.keySet());
+        keys.addAll(actual.keySet());
+        List<String> result = new ArrayList<>();
+        for (String key : keys) {
+            String expectedVal = expected.get(key);
+            String actualVal = actual.get(key);
+            if (!Objects.equals(expectedVal, actualVal)) {
+                result.add(key + ": " + expectedLabel + " " + expectedVal
+                                   + ", actual " + actualVal);
+            }
+        }
+        return result;
+    }
+
+    private MavenSession projectsSession(MavenSession session,
+                                         List<MavenProject> projects)
+            throws MavenExecutionException
+    {
+        MavenSession result = session.clone();
+        result.setProjects(projects);
+        if (hashVerMojo.composeReactorHashes) {
+            try {
+                result.setProjectDependencyGraph(
+                        new DefaultProjectDependencyGraph(projects));
+            } catch (CycleDetectedException | DuplicateProjectException e) {
+                throw new MavenExecutionException(
+                        "Error sorting projects to compute hashversions", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Names of the version properties of the modules found by parsing
+     * the raw poms, starting from the root pom and following
+     * the module references, including the modules of all profiles.
+     */
+    static Set<String> versionProperties(File rootPom, boolean includeGroupId)
+            throws IOException, XmlPullParserException
+    {
+        Set<String> result = new TreeSet<>();
+        Set<File> visited = new HashSet<>();
+        Deque<File> poms = new ArrayDeque<>();
+        poms.push(rootPom.getCanonicalFile());
+        while (!poms.isEmpty()) {
+            File pom = poms.pop();
+            if (!visited.add(pom)) {
+                continue;
+            }
+            Model model;
+            try (InputStream in = new FileInputStream(pom)) {
+                model = new MavenXpp3Reader().read(in, false);
+            }
+            String groupId = model.getGroupId() == null
+                                     && model.getParent() != null
+                    ? model.getParent().getGroupId()
+                    : model.getGroupId();
+            result.add(HashVerMojo.hashVerKey(groupId,
+                                              model.getArtifactId(),
+                                              includeGroupId));
+
+            List<String> modules = new ArrayList<>(model.getModules());
+            for (Profile profile : model.getProfiles()) {
+                modules.addAll(profile.getModules());
+            }
+            for (String module : modules) {
+                File modulePom = new File(pom.getParentFile(), module);
+                if (modulePom.isDirectory()) {
+                    modulePom = new File(modulePom, "pom.xml");
+                }
+                if (modulePom.isFile()) {
+                    poms.push(modulePom.getCanonicalFile());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resolves poms of the given projects from their files,
+     * delegates everything else to the original workspace reader.
+     */
+    static class ProjectsWorkspaceReader implements WorkspaceReader {
+
+        private final WorkspaceRepository repository =
+                new WorkspaceRepository("hashver-projects");
+
+        // groupId:artifactId:version -> project
+        private final Map<String, MavenProject> projects = new HashMap<>();
+
+        // nullable
+        private final WorkspaceReader delegate;
+
+        ProjectsWorkspaceReader(List<MavenProject> projects,
+                                WorkspaceReader delegate)
+        {
+            for (MavenProject prj : projects) {
+                this.projects.put(ArtifactUtils.key(prj.getGroupId(),
+                                                    prj.getArtifactId(),
+                                                    prj.getVersion()),
+                                  prj);
+            }
+            this.delegate = delegate;
+        }
+
+        private MavenProject project(Artifact artifact) {
+            return projects.get(ArtifactUtils.key(artifact.getGroupId(),
+                                                  artifact.getArtifactId(),
+                                                  artifact.getVersion()));
+        }
+
+        @Override
+        public WorkspaceRepository getRepository() {
+            return repository;
+        }
+
+        @Override
+        public File findArtifact(Artifact artifact) {
+            MavenProject prj = project(artifact);
+            if (prj != null && "pom".equals(artifact.getExtension())) {
+                return prj.getFile();
+            }
+            return delegate == null ? null : delegate.findArtifact(artifact);
+        }
+
+        @Override
+        public List<String> findVersions(Artifact artifact) {
+            if (project(artifact) != null) {
+                return Collections.singletonList(artifact.getVersion());
+            }
+            return delegate == null
+                    ? Collections.emptyList()
+                    : delegate.findVersions(artifact);
+        }
+    }
+
+    private void logInfo(String msg) {
+        logger.info(LOG_PREFIX + msg);
+    }
+}
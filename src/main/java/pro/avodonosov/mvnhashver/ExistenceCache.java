@@ -0,0 +1,273 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.repository.RemoteRepository;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static pro.avodonosov.mvnhashver.Utils.withFileLock;
+
+/**
+ * Remembers the results of artifact existence checks in remote
+ * repositories between builds.
+ *
+ * <p>Artifacts with hashversions are immutable, so once an artifact
+ * is found in a repository we remember that permanently. Absence
+ * is remembered only for the negative TTL, because the artifact
+ * may be deployed by another build meanwhile.
+ *
+ * <p>The file is a text journal, one check result per line:
+ * <pre>
+ *     {+|-} {checkedAtMillis} {repoId} {repoUrl} {g:a:ext:classifier:v}
+ * </pre>
+ * New results are appended at the end of the build. Several builds
+ * on the same machine may use the same file: the readers and writers
+ * synchronize through locks on a separate lock file, and writers
+ * only append. When the journal accumulates many obsolete lines it is
+ * compacted into a temporary file renamed over the journal.
+ *
+ * <p>The get and put methods are thread safe.
+ */
+class ExistenceCache {
+
+    static final String FORMAT_VERSION = "hashver-existence-cache-1";
+
+    // Compact when the journal has that many more lines
+    // than live entries.
+    static final int COMPACTION_SLACK = 1000;
+
+    // The number of lines we report for a file of unknown format,
+    // so that it's rewritten by the next save.
+    private static final int UNKNOWN_FORMAT = Integer.MAX_VALUE;
+
+    private final File file;
+    private final long negativeTtlMillis;
+
+    private final Map<String, Entry> entries;
+    private final Map<String, Entry> added = new ConcurrentHashMap<>();
+    private final int loadedLines;
+
+    static class Entry {
+        final boolean exists;
+        final long checkedAt;
+
+        Entry(boolean exists, long checkedAt) {
+            this.exists = exists;
+            this.checkedAt = checkedAt;
+        }
+
+        String toLine(String key) {
+            return (exists ? "+" : "-") + " " + checkedAt + " " + key;
+        }
+    }
+
+    private ExistenceCache(File file,
+                           long negativeTtlMillis,
+                           Map<String, Entry> entries,
+                           int loadedLines)
+    {
+        this.file = file;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.entries = new ConcurrentHashMap<>(entries);
+        this.loadedLines = loadedLines;
+    }
+
+    static ExistenceCache load(File file, long negativeTtlMillis)
+            throws IOException
+    {
+        return withFileLock(file, true, () -> {
+            Map<String, Entry> entries = new HashMap<>();
+            int lines = read(file, entries);
+            return new ExistenceCache(file, negativeTtlMillis, entries, lines);
+        });
+    }
+
+    static String key(RemoteRepository repo, Artifact artifact) {
+        return repo.getId()
+                + " " + repo.getUrl()
+                + " " + artifact.getGroupId()
+                + ":" + artifact.getArtifactId()
+                + ":" + artifact.getExtension()
+                + ":" + artifact.getClassifier()
+                + ":" + artifact.getVersion();
+    }
+
+    /**
+     * @return true if the artifact was found earlier, false if it was
+     *         found absent within the negative TTL, otherwise null
+     */
+    Boolean get(RemoteRepository repo, Artifact artifact) {
+        Entry e = entries.get(key(repo, artifact));
+        if (e == null) {
+            return null;
+        }
+        if (e.exists) {
+            return true;
+        }
+        return System.currentTimeMillis() - e.checkedAt < negativeTtlMillis
+                ? false
+                : null;
+    }
+
+    void put(RemoteRepository repo, Artifact artifact, boolean exists) {
+        String key = key(repo, artifact);
+        Entry e = new Entry(exists, System.currentTimeMillis());
+        added.put(key, e);
+        merge(entries, key, e);
+    }
+
+    /**
+     * Appends the results added by this build to the file,
+     * compacting the file if it has too many obsolete lines.
+     */
+    void save() throws IOException {
+        if (added.isEmpty()) {
+            return;
+        }
+        withFileLock(file, false, () -> {
+            if (loadedLines == UNKNOWN_FORMAT
+                    || loadedLines > entries.size() + COMPACTION_SLACK)
+            {
+                compact();
+            } else {
+                append();
+            }
+            return null;
+        });
+    }
+
+    private void append() throws IOException {
+        boolean writeHeader = !file.exists() || file.length() == 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), UTF_8)))
+        {
+            if (writeHeader) {
+                out.write(FORMAT_VERSION + "\n");
+            }
+            for (Map.Entry<String, Entry> e : added.entrySet()) {
+                out.write(e.getValue().toLine(e.getKey()) + "\n");
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        // Re-read, as other builds may have appended since we loaded.
+        Map<String, Entry> all = new HashMap<>();
+        read(file, all);
+        for (Map.Entry<String, Entry> e : added.entrySet()) {
+            merge(all, e.getKey(), e.getValue());
+        }
+
+        long now = System.currentTimeMillis();
+        File tmp = File.createTempFile("hashver-",
+                                       ".tmp",
+                                       file.getAbsoluteFile().getParentFile());
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), UTF_8)))
+            {
+                out.write(FORMAT_VERSION + "\n");
+                for (Map.Entry<String, Entry> e : all.entrySet()) {
+                    Entry entry = e.getValue();
+                    if (entry.exists
+                            || now - entry.checkedAt < negativeTtlMillis)
+                    {
+                        out.write(entry.toLine(e.getKey()) + "\n");
+                    }
+                }
+            }
+            Files.move(tmp.toPath(),
+                       file.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    // A found artifact stays found, otherwise the latest check wins.
+    private static void merge(Map<String, Entry> entries,
+                              String key,
+                              Entry e)
+    {
+        entries.merge(key, e, (old, cur) -> {
+            if (old.exists != cur.exists) {
+                return old.exists ? old : cur;
+            }
+            return old.checkedAt >= cur.checkedAt ? old : cur;
+        });
+    }
+
+    /**
+     * Reads the journal into the map.
+     * @return the number of entry lines read, or UNKNOWN_FORMAT
+     */
+    private static int read(File file, Map<String, Entry> entries)
+            throws IOException
+    {
+        if (!file.exists()) {
+            return 0;
+        }
+        int lines = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF_8)))
+        {
+            if (!FORMAT_VERSION.equals(in.readLine())) {
+                return file.length() == 0 ? 0 : UNKNOWN_FORMAT;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length != 3
+                        || !(parts[0].equals("+") || parts[0].equals("-")))
+                {
+                    continue;
+                }
+                long checkedAt;
+                try {
+                    checkedAt = Long.parseLong(parts[1]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                lines++;
+                merge(entries,
+                      parts[2],
+                      new Entry(parts[0].equals("+"), checkedAt));
+            }
+        }
+        return lines;
+    }
+}
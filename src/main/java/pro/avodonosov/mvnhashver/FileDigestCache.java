@@ -0,0 +1,281 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A persistent cache of file content digests, in the spirit of the git index.
+ *
+ * <p>An entry is keyed by the file path relative to the base directory
+ * and remembers the file size, modification time and file key (inode)
+ * observed when the digest was computed. If all of them are unchanged
+ * the cached digest is returned without reading the file.
+ *
+ * <p>The digest of a file is computed the same way as the git blob
+ * object id: SHA-1 of "blob {size}\0" followed by the file content.
+ *
+ * <p>"Racy" entries - whose file modification time is too close to
+ * the moment the digest was computed - are not trusted, because the file
+ * could be modified again within the file system timestamp granularity
+ * without changing its modification time. Such files are re-read
+ * (the same approach as in git, see Documentation/technical/racy-git.txt).
+ *
+ * <p>The cache file starts with a format version. A file of an unknown
+ * version is ignored, so all the files are re-read.
+ *
+ * <p>The instances are safe for use from multiple threads.
+ */
+class FileDigestCache {
+
+    static final String FORMAT_VERSION = "hashver-file-digest-cache-1";
+
+    static final String BLOB_DIGEST_ALGO = "SHA-1";
+
+    /**
+     * Entries whose file was modified less than that before
+     * the digest was computed are not trusted.
+     * Covers the coarsest timestamp granularity we may meet (FAT).
+     */
+    static final long RACY_WINDOW_MILLIS = 2000;
+
+    static class Entry {
+        final long size;
+        final long mtime;
+        final String fileKey;
+        final long hashedAt;
+        final byte[] digest;
+
+        Entry(long size, long mtime, String fileKey, long hashedAt, byte[] digest) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.hashedAt = hashedAt;
+            this.digest = digest;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size()
+                    && mtime == attrs.lastModifiedTime().toMillis()
+                    && fileKey.equals(fileKey(attrs))
+                    && !isRacy();
+        }
+
+        boolean isRacy() {
+            return mtime >= hashedAt - RACY_WINDOW_MILLIS;
+        }
+    }
+
+    private final Path baseDir;
+
+    private final FileHasher fileHasher;
+
+    // The entries read from the cache file.
+    private final Map<String, Entry> previous;
+
+    // The entries of the files hashed during this session,
+    // only they are saved.
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+    final AtomicInteger hits = new AtomicInteger();
+    final AtomicInteger misses = new AtomicInteger();
+
+    private FileDigestCache(Path baseDir,
+                            Map<String, Entry> previous,
+                            FileHasher fileHasher)
+    {
+        this.baseDir = baseDir.toAbsolutePath().normalize();
+        this.previous = previous;
+        this.fileHasher = fileHasher;
+    }
+
+    static FileDigestCache empty(File baseDir, FileHasher fileHasher) {
+        return new FileDigestCache(baseDir.toPath(),
+                                   Collections.emptyMap(),
+                                   fileHasher);
+    }
+
+    /**
+     * Loads the cache from the file. If the file is absent or
+     * has unsupported format version, an empty cache is returned.
+     */
+    static FileDigestCache load(File cacheFile,
+                                File baseDir,
+                                FileHasher fileHasher)
+            throws IOException
+    {
+        if (!cacheFile.isFile()) {
+            return empty(baseDir, fileHasher);
+        }
+        Map<String, Entry> entries = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(cacheFile))))
+        {
+            if (!FORMAT_VERSION.equals(in.readUTF())) {
+                return empty(baseDir, fileHasher);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String fileKey = in.readUTF();
+                long hashedAt = in.readLong();
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                entries.put(path,
+                            new Entry(size, mtime, fileKey, hashedAt, digest));
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // Truncated or corrupted file.
+            return empty(baseDir, fileHasher);
+        }
+        return new FileDigestCache(baseDir.toPath(), entries, fileHasher);
+    }
+
+    /**
+     * Saves the entries of the files hashed through this cache instance.
+     * The file is replaced atomically, so concurrent readers see either
+     * the old or the new version.
+     */
+    void save(File cacheFile) throws IOException {
+        List<String> paths = new ArrayList<>(current.keySet());
+        Collections.sort(paths);
+
+        File dir = cacheFile.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Error creating directory: " + dir);
+        }
+        File tmp = File.createTempFile("hashver-", ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                out.writeUTF(FORMAT_VERSION);
+                out.writeInt(paths.size());
+                for (String path : paths) {
+                    Entry e = current.get(path);
+                    out.writeUTF(path);
+                    out.writeLong(e.size);
+                    out.writeLong(e.mtime);
+                    out.writeUTF(e.fileKey);
+                    out.writeLong(e.hashedAt);
+                    out.writeByte(e.digest.length);
+                    out.write(e.digest);
+                }
+            }
+            Files.move(tmp.toPath(),
+                       cacheFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    byte[] fileDigest(File f) throws IOException {
+        Path path = f.toPath().toAbsolutePath().normalize();
+        String key = relativePath(path);
+
+        BasicFileAttributes attrs =
+                Files.readAttributes(path, BasicFileAttributes.class);
+
+        Entry cached = previous.get(key);
+        if (cached != null && cached.matches(attrs)) {
+            hits.incrementAndGet();
+            current.put(key, cached);
+            return cached.digest;
+        }
+
+        misses.incrementAndGet();
+        long hashedAt = System.currentTimeMillis();
+        byte[] digest = blobDigest(f, attrs.size(), fileHasher);
+
+        BasicFileAttributes attrsAfter =
+                Files.readAttributes(path, BasicFileAttributes.class);
+        if (attrs.size() != attrsAfter.size()
+                || !attrs.lastModifiedTime().equals(attrsAfter.lastModifiedTime()))
+        {
+            throw new IOException("File modified while hashing: " + f);
+        }
+
+        current.put(key, new Entry(attrs.size(),
+                                   attrs.lastModifiedTime().toMillis(),
+                                   fileKey(attrs),
+                                   hashedAt,
+                                   digest));
+        return digest;
+    }
+
+    private String relativePath(Path path) {
+        Path relative = path.startsWith(baseDir)
+                ? baseDir.relativize(path)
+                : path;
+        // Platform independent key
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    static String fileKey(BasicFileAttributes attrs) {
+        // On unix-like systems includes device and inode,
+        // absent on Windows.
+        Object key = attrs.fileKey();
+        return key == null ? "" : key.toString();
+    }
+
+    static byte[] blobDigest(File f, long size, FileHasher fileHasher)
+            throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(BLOB_DIGEST_ALGO);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(
+                    "Unexpected: " + BLOB_DIGEST_ALGO + " is not supported by Java",
+                    e);
+        }
+        digest.update(("blob " + size + "\0").getBytes(UTF_8));
+        fileHasher.hash(f, digest);
+        return digest.digest();
+    }
+}
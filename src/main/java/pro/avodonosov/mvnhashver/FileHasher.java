@@ -0,0 +1,164 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import static pro.avodonosov.mvnhashver.HashVerMojo.ExtraProperties.hashverDigestSkip;
+import static pro.avodonosov.mvnhashver.HashVerMojo.ExtraProperties.hashverMmapThreshold;
+
+/**
+ * Feeds file content to a digest.
+ *
+ * <p>Small files are read through a buffer reused by all files hashed
+ * in the same thread. The buffer is a heap one, because MessageDigest
+ * consumes heap buffers without copying, while for a direct buffer it
+ * copies the content to a temporary array anyway.
+ *
+ * <p>Files not smaller than the mmap threshold are memory-mapped,
+ * avoiding the copying to user space buffers by read calls.
+ * Mapping is disabled by default and only used when the threshold is
+ * specified explicitly: Java has no public API to unmap a buffer, so
+ * the file stays mapped until the buffer is garbage collected.
+ * Meanwhile on Windows the file can not be deleted or replaced,
+ * and if another process truncates the file while it is hashed,
+ * the access to the mapped memory fails with an InternalError
+ * (reported as an IOException).
+ *
+ * <p>The configuration is read from system properties once,
+ * when the instance is created. The instances are thread safe.
+ */
+class FileHasher {
+
+    static final int BUF_SIZE = 64 * 1024;
+
+    // Mapping disabled
+    static final long DEFAULT_MMAP_THRESHOLD = Long.MAX_VALUE;
+
+    // Map large files by windows of this size, to not exhaust
+    // the address space on 32 bit JVMs.
+    static final long MAX_MAP_SIZE = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUF_SIZE));
+
+    /**
+     * Don't feed the data to the digest, only read it.
+     * To check hashing CPU cost run the mojo one time normally
+     * and one time with this option. The time difference
+     * is the CPU cost. In my experiment with maven-wagon
+     * there were no noticeable difference.
+     */
+    final boolean skipDigest;
+
+    final long mmapThreshold;
+
+    FileHasher(boolean skipDigest, long mmapThreshold) {
+        this.skipDigest = skipDigest;
+        this.mmapThreshold = mmapThreshold;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a property value is invalid
+     */
+    static FileHasher fromSystemProperties() {
+        String threshold = System.getProperty(hashverMmapThreshold.name());
+        return new FileHasher(
+                System.getProperty(hashverDigestSkip.name()) != null,
+                threshold == null
+                        ? DEFAULT_MMAP_THRESHOLD
+                        : parseMmapThreshold(threshold));
+    }
+
+    static long parseMmapThreshold(String value) {
+        long result;
+        try {
+            result = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            result = -1;
+        }
+        if (result < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid " + hashverMmapThreshold + " value: \"" + value
+                    + "\", expected a non-negative number of bytes");
+        }
+        return result;
+    }
+
+    void hash(File f, MessageDigest digest) throws IOException {
+        try (FileChannel channel = FileChannel.open(f.toPath(),
+                                                    StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size >= mmapThreshold) {
+                try {
+                    hashMapped(channel, size, digest);
+                } catch (InternalError e) {
+                    // The digest is already fed with a part of the
+                    // content, so we can not fall back to reading.
+                    // The file is changing anyway, the hash would
+                    // be stale.
+                    throw new IOException(
+                            "Error accessing the memory mapped file " + f
+                            + ", probably it was truncated while hashing",
+                            e);
+                }
+            } else {
+                hashRead(channel, digest);
+            }
+        }
+    }
+
+    private void hashRead(FileChannel channel, MessageDigest digest)
+            throws IOException
+    {
+        ByteBuffer buf = BUFFER.get();
+        buf.clear();
+        while (channel.read(buf) != -1) {
+            buf.flip();
+            if (!skipDigest) {
+                digest.update(buf);
+            }
+            buf.clear();
+        }
+    }
+
+    private void hashMapped(FileChannel channel, long size, MessageDigest digest)
+            throws IOException
+    {
+        for (long pos = 0; pos < size; pos += MAX_MAP_SIZE) {
+            MappedByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    pos,
+                    Math.min(MAX_MAP_SIZE, size - pos));
+            if (skipDigest) {
+                mapped.load();
+            } else {
+                digest.update(mapped);
+            }
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads blob object ids of the tracked files from the git index
+ * (.git/index), without running git.
+ *
+ * <p>The index stores for every tracked file the id of its content
+ * as of the moment the file was staged, together with the file
+ * stat data (size, modification time) observed at that moment.
+ * If the file stat data is unchanged, the blob id can be used as the
+ * file content digest without reading the file. That's how git itself
+ * decides whether a file is modified. The size and modification time
+ * are compared always, the inode number and the status change time
+ * (ctime) - where the file system exposes them (the "unix" attribute
+ * view, i.e. not on Windows).
+ *
+ * <p>The blob id describes the content after the git "clean"
+ * conversions (core.autocrlf, the text / eol / filter / ident /
+ * working-tree-encoding attributes), which may differ from the bytes
+ * in the work tree. See {@link #contentConversion()}.
+ *
+ * <p>Supported index versions: 2, 3, 4. Only SHA-1 repositories.
+ * The index extensions are ignored. In particular, for a split index
+ * only the entries of the main index file are used, and other files
+ * are considered modified (so they are hashed by reading the content).
+ *
+ * <p>Format description:
+ * https://git-scm.com/docs/index-format
+ */
+class GitIndex {
+
+    private static final int SHA1_LEN = 20;
+
+    private static final int FLAG_EXTENDED = 0x4000;
+    private static final int NAME_MASK = 0xFFF;
+
+    private static final int MODE_TYPE_MASK = 0170000;
+    private static final int MODE_TYPE_REGULAR = 0100000;
+
+    private static final String[] CONVERTING_ATTRIBUTES = {
+            "text", "eol", "filter", "ident", "working-tree-encoding"
+    };
+
+    static class Entry {
+        final int ctimeSeconds;
+        final int ctimeNanos;
+        final int mtimeSeconds;
+        final int mtimeNanos;
+        final int ino;
+        final int size;
+        final byte[] blobId;
+
+        Entry(int ctimeSeconds, int ctimeNanos,
+              int mtimeSeconds, int mtimeNanos,
+              int ino, int size, byte[] blobId)
+        {
+            this.ctimeSeconds = ctimeSeconds;
+            this.ctimeNanos = ctimeNanos;
+            this.mtimeSeconds = mtimeSeconds;
+            this.mtimeNanos = mtimeNanos;
+            this.ino = ino;
+            this.size = size;
+            this.blobId = blobId;
+        }
+    }
+
+    private final Path workTree;
+    private final File gitDir;
+    private final Map<String, Entry> entries;
+
+    // Modification time of the index file, entries modified not
+    // earlier than that are "racily clean" and are not trusted.
+    private final long indexMtimeNanos;
+
+    private GitIndex(Path workTree,
+                     File gitDir,
+                     Map<String, Entry> entries,
+                     long indexMtimeNanos)
+    {
+        this.workTree = workTree;
+        this.gitDir = gitDir;
+        this.entries = entries;
+        this.indexMtimeNanos = indexMtimeNanos;
+    }
+
+    /**
+     * Finds the git repository containing the dir and reads its index.
+     * Returns null if the dir is not inside a git work tree
+     * or the repository has no index.
+     */
+    static GitIndex find(File dir) throws IOException {
+        File workTree = dir.getAbsoluteFile();
+        while (workTree != null && !new File(workTree, ".git").exists()) {
+            workTree = workTree.getParentFile();
+        }
+        if (workTree == null) {
+            return null;
+        }
+
+        File gitDir = gitDir(new File(workTree, ".git"));
+        File indexFile = new File(gitDir, "index");
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        return read(indexFile, workTree);
+    }
+
+    private static File gitDir(File dotGit) throws IOException {
+        if (dotGit.isDirectory()) {
+            return dotGit;
+        }
+        // Work trees and submodules have .git file with content
+        //     gitdir: <path>
+        String content = new String(Files.readAllBytes(dotGit.toPath()), UTF_8)
+                .trim();
+        String prefix = "gitdir:";
+        if (!content.startsWith(prefix)) {
+            throw new IOException("Unexpected content of " + dotGit);
+        }
+        File gitDir = new File(content.substring(prefix.length()).trim());
+        return gitDir.isAbsolute()
+                ? gitDir
+                : new File(dotGit.getParentFile(), gitDir.getPath());
+    }
+
+    static GitIndex read(File indexFile, File workTree) throws IOException {
+        long indexMtime = Files.getLastModifiedTime(indexFile.toPath())
+                .to(TimeUnit.NANOSECONDS);
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+        try {
+            return new GitIndex(workTree.toPath().toAbsolutePath().normalize(),
+                                indexFile.getAbsoluteFile().getParentFile(),
+                                parseEntries(buf, indexFile),
+                                indexMtime);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, IndexOutOfBoundsException, etc.
+            throw new IOException("Error parsing git index " + indexFile, e);
+        }
+    }
+
+    private static Map<String, Entry> parseEntries(ByteBuffer buf, File indexFile)
+            throws IOException
+    {
+        byte[] signature = new byte[4];
+        buf.get(signature);
+        if (!"DIRC".equals(new String(signature, UTF_8))) {
+            throw new IOException("Not a git index file: " + indexFile);
+        }
+        int version = buf.getInt();
+        if (version < 2 || version > 4) {
+            throw new IOException("Unsupported git index version "
+                    + version + ": " + indexFile);
+        }
+        int count = buf.getInt();
+
+        Map<String, Entry> result = new HashMap<>(count * 2);
+        byte[] prevPath = new byte[0];
+        for (int i = 0; i < count; i++) {
+            int entryStart = buf.position();
+
+            int ctimeSeconds = buf.getInt();
+            int ctimeNanos = buf.getInt();
+            int mtimeSeconds = buf.getInt();
+            int mtimeNanos = buf.getInt();
+            buf.getInt(); // dev
+            int ino = buf.getInt();
+            int mode = buf.getInt();
+            buf.getInt(); // uid
+            buf.getInt(); // gid
+            int size = buf.getInt();
+            byte[] blobId = new byte[SHA1_LEN];
+            buf.get(blobId);
+            int flags = buf.getShort() & 0xFFFF;
+            if (version >= 3 && (flags & FLAG_EXTENDED) != 0) {
+                buf.getShort(); // extended flags
+            }
+            int stage = (flags >> 12) & 0x3;
+
+            byte[] path;
+            if (version == 4) {
+                int strip = (int) readVarint(buf);
+                byte[] suffix = readNulTerminated(buf);
+                path = Arrays.copyOf(prevPath,
+                                     prevPath.length - strip + suffix.length);
+                System.arraycopy(suffix, 0,
+                                 path, prevPath.length - strip,
+                                 suffix.length);
+            } else {
+                int nameLen = flags & NAME_MASK;
+                path = readNulTerminated(buf);
+                if (nameLen != NAME_MASK && nameLen != path.length) {
+                    throw new IOException("Corrupted entry " + i
+                            + " in git index " + indexFile);
+                }
+                // Entries are padded with 1-8 NUL bytes (one of them
+                // already consumed by readNulTerminated) to a multiple
+                // of 8 bytes.
+                int entryLen = buf.position() - entryStart;
+                buf.position(entryStart + ((entryLen + 7) & ~7));
+            }
+            prevPath = path;
+
+            if (stage == 0 && (mode & MODE_TYPE_MASK) == MODE_TYPE_REGULAR) {
+                result.put(new String(path, UTF_8),
+                           new Entry(ctimeSeconds, ctimeNanos,
+                                     mtimeSeconds, mtimeNanos,
+                                     ino, size, blobId));
+            }
+        }
+        return result;
+    }
+
+    // The offset encoding used in git, see varint.c
+    private static long readVarint(ByteBuffer buf) {
+        int c = buf.get() & 0xFF;
+        long val = c & 0x7F;
+        while ((c & 0x80) != 0) {
+            c = buf.get() & 0xFF;
+            val = ((val + 1) << 7) | (c & 0x7F);
+        }
+        return val;
+    }
+
+    private static byte[] readNulTerminated(ByteBuffer buf) {
+        int start = buf.position();
+        int end = start;
+        while (buf.get(end) != 0) {
+            end++;
+        }
+        byte[] result = new byte[end - start];
+        buf.get(result);
+        buf.get(); // the NUL
+        return result;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the blob id of the file if it's tracked and the
+     * file stat data shows it's not modified since it was staged,
+     * otherwise null.
+     */
+    byte[] cleanBlobId(File f) throws IOException {
+        Path path = f.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(workTree)) {
+            return null;
+        }
+        String relative = workTree.relativize(path)
+                .toString()
+                .replace(File.separatorChar, '/');
+        Entry entry = entries.get(relative);
+        if (entry == null) {
+            return null;
+        }
+
+        boolean unix = path.getFileSystem()
+                .supportedFileAttributeViews()
+                .contains("unix");
+        Map<String, Object> attrs = Files.readAttributes(
+                path,
+                unix ? "unix:size,lastModifiedTime,ctime,ino"
+                     : "size,lastModifiedTime");
+        long mtime = ((FileTime) attrs.get("lastModifiedTime"))
+                .to(TimeUnit.NANOSECONDS);
+        long entryMtime = nanos(entry.mtimeSeconds, entry.mtimeNanos);
+
+        boolean clean = entry.size == (int) (long) (Long) attrs.get("size")
+                && sameTime(entryMtime, mtime)
+                && entryMtime < indexMtimeNanos;
+        if (clean && unix) {
+            long ctime = ((FileTime) attrs.get("ctime"))
+                    .to(TimeUnit.NANOSECONDS);
+            clean = sameTime(nanos(entry.ctimeSeconds, entry.ctimeNanos), ctime)
+                    && entry.ino == (int) (long) (Long) attrs.get("ino");
+        }
+        return clean ? entry.blobId : null;
+    }
+
+    private static long nanos(int seconds, int nanos) {
+        return TimeUnit.SECONDS.toNanos(seconds & 0xFFFFFFFFL) + nanos;
+    }
+
+    /**
+     * Returns a description of the configuration under which git
+     * converts the file content when staging it (so the blob ids in the
+     * index are not the digests of the work tree files), or null if
+     * no such configuration is found.
+     *
+     * <p>Checked are core.autocrlf in the repository, user and system
+     * git config, and the attributes which may convert content
+     * (text, eol, filter, ident, working-tree-encoding) in the tracked
+     * .gitattributes files, .git/info/attributes and core.attributesFile.
+     * The check is conservative: an attribute found for any pattern
+     * counts, regardless of which files the pattern matches.
+     */
+    String contentConversion() throws IOException {
+        String home = System.getProperty("user.home");
+        String xdg = System.getenv("XDG_CONFIG_HOME");
+        File xdgDir = xdg == null || xdg.isEmpty()
+                ? new File(home, ".config")
+                : new File(xdg);
+        return contentConversion(
+                Arrays.asList(new File(home, ".gitconfig"),
+                              new File(xdgDir, "git/config"),
+                              new File("/etc/gitconfig")),
+                Arrays.asList(new File(xdgDir, "git/attributes"),
+                              new File("/etc/gitattributes")));
+    }
+
+    String contentConversion(List<File> otherConfigFiles,
+                             List<File> otherAttributeFiles)
+            throws IOException
+    {
+        List<File> configFiles = new ArrayList<>();
+        configFiles.add(new File(gitDir, "config"));
+        File commonDir = new File(gitDir, "commondir");
+        if (commonDir.isFile()) {
+            // linked work tree, the main repository config is there
+            String path = new String(Files.readAllBytes(commonDir.toPath()), UTF_8)
+                    .trim();
+            File common = new File(path).isAbsolute()
+                    ? new File(path)
+                    : new File(gitDir, path);
+            configFiles.add(new File(common, "config"));
+        }
+        configFiles.addAll(otherConfigFiles);
+
+        List<File> attributeFiles = new ArrayList<>();
+        attributeFiles.add(new File(gitDir, "info/attributes"));
+        attributeFiles.addAll(otherAttributeFiles);
+        for (String path : entries.keySet()) {
+            if (path.equals(".gitattributes")
+                    || path.endsWith("/.gitattributes"))
+            {
+                attributeFiles.add(workTree.resolve(path).toFile());
+            }
+        }
+
+        for (File configFile : configFiles) {
+            if (!configFile.isFile()) {
+                continue;
+            }
+            String section = "";
+            for (String line : Files.readAllLines(configFile.toPath(), UTF_8)) {
+                line = line.trim();
+                if (line.startsWith("[")) {
+                    section = line.toLowerCase(Locale.ROOT);
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                if (eq < 0 || !section.startsWith("[core")) {
+                    continue;
+                }
+                String name = line.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(eq + 1).trim();
+                if (name.equals("autocrlf")
+                        && !value.equalsIgnoreCase("false"))
+                {
+                    return "core.autocrlf=" + value + " in " + configFile;
+                }
+                if (name.equals("attributesfile")) {
+                    attributeFiles.add(new File(
+                            value.startsWith("~/")
+                                    ? System.getProperty("user.home")
+                                            + value.substring(1)
+                                    : value));
+                }
+            }
+        }
+
+        for (File attributeFile : attributeFiles) {
+            if (!attributeFile.isFile()) {
+                continue;
+            }
+            for (String line : Files.readAllLines(attributeFile.toPath(), UTF_8)) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length == 0 || tokens[0].startsWith("#")) {
+                    continue;
+                }
+                // tokens[0] is the pattern
+                for (int i = 1; i < tokens.length; i++) {
+                    String attr = tokens[i].split("=", 2)[0];
+                    if (Arrays.asList(CONVERTING_ATTRIBUTES).contains(attr)) {
+                        return "\"" + line.trim() + "\" in " + attributeFile;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The file system time as reported by Java may be of
+     * a coarser precision (microseconds, milliseconds or seconds)
+     * than the time stored by git.
+     */
+    static boolean sameTime(long gitNanos, long javaNanos) {
+        if (gitNanos == javaNanos) {
+            return true;
+        }
+        for (long unit : new long[] {1000, 1000_000, 1000_000_000}) {
+            if (javaNanos % unit != 0) {
+                return false;
+            }
+            if (gitNanos / unit * unit == javaNanos) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,952 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static pro.avodonosov.mvnhashver.Utils.withFileLock;
+
+/**
+ * The compact format of the projects-to-build database of successfully
+ * built module hashversions. Instead of a file per hashversion, the
+ * database directory contains two files with an entry per line:
+ * "artifactId hashversion timestamp", where the timestamp
+ * is the milliseconds time the entry was produced.
+ *
+ * <ul>
+ *   <li>hashver-db.idx - entries sorted by artifactId and hashversion,
+ *       searched by binary search with positional reads of the file.
+ *   <li>hashver-db.log - entries added since the last compaction,
+ *       appended at the end, read into memory.
+ * </ul>
+ *
+ * <p>The directory also keeps hashver-durations.properties,
+ * the recorded module build durations, used to plan the builds.
+ *
+ * <p>When the log grows over {@link #LOG_COMPACTION_THRESHOLD} entries
+ * it is merged into a new index, which replaces the old one
+ * by an atomic rename. Writers hold an exclusive lock on the
+ * hashver-db.lock file, readers a shared lock while they open
+ * the index and read the log.
+ *
+ * <p>The index is not memory-mapped: on Windows a mapped file can not be
+ * replaced until the mapping is garbage collected, so the compactions
+ * would fail while a reader is alive. An open channel does not prevent
+ * the replacement (java opens files with FILE_SHARE_DELETE), and keeps
+ * reading the old index.
+ *
+ * <p>The files must only be modified by the plugin: an entry appended
+ * bypassing the lock, e.g. by shell redirection, may interleave with
+ * the plugin writes and leave a torn line, which fails the parsing.
+ */
+class HashVerDb implements Closeable {
+
+    static final String INDEX_FILE = "hashver-db.idx";
+    static final String LOG_FILE = "hashver-db.log";
+    static final String DURATIONS_FILE = "hashver-durations.properties";
+    static final int LOG_COMPACTION_THRESHOLD = 10_000;
+
+    // The index is read by pages of this size.
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    static class Entry {
+        final String artifactId;
+        final String hashVer;
+        final long timestamp;
+
+        Entry(String artifactId, String hashVer, long timestamp) {
+            if (artifactId.indexOf(' ') >= 0 || hashVer.indexOf(' ') >= 0) {
+                throw new IllegalArgumentException(
+                        "Space in db entry: " + artifactId + " " + hashVer);
+            }
+            this.artifactId = artifactId;
+            this.hashVer = hashVer;
+            this.timestamp = timestamp;
+        }
+
+        String key() {
+            return key(artifactId, hashVer);
+        }
+
+        static String key(String artifactId, String hashVer) {
+            return artifactId + " " + hashVer;
+        }
+
+        String line() {
+            return key() + " " + timestamp;
+        }
+
+        static Entry parse(String line) throws IOException {
+            String[] parts = line.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Invalid db entry: " + line);
+            }
+            try {
+                return new Entry(parts[0], parts[1], Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid db entry: " + line, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return line();
+        }
+    }
+
+    static final Comparator<Entry> KEY_ORDER =
+            Comparator.comparing(Entry::key);
+
+    // Null if there is no index yet.
+    private final FileChannel index;
+    private final long indexSize;
+
+    // The last read page of the index.
+    private final ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+    private long pageStart = -1;
+
+    private final Set<String> logKeys;
+
+    private HashVerDb(FileChannel index,
+                      long indexSize,
+                      Set<String> logKeys)
+    {
+        this.index = index;
+        this.indexSize = indexSize;
+        this.logKeys = logKeys;
+    }
+
+    private static File lockFile(File dir) {
+        // Utils.withFileLock appends ".lock"
+        return new File(dir, "hashver-db");
+    }
+
+    static boolean exists(File dir) {
+        return new File(dir, INDEX_FILE).exists()
+                || new File(dir, LOG_FILE).exists();
+    }
+
+    /**
+     * Opens a snapshot of the database for lookups.
+     * Changes made after that are not visible in the snapshot.
+     * The snapshot keeps the index file open until closed.
+     */
+    static HashVerDb open(File dir) throws IOException {
+        return withFileLock(lockFile(dir), true, () -> {
+            Set<String> logKeys = new HashSet<>();
+            for (Entry entry : readLog(dir)) {
+                logKeys.add(entry.key());
+            }
+
+            File index = new File(dir, INDEX_FILE);
+            if (!index.exists()) {
+                return new HashVerDb(null, 0, logKeys);
+            }
+            // The channel keeps reading the old file
+            // after it is replaced by a compaction.
+            FileChannel channel = FileChannel.open(index.toPath(),
+                                                   StandardOpenOption.READ);
+            try {
+                return new HashVerDb(channel, channel.size(), logKeys);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        });
+    }
+
+    synchronized boolean contains(String artifactId, String hashVer)
+            throws IOException
+    {
+        String key = Entry.key(artifactId, hashVer);
+        return logKeys.contains(key) || indexContains(key);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    private byte byteAt(long pos) throws IOException {
+        if (pageStart < 0 || pos < pageStart || pos >= pageStart + page.limit()) {
+            pageStart = pos & ~(PAGE_SIZE - 1L);
+            page.clear();
+            page.limit((int) Math.min(PAGE_SIZE, indexSize - pageStart));
+            while (page.hasRemaining()) {
+                if (index.read(page, pageStart + page.position()) < 0) {
+                    pageStart = -1;
+                    throw new IOException("Unexpected end of the index file");
+                }
+            }
+        }
+        return page.get((int) (pos - pageStart));
+    }
+
+    private boolean indexContains(String key) throws IOException {
+        // Binary search over byte positions: find the line
+        // containing the middle position and compare its key.
+        long lo = 0;
+        long hi = indexSize;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            long start = mid;
+            while (start > lo && byteAt(start - 1) != '\n') {
+                start--;
+            }
+            long end = start;
+            while (end < indexSize && byteAt(end) != '\n') {
+                end++;
+            }
+            int cmp = lineKey(start, end).compareTo(key);
+            if (cmp == 0) {
+                return true;
+            } else if (cmp < 0) {
+                lo = end + 1;
+            } else {
+                hi = start;
+            }
+        }
+        return false;
+    }
+
+    // The line up to the timestamp
+    private String lineKey(long start, long end) throws IOException {
+        long keyEnd = end;
+        while (keyEnd > start && byteAt(keyEnd - 1) != ' ') {
+            keyEnd--;
+        }
+        // exclude the space
+        keyEnd = Math.max(start, keyEnd - 1);
+        byte[] bytes = new byte[(int) (keyEnd - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = byteAt(start + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Entries of the log. A last line without the line end is ignored:
+     * it may be left by a writer killed in the middle of an append.
+     */
+    static List<Entry> readLog(File dir) throws IOException {
+        return readEntries(new File(dir, LOG_FILE));
+    }
+
+    static List<Entry> readEntries(File log) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        if (!log.exists()) {
+            return result;
+        }
+        String content = new String(Files.readAllBytes(log.toPath()), UTF_8);
+        int start = 0;
+        int end;
+        while ((end = content.indexOf('\n', start)) >= 0) {
+            if (end > start) {
+                result.add(Entry.parse(content.substring(start, end)));
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     * Appends the entries to the log by a single write,
+     * and compacts the database if the log is too large.
+     * When the database is created, the entries of the legacy
+     * layout found in the directory are migrated.
+     */
+    static void add(File dir, Collection<Entry> entries) throws IOException {
+        add(dir, entries, LOG_COMPACTION_THRESHOLD);
+    }
+
+    static void add(File dir,
+                    Collection<Entry> entries,
+                    int compactionThreshold)
+            throws IOException
+    {
+        withFileLock(lockFile(dir), false, () -> {
+            addLocked(dir, entries, compactionThreshold);
+            return null;
+        });
+    }
+
+    private static void addLocked(File dir,
+                                  Collection<Entry> entries,
+                                  int compactionThreshold)
+            throws IOException
+    {
+        if (!exists(dir)) {
+            if (new LegacyEntries(dir).hasNext()) {
+                compactLocked(dir);
+            }
+        }
+        appendToLog(dir, entries);
+        if (readLog(dir).size() > compactionThreshold) {
+            compactLocked(dir);
+        }
+    }
+
+    private static void appendToLog(File dir, Collection<Entry> entries)
+            throws IOException
+    {
+        if (entries.isEmpty()) {
+            return;
+        }
+        StringBuilder content = new StringBuilder();
+        for (Entry entry : entries) {
+            content.append(entry.line()).append('\n');
+        }
+        try (FileChannel log = FileChannel.open(
+                new File(dir, LOG_FILE).toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE))
+        {
+            // Drop an incomplete line of a killed writer.
+            long pos = completeLinesEnd(log);
+            log.truncate(pos);
+            ByteBuffer buf = ByteBuffer.wrap(
+                    content.toString().getBytes(UTF_8));
+            while (buf.hasRemaining()) {
+                pos += log.write(buf, pos);
+            }
+            log.force(true);
+        }
+    }
+
+    private static long completeLinesEnd(FileChannel file) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long end = file.size();
+        while (end > 0) {
+            long start = Math.max(0, end - buf.capacity());
+            buf.clear();
+            buf.limit((int) (end - start));
+            while (buf.hasRemaining()) {
+                if (file.read(buf, start + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            for (int i = buf.limit() - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the additions in the legacy file-per-hashversion layout
+     * to the database. If the database is in the legacy layout too,
+     * every file is created by an atomic rename of a temporary file,
+     * so the readers checking the file existence never see
+     * a partially written db.
+     *
+     * @return the number of entries in the additions
+     */
+    static int addLegacy(File dir, File additionsDir) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        new LegacyEntries(additionsDir).forEachRemaining(entries::add);
+        withFileLock(lockFile(dir), false, () -> {
+            if (exists(dir)) {
+                addLocked(dir, entries, LOG_COMPACTION_THRESHOLD);
+                return null;
+            }
+            File[] groupDirs = additionsDir.listFiles();
+            if (groupDirs == null) {
+                return null;
+            }
+            for (File groupDir : groupDirs) {
+                File[] files = groupDir.listFiles();
+                if (LegacyEntries.legacyArtifactId(groupDir) == null
+                        || files == null)
+                {
+                    continue;
+                }
+                File dbGroupDir = new File(dir, groupDir.getName());
+                Files.createDirectories(dbGroupDir.toPath());
+                for (File file : files) {
+                    if (!LegacyEntries.isLegacyEntry(groupDir, file)) {
+                        continue;
+                    }
+                    File dbFile = new File(dbGroupDir, file.getName());
+                    if (dbFile.exists()) {
+                        continue;
+                    }
+                    // hidden, to not be taken for an entry
+                    File tmp = File.createTempFile(
+                            ".hashver-", ".tmp", dbGroupDir);
+                    try {
+                        Files.copy(file.toPath(),
+                                   tmp.toPath(),
+                                   StandardCopyOption.REPLACE_EXISTING);
+                        Files.move(tmp.toPath(),
+                                   dbFile.toPath(),
+                                   StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(tmp.toPath());
+                    }
+                }
+            }
+            return null;
+        });
+        return entries.size();
+    }
+
+    /**
+     * @return artifactId -> recorded build duration in milliseconds
+     */
+    static Map<String, Long> durations(File dir) throws IOException {
+        return withFileLock(lockFile(dir), true,
+                            () -> loadDurations(new File(dir, DURATIONS_FILE)));
+    }
+
+    static Map<String, Long> loadDurations(File file) throws IOException {
+        Map<String, Long> result = new HashMap<>();
+        if (!file.exists()) {
+            return result;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        for (String artifactId : props.stringPropertyNames()) {
+            try {
+                result.put(artifactId,
+                           Long.parseLong(props.getProperty(artifactId)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid duration of " + artifactId
+                                      + " in " + file, e);
+            }
+        }
+        return result;
+    }
+
+    static void storeDurations(File file, Map<String, Long> durations)
+            throws IOException
+    {
+        Properties props = new Properties();
+        for (Map.Entry<String, Long> e : durations.entrySet()) {
+            props.setProperty(e.getKey(), e.getValue().toString());
+        }
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        parentDir.mkdirs();
+        File tmp = File.createTempFile(".hashver-", ".tmp", parentDir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                props.store(out, "Module build durations, milliseconds");
+            }
+            Files.move(tmp.toPath(),
+                       file.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Records the module build durations. A duration recorded
+     * earlier is averaged with the new one, to smooth the
+     * random variations.
+     */
+    static void recordDurations(File dir, Map<String, Long> durations)
+            throws IOException
+    {
+        withFileLock(lockFile(dir), false, () -> {
+            File file = new File(dir, DURATIONS_FILE);
+            Map<String, Long> recorded = loadDurations(file);
+            for (Map.Entry<String, Long> e : durations.entrySet()) {
+                recorded.merge(e.getKey(), e.getValue(),
+                               (old, cur) -> (old + cur) / 2);
+            }
+            storeDurations(file, recorded);
+            return null;
+        });
+    }
+
+    /**
+     * Merges the log into the index. Entries of the legacy
+     * file-per-hashversion layout found in the directory are merged too,
+     * and their files are deleted.
+     *
+     * @return the number of entries in the index
+     */
+    static long compact(File dir) throws IOException {
+        return withFileLock(lockFile(dir), false, () -> compactLocked(dir));
+    }
+
+    private static long compactLocked(File dir) throws IOException {
+        return rewriteLocked(dir, entry -> true, entry -> {});
+    }
+
+    interface EntryConsumer {
+        void accept(Entry entry) throws IOException;
+    }
+
+    /**
+     * Passes all the entries of the database, in the key order,
+     * to the consumer: the index, the log and the legacy entries.
+     */
+    private static void scan(File dir,
+                             LegacyEntries legacy,
+                             EntryConsumer consumer)
+            throws IOException
+    {
+        List<Entry> log = readLog(dir);
+        log.sort(KEY_ORDER);
+        try (IndexReader indexEntries =
+                     new IndexReader(new File(dir, INDEX_FILE)))
+        {
+            List<Iterator<Entry>> sources = new ArrayList<>();
+            sources.add(indexEntries);
+            sources.add(log.iterator());
+            sources.add(legacy);
+            Iterator<Entry> merged = mergeSorted(sources);
+            while (merged.hasNext()) {
+                consumer.accept(merged.next());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the entries accepted by the filter into a new index,
+     * replacing the old one by an atomic rename, and removes
+     * the log and the legacy entries.
+     *
+     * @return the number of entries in the new index
+     */
+    private static long rewriteLocked(File dir,
+                                      Predicate<Entry> keep,
+                                      EntryConsumer removed)
+            throws IOException
+    {
+        LegacyEntries legacy = new LegacyEntries(dir);
+        File index = new File(dir, INDEX_FILE);
+        long[] count = {0};
+        File tmp = File.createTempFile("hashver-db-", ".tmp", dir);
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), UTF_8), 64 * 1024))
+            {
+                scan(dir, legacy, entry -> {
+                    if (keep.test(entry)) {
+                        out.write(entry.line());
+                        out.write('\n');
+                        count[0]++;
+                    } else {
+                        removed.accept(entry);
+                    }
+                });
+            }
+            try (FileChannel channel = FileChannel.open(
+                    tmp.toPath(), StandardOpenOption.WRITE))
+            {
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(),
+                       index.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        // All the log and legacy entries are in the index now.
+        Files.deleteIfExists(new File(dir, LOG_FILE).toPath());
+        legacy.delete();
+        return count[0];
+    }
+
+    /**
+     * Which entries are removed by {@link #gc}. An entry is kept
+     * if its hashversion is pinned, or if it is not older than
+     * minTimestamp and is among the keepLast latest entries
+     * of its artifact (entries with the same timestamp as the
+     * keepLast-th one are kept too).
+     */
+    static class GcPolicy {
+        // 0 - no limit
+        final int keepLast;
+        final long minTimestamp;
+        final Set<String> pinnedHashVers;
+
+        GcPolicy(int keepLast, long minTimestamp, Set<String> pinnedHashVers) {
+            this.keepLast = keepLast;
+            this.minTimestamp = minTimestamp;
+            this.pinnedHashVers = pinnedHashVers;
+        }
+    }
+
+    static class GcReport {
+        long kept;
+        long removed;
+        // artifactId -> number of removed entries
+        final Map<String, Long> removedPerArtifact = new TreeMap<>();
+
+        void remove(Entry entry) {
+            removed++;
+            removedPerArtifact.merge(entry.artifactId, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Removes the entries according to the policy and compacts the
+     * database. In the dry run mode only reports what would be removed.
+     * Memory use does not depend on the number of entries, only on the
+     * number of artifacts and keepLast: the entries are streamed twice,
+     * first to find the timestamp of the keepLast-th latest entry of
+     * every artifact, then to filter them.
+     *
+     * @param removed receives every removed entry, for reporting
+     */
+    static GcReport gc(File dir,
+                       GcPolicy policy,
+                       boolean dryRun,
+                       EntryConsumer removed)
+            throws IOException
+    {
+        return withFileLock(lockFile(dir), dryRun, () -> {
+            Map<String, Long> cutoffs = policy.keepLast > 0
+                    ? keepLastCutoffs(dir, policy.keepLast)
+                    : Collections.emptyMap();
+            Predicate<Entry> keep = entry ->
+                    policy.pinnedHashVers.contains(entry.hashVer)
+                    || (entry.timestamp >= policy.minTimestamp
+                        && entry.timestamp >= cutoffs.getOrDefault(
+                                entry.artifactId, Long.MIN_VALUE));
+            GcReport report = new GcReport();
+            EntryConsumer onRemoved = entry -> {
+                report.remove(entry);
+                removed.accept(entry);
+            };
+            if (dryRun) {
+                scan(dir, new LegacyEntries(dir), entry -> {
+                    if (keep.test(entry)) {
+                        report.kept++;
+                    } else {
+                        onRemoved.accept(entry);
+                    }
+                });
+            } else {
+                report.kept = rewriteLocked(dir, keep, onRemoved);
+            }
+            return report;
+        });
+    }
+
+    /**
+     * @return artifactId -> timestamp of the keepLast-th latest entry,
+     *         for the artifacts having at least keepLast entries
+     */
+    private static Map<String, Long> keepLastCutoffs(File dir, int keepLast)
+            throws IOException
+    {
+        Map<String, Long> result = new HashMap<>();
+        // The entries of an artifact are adjacent in the key order.
+        String[] artifactId = {null};
+        PriorityQueue<Long> latest = new PriorityQueue<>();
+        Runnable finishArtifact = () -> {
+            if (latest.size() == keepLast) {
+                result.put(artifactId[0], latest.peek());
+            }
+            latest.clear();
+        };
+        scan(dir, new LegacyEntries(dir), entry -> {
+            if (!entry.artifactId.equals(artifactId[0])) {
+                finishArtifact.run();
+                artifactId[0] = entry.artifactId;
+            }
+            latest.add(entry.timestamp);
+            if (latest.size() > keepLast) {
+                latest.poll();
+            }
+        });
+        finishArtifact.run();
+        return result;
+    }
+
+    /**
+     * Merges the iterators, each sorted by key, into one sorted
+     * iterator. Of the entries with the same key the one with
+     * the latest timestamp is kept.
+     */
+    static Iterator<Entry> mergeSorted(List<Iterator<Entry>> sources) {
+        class Head {
+            final Entry entry;
+            final Iterator<Entry> source;
+
+            Head(Entry entry, Iterator<Entry> source) {
+                this.entry = entry;
+                this.source = source;
+            }
+        }
+        PriorityQueue<Head> heads = new PriorityQueue<>(
+                Math.max(1, sources.size()),
+                Comparator.comparing(h -> h.entry, KEY_ORDER));
+        for (Iterator<Entry> source : sources) {
+            if (source.hasNext()) {
+                heads.add(new Head(source.next(), source));
+            }
+        }
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                if (heads.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Entry result = null;
+                String key = heads.peek().entry.key();
+                while (!heads.isEmpty() && heads.peek().entry.key().equals(key)) {
+                    Head head = heads.poll();
+                    if (result == null || head.entry.timestamp > result.timestamp) {
+                        result = head.entry;
+                    }
+                    if (head.source.hasNext()) {
+                        heads.add(new Head(head.source.next(), head.source));
+                    }
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Reads the index file sequentially. Empty if the file is absent.
+     */
+    static class IndexReader implements Iterator<Entry>, AutoCloseable {
+
+        // nullable
+        private final BufferedReader reader;
+        private String nextLine;
+
+        IndexReader(File index) throws IOException {
+            reader = index.exists()
+                    ? new BufferedReader(new InputStreamReader(
+                            new FileInputStream(index), UTF_8), 64 * 1024)
+                    : null;
+            advance();
+        }
+
+        private void advance() throws IOException {
+            nextLine = reader == null ? null : reader.readLine();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextLine != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (nextLine == null) {
+                throw new NoSuchElementException();
+            }
+            try {
+                Entry result = Entry.parse(nextLine);
+                advance();
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Entries of the legacy layout created by the projects-to-build mojo
+     * before the compact format: a file per hashversion,
+     * dbDir/artifactId-O.D/hashversion, where O and D are the first
+     * characters of the own hash and of the dependency tree hash.
+     * The timestamp of an entry is the file modification time.
+     *
+     * <p>Iterated in the key order; in memory are only the entries
+     * of one artifact at a time.
+     */
+    static class LegacyEntries implements Iterator<Entry> {
+
+        // artifactId -> its directories
+        private final TreeMap<String, List<File>> artifactDirs = new TreeMap<>();
+        private final Iterator<Map.Entry<String, List<File>>> artifacts;
+        private Iterator<Entry> current = Collections.emptyIterator();
+
+        LegacyEntries(File dbDir) {
+            File[] children = dbDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    String artifactId = legacyArtifactId(child);
+                    if (artifactId != null) {
+                        artifactDirs.computeIfAbsent(artifactId,
+                                                     a -> new ArrayList<>())
+                                .add(child);
+                    }
+                }
+            }
+            artifacts = artifactDirs.entrySet().iterator();
+        }
+
+        // null if the file is not a legacy layout directory
+        static String legacyArtifactId(File dir) {
+            String name = dir.getName();
+            int len = name.length();
+            if (len < 5
+                    || name.charAt(len - 4) != '-'
+                    || !isHashChar(name.charAt(len - 3))
+                    || name.charAt(len - 2) != '.'
+                    || !isHashChar(name.charAt(len - 1))
+                    || !dir.isDirectory())
+            {
+                return null;
+            }
+            return name.substring(0, len - 4);
+        }
+
+        // The hashes are base64url encoded
+        private static boolean isHashChar(char c) {
+            return (c >= 'A' && c <= 'Z')
+                    || (c >= 'a' && c <= 'z')
+                    || (c >= '0' && c <= '9')
+                    || c == '-'
+                    || c == '_';
+        }
+
+        /**
+         * Whether the file is an entry of the legacy layout directory:
+         * its name is a hashversion starting with the own hash
+         * character of the directory name, and having the dependency
+         * tree hash character after a dot. Other files, e.g. of
+         * a directory accidentally named like a legacy one,
+         * are neither taken as entries nor deleted.
+         */
+        static boolean isLegacyEntry(File dir, File file) {
+            String dirName = dir.getName();
+            int len = dirName.length();
+            String name = file.getName();
+            return name.charAt(0) == dirName.charAt(len - 3)
+                    && name.contains("." + dirName.charAt(len - 1))
+                    && name.indexOf(' ') < 0
+                    && file.isFile();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && artifacts.hasNext()) {
+                Map.Entry<String, List<File>> artifact = artifacts.next();
+                List<Entry> entries = new ArrayList<>();
+                for (File dir : artifact.getValue()) {
+                    File[] files = dir.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File file : files) {
+                        if (isLegacyEntry(dir, file)) {
+                            entries.add(new Entry(artifact.getKey(),
+                                                  file.getName(),
+                                                  file.lastModified()));
+                        }
+                    }
+                }
+                entries.sort(KEY_ORDER);
+                current = entries.iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        /**
+         * Deletes the entry files, and the directories left empty.
+         */
+        void delete() throws IOException {
+            for (List<File> dirs : artifactDirs.values()) {
+                for (File dir : dirs) {
+                    File[] files = dir.listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File file : files) {
+                        if (isLegacyEntry(dir, file)) {
+                            Files.deleteIfExists(file.toPath());
+                        }
+                    }
+                    String[] left = dir.list();
+                    if (left != null && left.length == 0) {
+                        Files.deleteIfExists(dir.toPath());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static pro.avodonosov.mvnhashver.Utils.withFileLock;
+
+/**
+ * An index of published hashversioned artifacts: a sorted text file
+ * with a groupId:artifactId:version line per artifact, gzipped if the
+ * file name ends with .gz.
+ *
+ * <p>The index is read once into memory, so checking an artifact
+ * is a hash set lookup.
+ */
+class HashVerIndex {
+
+    private final Set<String> entries;
+
+    private HashVerIndex(Set<String> entries) {
+        this.entries = entries;
+    }
+
+    static String entry(String groupId, String artifactId, String version) {
+        return groupId + ":" + artifactId + ":" + version;
+    }
+
+    boolean contains(String groupId, String artifactId, String version) {
+        return entries.contains(entry(groupId, artifactId, version));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    static boolean isUrl(String location) {
+        // The protocol is at least 2 chars long,
+        // to not take a Windows drive letter for a protocol.
+        return location.matches("[a-zA-Z][a-zA-Z0-9+.-]+:.*");
+    }
+
+    /**
+     * Loads the index from a URL (any protocol supported by java.net.URL)
+     * or from a file.
+     */
+    static HashVerIndex load(String location, File file) throws IOException {
+        try (InputStream in = isUrl(location)
+                ? new URL(location).openStream()
+                : new FileInputStream(file))
+        {
+            Set<String> entries = new HashSet<>();
+            read(in, location.endsWith(".gz"), entries);
+            return new HashVerIndex(entries);
+        }
+    }
+
+    private static void read(InputStream in,
+                             boolean gzip,
+                             Collection<String> entries)
+            throws IOException
+    {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                gzip ? new GZIPInputStream(in, 64 * 1024) : in,
+                UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    entries.add(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the entries to the index file. Processes adding to the same
+     * file concurrently are serialized using a lock file, and the new
+     * version of the index replaces the old one by an atomic rename,
+     * so readers never see a partially written index.
+     *
+     * @return the number of entries absent in the index before
+     */
+    static int add(File file, Collection<String> newEntries)
+            throws IOException
+    {
+        return withFileLock(file, false, () -> {
+            Set<String> entries = new TreeSet<>();
+            if (file.exists()) {
+                read(new FileInputStream(file),
+                     file.getName().endsWith(".gz"),
+                     entries);
+            }
+            int sizeBefore = entries.size();
+            entries.addAll(newEntries);
+            if (entries.size() == sizeBefore && file.exists()) {
+                return 0;
+            }
+
+            File tmp = File.createTempFile(
+                    "hashver-", ".tmp", file.getAbsoluteFile().getParentFile());
+            try {
+                try (OutputStream fileOut = new FileOutputStream(tmp);
+                     Writer out = new BufferedWriter(new OutputStreamWriter(
+                             file.getName().endsWith(".gz")
+                                     ? new GZIPOutputStream(fileOut, 64 * 1024)
+                                     : fileOut,
+                             UTF_8)))
+                {
+                    for (String entry : entries) {
+                        out.write(entry);
+                        out.write('\n');
+                    }
+                }
+                Files.move(tmp.toPath(),
+                           file.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            return entries.size() - sizeBefore;
+        });
+    }
+}
@@ -0,0 +1,246 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Inputs of a hashversions computation, saved by the hashver mojo
+ * next to the hashversions.properties: the mojo parameters affecting
+ * the hashversions, and for every module its own hash and
+ * a fingerprint of its input files.
+ *
+ * <p>The fingerprint is a digest of paths, sizes and modification times
+ * (not contents) of the module pom.xml, the files and directories
+ * in its src/ and its ancestor poms. So checking that the
+ * hashversions.properties is up to date only costs the file stats,
+ * and only the modules whose fingerprints changed need rehashing.
+ *
+ * <p>A file modified within the {@link FileDigestCache#RACY_WINDOW_MILLIS}
+ * before the fingerprints are taken could be modified again without
+ * a visible mtime change (coarse file system timestamps). The
+ * fingerprint of such a module is not recorded, so the module is
+ * always considered changed, like the racy entries of the git index.
+ */
+class HashVerInputs {
+
+    static final String FORMAT_VERSION = "1";
+
+    private static final String FORMAT_PROP = "hashverInputs.format";
+    private static final String PARAM_PREFIX = "param.";
+    private static final String OWN_HASH_PREFIX = "ownHash.";
+    private static final String FINGERPRINT_PREFIX = "fingerprint.";
+
+    // The mojo parameters, named like the parameter properties.
+    final Properties params;
+
+    // Hashversion property name -> own hash
+    final Map<String, String> ownHashes;
+
+    // Hashversion property name -> fingerprint
+    final Map<String, String> fingerprints;
+
+    HashVerInputs(Properties params,
+                  Map<String, String> ownHashes,
+                  Map<String, String> fingerprints)
+    {
+        this.params = params;
+        this.ownHashes = ownHashes;
+        this.fingerprints = fingerprints;
+    }
+
+    static void store(File file,
+                      Properties params,
+                      Map<String, String> ownHashes,
+                      Map<String, String> fingerprints)
+            throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty(FORMAT_PROP, FORMAT_VERSION);
+        for (String name : params.stringPropertyNames()) {
+            props.setProperty(PARAM_PREFIX + name, params.getProperty(name));
+        }
+        for (Map.Entry<String, String> e : ownHashes.entrySet()) {
+            props.setProperty(OWN_HASH_PREFIX + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : fingerprints.entrySet()) {
+            props.setProperty(FINGERPRINT_PREFIX + e.getKey(), e.getValue());
+        }
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        parentDir.mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "Inputs of the hashversions computation");
+        }
+    }
+
+    /**
+     * @return null if the file is absent or has an unknown format
+     */
+    static HashVerInputs load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        if (!FORMAT_VERSION.equals(props.getProperty(FORMAT_PROP))) {
+            return null;
+        }
+        HashVerInputs result = new HashVerInputs(new Properties(),
+                                                 new HashMap<>(),
+                                                 new HashMap<>());
+        for (String name : props.stringPropertyNames()) {
+            String val = props.getProperty(name);
+            if (name.startsWith(PARAM_PREFIX)) {
+                result.params.setProperty(
+                        name.substring(PARAM_PREFIX.length()), val);
+            } else if (name.startsWith(OWN_HASH_PREFIX)) {
+                result.ownHashes.put(
+                        name.substring(OWN_HASH_PREFIX.length()), val);
+            } else if (name.startsWith(FINGERPRINT_PREFIX)) {
+                result.fingerprints.put(
+                        name.substring(FINGERPRINT_PREFIX.length()), val);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return hashversion property name -> fingerprint, without the
+     *         modules having files modified within the racy window
+     *         before now
+     */
+    static Map<String, String> fingerprints(
+            List<MavenProject> projects,
+            Function<MavenProject, String> hashVerKey)
+            throws IOException
+    {
+        long racyFrom = System.currentTimeMillis()
+                - FileDigestCache.RACY_WINDOW_MILLIS;
+        Map<String, String> result = new HashMap<>();
+        for (MavenProject prj : projects) {
+            String fingerprint = fingerprint(prj, racyFrom);
+            if (fingerprint != null) {
+                result.put(hashVerKey.apply(prj), fingerprint);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The current fingerprint, to compare with a recorded one.
+     */
+    static String fingerprint(MavenProject prj) throws IOException {
+        return fingerprint(prj, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return null if a file was modified at or after the racyFrom
+     */
+    static String fingerprint(MavenProject prj, long racyFrom)
+            throws IOException
+    {
+        Fingerprint fingerprint = new Fingerprint(racyFrom);
+        File basedir = prj.getBasedir();
+        fingerprint.fileStat(new File(basedir, "pom.xml"));
+        File srcDir = new File(basedir, "src");
+        if (srcDir.exists()) {
+            fingerprint.directoryStat(srcDir);
+        }
+
+        MavenProject parent = prj.getParent();
+        Artifact parentArtifact = prj.getParentArtifact();
+        while (parent != null) {
+            File pomFile = parent.getFile();
+            if (pomFile == null && parentArtifact != null) {
+                pomFile = parentArtifact.getFile();
+            }
+            if (pomFile != null) {
+                fingerprint.fileStat(pomFile);
+            }
+            parentArtifact = parent.getParentArtifact();
+            parent = parent.getParent();
+        }
+        if (fingerprint.racy) {
+            return null;
+        }
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(fingerprint.digest.digest());
+    }
+
+    private static class Fingerprint {
+
+        final MessageDigest digest = new Murmur3Digest();
+        final long racyFrom;
+        boolean racy;
+
+        Fingerprint(long racyFrom) {
+            this.racyFrom = racyFrom;
+        }
+
+        void directoryStat(File dir) throws IOException {
+            digest.update(("d " + dir.getAbsolutePath() + "\n")
+                                  .getBytes(UTF_8));
+            File[] children = dir.listFiles();
+            if (children == null) {
+                throw new IOException(dir.getPath() + " is not a directory");
+            }
+            Arrays.sort(children, Comparator.comparing(File::getName));
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    directoryStat(child);
+                } else {
+                    fileStat(child);
+                }
+            }
+        }
+
+        void fileStat(File file) {
+            long mtime = file.lastModified();
+            if (mtime >= racyFrom) {
+                racy = true;
+            }
+            digest.update(("f " + file.getAbsolutePath()
+                                   + " " + file.length()
+                                   + " " + mtime
+                                   + "\n").getBytes(UTF_8));
+        }
+    }
+}
@@ -23,6 +23,7 @@ import org.apache.commons.text.StringEscapeUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.ArtifactUtils;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.execution.ProjectDependencyGraph;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -35,20 +36,24 @@ import org.apache.maven.project.ProjectBuildingRequest;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilderException;
 import org.apache.maven.shared.dependency.graph.DependencyNode;
-import org.apache.maven.shared.dependency.graph.traversal.DependencyNodeVisitor;
 import org.apache.maven.shared.dependency.graph.traversal.SerializingDependencyNodeVisitor;
+import org.eclipse.aether.DefaultRepositoryCache;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.collection.DependencyCollectionContext;
+import org.eclipse.aether.collection.DependencySelector;
 
 import javax.inject.Inject;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -60,14 +65,21 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static pro.avodonosov.mvnhashver.HashVerMojo.ExtraProperties.hashVerSnapshotDependencyMode;
 import static pro.avodonosov.mvnhashver.HashVerMojo.ExtraProperties.hashverAncestorPomsForRelaxedHashing;
 import static pro.avodonosov.mvnhashver.HashVerMojo.ExtraProperties.hashverAncestorPomsIgnoreErrors;
-import static pro.avodonosov.mvnhashver.HashVerMojo.ExtraProperties.hashverDigestSkip;
 import static pro.avodonosov.mvnhashver.Logging.LOG_PREFIX;
+import static pro.avodonosov.mvnhashver.Utils.availableThreads;
+import static pro.avodonosov.mvnhashver.Utils.mapInParallel;
 import static pro.avodonosov.mvnhashver.Utils.saveToFile;
 
 // TODO: Investigate the "Downloading " message for reactor modules
@@ -81,22 +93,141 @@ public class HashVerMojo extends AbstractMojo {
 
     public static final String HASHVER_PROP_FILE = "target/hashversions.properties";
     public static final String HASHVER_JSON_FILE = "target/hashversions.json";
+    public static final String MERKLE_FILE = "target/hashver-merkle.txt";
+    public static final String MERKLE_STAT_FILE = "target/hashver-merkle-stat.txt";
+    public static final String HASHVER_INPUTS_FILE =
+            "target/hashversions-inputs.properties";
 
     public static final String DIGEST_ALGO = "SHA-1";
 
     @Parameter(defaultValue = "false", property = "includeGroupId")
     boolean includeGroupId;
 
+    /**
+     * The digest algorithm: sha1, sha256 or murmur3 (a fast
+     * non-cryptographic 128 bit hash). For algorithms other than
+     * the default sha1, the algorithm id is appended to the hashversions.
+     */
+    @Parameter(defaultValue = "sha1", property = "hashAlgorithm")
+    HashAlgorithm hashAlgorithm = HashAlgorithm.sha1;
+
     // TODO: Support property expressions in the extraHashData?
     // TODO: Inject some values into the extraHashData automatically?
     @Parameter(property = "extraHashData")
     String extraHashData;
 
+    /**
+     * Number of threads used to hash module sources and dependency trees.
+     * 0 means the number of available processors,
+     * 1 means hashing the modules sequentially in the maven thread.
+     */
+    @Parameter(defaultValue = "0", property = "hashverThreads")
+    int threads;
+
+    /**
+     * A file to persist digests of the module source files between
+     * the mojo runs, so that unchanged files are not re-read.
+     * When specified, every source file contributes to the module
+     * own hash its path and content digest (instead of the full content),
+     * therefore the hashversions differ from the ones computed
+     * without the cache.
+     */
+    @Parameter(property = "hashverFileCache")
+    File fileCache;
+
+    /**
+     * Ignore the existing entries of the hashverFileCache,
+     * re-read all the files and rewrite the cache.
+     */
+    @Parameter(defaultValue = "false", property = "hashverFileCacheRehash")
+    boolean fileCacheRehash;
+
+    /**
+     * Use blob ids from the git index (.git/index) as digests of the
+     * tracked and unmodified source files instead of reading the files.
+     * Modified and untracked files are read (or taken from the
+     * hashverFileCache, if specified) and the same blob id
+     * is computed for them, so the hashversions are identical with
+     * the hashverFileCache mode.
+     */
+    @Parameter(defaultValue = "false", property = "hashverGitIndex")
+    boolean useGitIndex;
+
+    /**
+     * Compute the hashversions bottom-up in the reactor build order.
+     * Dependency tree of a module is resolved without descending into
+     * the reactor dependencies, which are represented by their
+     * full hashversions (instead of the own hash and the subtree).
+     * Saves repeated resolution of the shared reactor subtrees;
+     * the hashversions differ from the ones computed without this option.
+     */
+    @Parameter(defaultValue = "false", property = "hashverComposeReactor")
+    boolean composeReactorHashes;
+
+    /**
+     * Hash module sources as a Merkle tree: hash of every directory
+     * is computed from names and hashes of its children.
+     * The directory hashes are saved to target/hashver-merkle.txt
+     * and reused by the next run for the directories whose children
+     * stat data is unchanged.
+     * The hashversions differ from the ones computed without this option.
+     */
+    @Parameter(defaultValue = "false", property = "hashverMerkle")
+    boolean merkle;
+
+    // Created by computeHashVers, as the system properties
+    // it's configured by may be invalid.
+    private FileHasher fileHasher;
+
+    // Directory path relative to the root project -> hash.
+    // Filled in the merkle mode.
+    private final Map<String, String> merkleTree = new ConcurrentSkipListMap<>();
+
+    // Directory path relative to the root project -> digest of
+    // the names, sizes, modification times and file keys of
+    // the directory children. Filled in the merkle mode.
+    private final Map<String, String> merkleStats = new ConcurrentSkipListMap<>();
+
+    // The merkleTree and merkleStats saved by the previous run,
+    // used to reuse hashes of unchanged directories. Read only.
+    private Map<String, String> prevMerkleTree = Collections.emptyMap();
+    private Map<String, String> prevMerkleStats = Collections.emptyMap();
+
+    // When the previous merkleStats were recorded, millis
+    private long prevMerkleTime;
+
+    // When the current merkleStats are recorded, millis
+    private long merkleTime;
+
+    // Parent artifact key -> digest fed with the extraHashData
+    // and the poms of the parent and all its ancestors. Many modules
+    // share the same parent, so we hash every ancestor chain once
+    // and then clone the digest for each module.
+    private final Map<String, MessageDigest> ancestorChainDigests =
+            new ConcurrentHashMap<>();
+
+    // Ancestor pom file -> its content. A pom is often found in
+    // several ancestor chains (e.g. the root pom), read it once.
+    private final Map<File, byte[]> ancestorPomContents =
+            new ConcurrentHashMap<>();
+
+    // Hashversion property name -> own hash of the modules
+    // hashed by the last computeHashVers.
+    final Map<String, String> ownHashes = new ConcurrentHashMap<>();
+
+    // Nullable. Only present during the computeHashVers
+    // when the fileCache is specified.
+    private FileDigestCache fileDigestCache;
+
+    // Nullable. Only present during the computeHashVers
+    // when the useGitIndex is specified.
+    private GitIndex gitIndex;
+
     /**
      * The dependency tree builder to use.
      */
     @Component(hint = "default")
-    private DependencyGraphBuilder dependencyGraphBuilder;
+    DependencyGraphBuilder dependencyGraphBuilder;
 
     @Inject
     MavenSession mavenSession;
@@ -111,6 +242,18 @@ public class HashVerMojo extends AbstractMojo {
                                               String extraHashData)
             throws MojoExecutionException, MojoFailureException
     {
+        // Taken before hashing, so that files modified during
+        // the hashing are noticed as changed after it.
+        Map<String, String> fingerprints;
+        try {
+            fingerprints = HashVerInputs.fingerprints(
+                    mavenSession.getProjects(),
+                    prj -> hashVerKey(prj, includeGroupId));
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error computing module input fingerprints", e);
+        }
+
         Map<String, String> hashVers = computeHashVers(mavenSession,
                                                        includeGroupId,
                                                        extraHashData);
@@ -124,6 +267,10 @@ public class HashVerMojo extends AbstractMojo {
 
         try {
             storeHashVers(hashVers);
+            HashVerInputs.store(new File(HASHVER_INPUTS_FILE),
+                                hashParams(includeGroupId, extraHashData),
+                                ownHashes,
+                                fingerprints);
         } catch (IOException e) {
             throw new MojoExecutionException("Error saving hashVers", e);
         }
@@ -131,43 +278,438 @@ public class HashVerMojo extends AbstractMojo {
         return hashVers;
     }
 
+    /**
+     * The parameters affecting the hashversions, as properties
+     * named like the parameter properties.
+     */
+    Properties hashParams(boolean includeGroupId, String extraHashData) {
+        Properties result = new Properties();
+        result.setProperty("includeGroupId", String.valueOf(includeGroupId));
+        result.setProperty("hashAlgorithm", hashAlgorithm.name());
+        if (extraHashData != null) {
+            result.setProperty("extraHashData", extraHashData);
+        }
+        if (fileCache != null) {
+            result.setProperty("hashverFileCache",
+                               fileCache.getAbsolutePath());
+        }
+        result.setProperty("hashverGitIndex", String.valueOf(useGitIndex));
+        result.setProperty("hashverComposeReactor",
+                           String.valueOf(composeReactorHashes));
+        result.setProperty("hashverMerkle", String.valueOf(merkle));
+        return result;
+    }
+
     protected Map<String, String> computeHashVers(MavenSession mavenSession,
                                                   boolean includeGroupId,
                                                   String extraHashData)
             throws MojoExecutionException
     {
+        return computeHashVers(mavenSession,
+                               includeGroupId,
+                               extraHashData,
+                               mavenSession.getProjects(),
+                               Collections.emptyMap());
+    }
+
+    /**
+     * Computes hashversions of the given modules only. Own hashes of the
+     * other reactor modules, needed for the dependency trees, are taken
+     * from the knownOwnHashes (hashversion property name -> own hash).
+     *
+     * In the composeReactorHashes mode all the modules must be given.
+     */
+    Map<String, String> computeHashVers(MavenSession mavenSession,
+                                        boolean includeGroupId,
+                                        String extraHashData,
+                                        List<MavenProject> modules,
+                                        Map<String, String> knownOwnHashes)
+            throws MojoExecutionException
+    {
+        List<MavenProject> projects = mavenSession.getProjects();
+        boolean partial = modules.size() < projects.size();
+        if (partial && composeReactorHashes) {
+            throw new IllegalArgumentException(
+                    "All the modules must be hashed in the compose mode");
+        }
+
+        try {
+            fileHasher = FileHasher.fromSystemProperties();
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        fileDigestCache = loadFileDigestCache(mavenSession);
+        merkleTree.clear();
+        merkleStats.clear();
+        if (merkle) {
+            merkleTime = System.currentTimeMillis();
+            loadPrevMerkleTree();
+        }
+        ancestorChainDigests.clear();
+        ancestorPomContents.clear();
+        ownHashes.clear();
+        gitIndex = loadGitIndex(mavenSession);
+
+        // The modules are hashed independently, each into its own digest,
+        // so the result does not depend on the number of threads.
+        List<String> moduleOwnHashes = mapInParallel(
+                modules,
+                availableThreads(threads),
+                MojoExecutionException.class,
+                prj -> {
+                    try {
+                        return ownHash(prj, extraHashData);
+                    } catch (IOException e) {
+                        throw new MojoExecutionException(
+                                "Error calculating module own hash: "
+                                        + prj.getName(),
+                                e);
+                    }
+                });
+
+        for (int i = 0; i < modules.size(); i++) {
+            ownHashes.put(hashVerKey(modules.get(i), includeGroupId),
+                          moduleOwnHashes.get(i));
+        }
         Map<String, String> ownHashByArtifact = new HashMap<>();
-        for (MavenProject prj : mavenSession.getProjects()) {
-            try {
-                ownHashByArtifact.put(
-                        ArtifactUtils.key(prj.getArtifact()),
-                        ownHash(prj, extraHashData));
-            } catch (IOException e) {
-                throw new MojoExecutionException(
-                        "Error calculating module own hash: " + prj.getName(),
-                        e);
+        for (MavenProject prj : projects) {
+            String key = hashVerKey(prj, includeGroupId);
+            String ownHash = ownHashes.containsKey(key)
+                    ? ownHashes.get(key)
+                    : knownOwnHashes.get(key);
+            if (ownHash != null) {
+                ownHashByArtifact.put(ArtifactUtils.key(prj.getArtifact()),
+                                      ownHash);
             }
         }
 
+        // The file cache and the merkle tree would
+        // only contain part of the modules.
+        if (partial) {
+            fileDigestCache = null;
+        } else {
+            saveFileDigestCache();
+        }
+        gitIndex = null;
+        if (merkle && !partial) {
+            saveMerkleTree();
+        }
+        prevMerkleTree = Collections.emptyMap();
+        prevMerkleStats = Collections.emptyMap();
+
+        RepositorySystemSession repositorySession =
+                concurrentSession(mavenSession.getRepositorySession());
+
+        if (composeReactorHashes) {
+            return composedHashVers(mavenSession,
+                                    repositorySession,
+                                    includeGroupId,
+                                    ownHashByArtifact,
+                                    extraHashData);
+        }
+
+        // Dependency trees of the modules are resolved and hashed
+        // independently, so the result does not depend on the number
+        // of threads either.
+        List<String> fullHashes = mapInParallel(
+                modules,
+                availableThreads(threads),
+                MojoExecutionException.class,
+                prj -> fullHash(prj,
+                                mavenSession,
+                                repositorySession,
+                                ownHashByArtifact::get,
+                                ownHashByArtifact.get(
+                                        ArtifactUtils.key(prj.getArtifact())),
+                                extraHashData));
+
         Map<String, String> hashVers = new HashMap<>();
-        for (MavenProject prj : mavenSession.getProjects()) {
-            try {
+        for (int i = 0; i < modules.size(); i++) {
+            hashVers.put(hashVerKey(modules.get(i), includeGroupId),
+                         fullHashes.get(i));
+        }
+        return hashVers;
+    }
+
+    /**
+     * Computes the hashversions bottom-up: the modules are processed
+     * in the reactor build order, and the dependency tree of every module
+     * is resolved without descending into the reactor dependencies.
+     * A reactor dependency is represented in the tree by its already
+     * computed full hashversion, which covers its own subtree.
+     *
+     * Modules of the same {@link #reactorLevels(ProjectDependencyGraph)
+     * level} are processed in parallel.
+     */
+    private Map<String, String> composedHashVers(
+            MavenSession mavenSession,
+            RepositorySystemSession repositorySession,
+            boolean includeGroupId,
+            Map<String, String> ownHashByArtifact,
+            String extraHashData)
+            throws MojoExecutionException
+    {
+        RepositorySystemSession prunedSession = reactorPruningSession(
+                repositorySession,
+                ownHashByArtifact.keySet());
+
+        // Only modified between the levels, in the maven thread.
+        Map<String, String> fullHashByArtifact = new HashMap<>();
+
+        Map<String, String> hashVers = new HashMap<>();
+        for (List<MavenProject> level
+                : reactorLevels(mavenSession.getProjectDependencyGraph()))
+        {
+            List<String> fullHashes = mapInParallel(
+                    level,
+                    availableThreads(threads),
+                    MojoExecutionException.class,
+                    prj -> {
+                        String key = ArtifactUtils.key(prj.getArtifact());
+                        String ownHash = ownHashByArtifact.get(key);
+                        Function<String, String> reactorHashes = artifactKey -> {
+                            if (artifactKey.equals(key)) {
+                                return ownHash;
+                            }
+                            String hash = fullHashByArtifact.get(artifactKey);
+                            if (hash == null
+                                    && ownHashByArtifact.containsKey(artifactKey))
+                            {
+                                throw new IllegalStateException(
+                                        "Reactor dependency " + artifactKey
+                                        + " of " + key + " is not hashed yet");
+                            }
+                            return hash;
+                        };
+                        return fullHash(prj,
+                                        mavenSession,
+                                        prunedSession,
+                                        reactorHashes,
+                                        ownHash,
+                                        extraHashData);
+                    });
+
+            for (int i = 0; i < level.size(); i++) {
+                MavenProject prj = level.get(i);
+                fullHashByArtifact.put(ArtifactUtils.key(prj.getArtifact()),
+                                       fullHashes.get(i));
                 hashVers.put(hashVerKey(prj, includeGroupId),
-                             fullHash(prj,
-                                      mavenSession,
-                                      dependencyGraphBuilder,
-                                      ownHashByArtifact,
-                                      extraHashData));
-            } catch (DependencyGraphBuilderException | IOException e) {
-                throw new MojoExecutionException(
-                        "prjVersion() failed for " + prj.getName(),
-                        e);
+                             fullHashes.get(i));
             }
         }
-
         return hashVers;
     }
 
+    /**
+     * Splits the reactor projects into levels: a project belongs
+     * to the level following the highest level of its upstream projects.
+     * So projects of the same level do not depend on each other
+     * and only depend on projects of the previous levels.
+     */
+    static List<List<MavenProject>> reactorLevels(ProjectDependencyGraph graph) {
+        Map<MavenProject, Integer> levelByProject = new HashMap<>();
+        List<List<MavenProject>> levels = new ArrayList<>();
+        for (MavenProject prj : graph.getSortedProjects()) {
+            int level = 0;
+            for (MavenProject upstream : graph.getUpstreamProjects(prj, false)) {
+                Integer upstreamLevel = levelByProject.get(upstream);
+                if (upstreamLevel != null) {
+                    level = Math.max(level, upstreamLevel + 1);
+                }
+            }
+            levelByProject.put(prj, level);
+            if (level == levels.size()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(level).add(prj);
+        }
+        return levels;
+    }
+
+    /**
+     * Dependency collection and resolution from several threads share
+     * the session cache (descriptors, versions, etc). Make sure it's present.
+     */
+    static RepositorySystemSession concurrentSession(
+            RepositorySystemSession session)
+    {
+        if (session.getCache() != null) {
+            return session;
+        }
+        DefaultRepositorySystemSession result =
+                new DefaultRepositorySystemSession(session);
+        result.setCache(new DefaultRepositoryCache());
+        return result;
+    }
+
+    static RepositorySystemSession reactorPruningSession(
+            RepositorySystemSession session,
+            Set<String> reactorArtifactKeys)
+    {
+        DefaultRepositorySystemSession result =
+                new DefaultRepositorySystemSession(session);
+        result.setDependencySelector(
+                new ReactorPruningDependencySelector(
+                        session.getDependencySelector(),
+                        reactorArtifactKeys));
+        return result;
+    }
+
+    /**
+     * Selects the same dependencies as the delegate, except for
+     * the transitive dependencies of reactor artifacts.
+     */
+    static class ReactorPruningDependencySelector implements DependencySelector {
+
+        // Rejects everything
+        private static final DependencySelector NONE = new DependencySelector() {
+            @Override
+            public boolean selectDependency(
+                    org.eclipse.aether.graph.Dependency dependency)
+            {
+                return false;
+            }
+
+            @Override
+            public DependencySelector deriveChildSelector(
+                    DependencyCollectionContext context)
+            {
+                return this;
+            }
+        };
+
+        // Nullable, meaning all dependencies are selected
+        private final DependencySelector delegate;
+        private final Set<String> reactorArtifactKeys;
+
+        ReactorPruningDependencySelector(DependencySelector delegate,
+                                         Set<String> reactorArtifactKeys)
+        {
+            this.delegate = delegate;
+            this.reactorArtifactKeys = reactorArtifactKeys;
+        }
+
+        @Override
+        public boolean selectDependency(
+                org.eclipse.aether.graph.Dependency dependency)
+        {
+            return delegate == null || delegate.selectDependency(dependency);
+        }
+
+        @Override
+        public DependencySelector deriveChildSelector(
+                DependencyCollectionContext context)
+        {
+            org.eclipse.aether.graph.Dependency dependency =
+                    context.getDependency();
+            if (dependency != null) {
+                org.eclipse.aether.artifact.Artifact a = dependency.getArtifact();
+                String key = ArtifactUtils.key(a.getGroupId(),
+                                               a.getArtifactId(),
+                                               a.getVersion());
+                if (reactorArtifactKeys.contains(key)) {
+                    return NONE;
+                }
+            }
+            DependencySelector childDelegate = delegate == null
+                    ? null
+                    : delegate.deriveChildSelector(context);
+            if (childDelegate == delegate) {
+                return this;
+            }
+            return new ReactorPruningDependencySelector(childDelegate,
+                                                        reactorArtifactKeys);
+        }
+
+        // The selectors are used by aether as cache keys,
+        // thus equals and hashCode.
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ReactorPruningDependencySelector that =
+                    (ReactorPruningDependencySelector) o;
+            return Objects.equals(delegate, that.delegate)
+                    && reactorArtifactKeys.equals(that.reactorArtifactKeys);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(delegate, reactorArtifactKeys);
+        }
+    }
+
+    private FileDigestCache loadFileDigestCache(MavenSession mavenSession)
+            throws MojoExecutionException
+    {
+        if (fileCache == null) {
+            return null;
+        }
+        File baseDir = new File(mavenSession.getExecutionRootDirectory());
+        if (fileCacheRehash) {
+            logInfo("Ignoring the existing file digest cache " + fileCache);
+            return FileDigestCache.empty(baseDir, fileHasher);
+        }
+        try {
+            return FileDigestCache.load(fileCache, baseDir, fileHasher);
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error loading file digest cache " + fileCache, e);
+        }
+    }
+
+    private GitIndex loadGitIndex(MavenSession mavenSession)
+            throws MojoExecutionException
+    {
+        if (!useGitIndex) {
+            return null;
+        }
+        File rootDir = new File(mavenSession.getExecutionRootDirectory());
+        try {
+            GitIndex index = GitIndex.find(rootDir);
+            if (index == null) {
+                logWarn("No git index found for " + rootDir
+                        + ", all the source files will be read.");
+                return null;
+            }
+            String conversion = index.contentConversion();
+            if (conversion != null) {
+                // The index blob ids describe the converted content,
+                // using them would make the hashversions differ from
+                // the ones computed by reading the files.
+                logWarn("Not using the git index, git converts the file"
+                        + " content when staging: " + conversion
+                        + ". All the source files will be read.");
+                return null;
+            }
+            logInfo("Git index entries: " + index.size());
+            return index;
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error reading git index for " + rootDir, e);
+        }
+    }
+
+    private void saveFileDigestCache() throws MojoExecutionException {
+        if (fileDigestCache == null) {
+            return;
+        }
+        logInfo("File digest cache hits: " + fileDigestCache.hits
+                + ", misses: " + fileDigestCache.misses);
+        try {
+            fileDigestCache.save(fileCache);
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error saving file digest cache " + fileCache, e);
+        }
+        fileDigestCache = null;
+    }
+
     protected void logInfo(String msg) {
         getLog().info(LOG_PREFIX + msg);
     }
@@ -181,9 +723,16 @@ public class HashVerMojo extends AbstractMojo {
     }
 
     protected String hashVerKey(MavenProject prj, boolean includeGroupId) {
+        return hashVerKey(prj.getGroupId(), prj.getArtifactId(), includeGroupId);
+    }
+
+    static String hashVerKey(String groupId,
+                             String artifactId,
+                             boolean includeGroupId)
+    {
         return includeGroupId
-                ? prj.getGroupId() + "." + prj.getArtifactId() + ".version"
-                : prj.getArtifactId() + ".version";
+                ? groupId + "." + artifactId + ".version"
+                : artifactId + ".version";
     }
 
     private void storeHashVers(Map<String, String> hashVers)
@@ -322,6 +871,10 @@ public class HashVerMojo extends AbstractMojo {
     {
         File basedir = module.getBasedir();
 
+        if (merkle) {
+            return merkleOwnHash(module, extraHashData);
+        }
+
         MessageDigest digest = newDigest(extraHashData);
         fileHash(new File(basedir, "pom.xml"), "", digest);
         File srcDir = new File(basedir, "src");
@@ -333,6 +886,207 @@ public class HashVerMojo extends AbstractMojo {
         return str(digest);
     }
 
+    // In the merkle mode the hash of a directory is computed from
+    // the (type, name, hash) of its children, where the hash of a file
+    // is its content digest (git blob id) and the hash of a sub directory
+    // is computed recursively the same way. Like in a git tree object.
+    //
+    // The module own hash is computed the same way from the pom.xml
+    // and the src/ directory (as if the module contained only them),
+    // plus the extraHashData.
+    //
+    // The directory hashes are saved to the MERKLE_FILE, so tooling
+    // can find what subtrees changed by comparing two such files.
+    //
+    // The hashes are also reused by the next run: a directory hash
+    // is taken from the previous MERKLE_FILE without computing the
+    // digests of its files if the names, sizes, modification times
+    // and file keys (inodes) of the directory children are the same
+    // as recorded in the MERKLE_STAT_FILE, and the hashes of all its
+    // sub directories are unchanged. So after a file change only the
+    // directories on the path from the file to the module root are
+    // recomputed. The stat data is trusted the same way as in
+    // the FileDigestCache, including the racy window.
+    private String merkleOwnHash(MavenProject module,
+                                 // nullable
+                                 String extraHashData)
+            throws IOException
+    {
+        File basedir = module.getBasedir();
+        String modulePath = relativeToRoot(basedir);
+
+        MessageDigest digest = newDigest(extraHashData);
+        merkleEntry(digest, 'f', "pom.xml",
+                    fileDigest(new File(basedir, "pom.xml")));
+        File srcDir = new File(basedir, "src");
+        if (srcDir.exists()) {
+            merkleEntry(digest, 'd', "src",
+                        merkleDirectoryHash(srcDir, modulePath + "/src"));
+        }
+        byte[] result = digest.digest();
+        merkleTree.put(modulePath, str(result));
+        return str(result);
+    }
+
+    private byte[] merkleDirectoryHash(File dir, String path)
+            throws IOException
+    {
+        logDebug("hashing directory: " + dir.getPath());
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException(dir.getPath() + " is not a directory");
+        }
+        // case sensitive sorting, see directoryHash
+        Arrays.sort(children, Comparator.comparing(File::getName));
+
+        // Sub directories are processed first, each of them
+        // may be reused or not independently of this directory.
+        byte[][] subdirHashes = new byte[children.length][];
+        boolean reusable = prevMerkleTree.containsKey(path);
+        StringBuilder stat = new StringBuilder();
+        for (int i = 0; i < children.length; i++) {
+            File child = children[i];
+            if (child.isDirectory()) {
+                String childPath = path + PATH_SEPARATOR + child.getName();
+                subdirHashes[i] = merkleDirectoryHash(child, childPath);
+                reusable &= str(subdirHashes[i])
+                        .equals(prevMerkleTree.get(childPath));
+                stat.append("d ").append(child.getName()).append('\n');
+            } else {
+                BasicFileAttributes attrs = Files.readAttributes(
+                        child.toPath(), BasicFileAttributes.class);
+                long mtime = attrs.lastModifiedTime().toMillis();
+                reusable &= mtime < prevMerkleTime
+                        - FileDigestCache.RACY_WINDOW_MILLIS;
+                stat.append("f ").append(child.getName())
+                        .append(' ').append(attrs.size())
+                        .append(' ').append(attrs.lastModifiedTime()
+                                                 .to(TimeUnit.NANOSECONDS))
+                        .append(' ').append(FileDigestCache.fileKey(attrs))
+                        .append('\n');
+            }
+        }
+        String statHash = str(stringDigest(stat.toString()));
+        merkleStats.put(path, statHash);
+
+        byte[] result;
+        if (reusable && statHash.equals(prevMerkleStats.get(path))) {
+            result = Base64.getUrlDecoder().decode(prevMerkleTree.get(path));
+        } else {
+            MessageDigest digest = hashAlgorithm.newDigest();
+            for (int i = 0; i < children.length; i++) {
+                File child = children[i];
+                if (subdirHashes[i] != null) {
+                    merkleEntry(digest, 'd', child.getName(), subdirHashes[i]);
+                } else {
+                    merkleEntry(digest, 'f', child.getName(), fileDigest(child));
+                }
+            }
+            result = digest.digest();
+        }
+        merkleTree.put(path, str(result));
+        return result;
+    }
+
+    private static byte[] stringDigest(String s) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGO)
+                    .digest(s.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(
+                    "Unexpected: " + DIGEST_ALGO + " is not supported by Java",
+                    e);
+        }
+    }
+
+    private static void merkleEntry(MessageDigest digest,
+                                    char type,
+                                    String name,
+                                    byte[] hash)
+    {
+        digest.update((type + " " + name + "\0").getBytes(UTF_8));
+        digest.update(hash);
+    }
+
+    private String relativeToRoot(File dir) {
+        Path root = new File(mavenSession.getExecutionRootDirectory())
+                .toPath().toAbsolutePath().normalize();
+        Path path = dir.toPath().toAbsolutePath().normalize();
+        String relative = path.startsWith(root)
+                ? root.relativize(path).toString()
+                : path.toString();
+        return relative.isEmpty()
+                ? "."
+                : relative.replace(File.separatorChar, '/');
+    }
+
+    private void saveMerkleTree() throws MojoExecutionException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> e : merkleTree.entrySet()) {
+            content.append(e.getValue()).append(' ').append(e.getKey())
+                    .append('\n');
+        }
+        StringBuilder stats = new StringBuilder();
+        stats.append("hashAlgorithm ").append(hashAlgorithm.name()).append('\n');
+        stats.append("time ").append(merkleTime).append('\n');
+        for (Map.Entry<String, String> e : merkleStats.entrySet()) {
+            stats.append(e.getValue()).append(' ').append(e.getKey())
+                    .append('\n');
+        }
+        try {
+            ensureParentDirExists(MERKLE_FILE);
+            saveToFile(new File(MERKLE_FILE), content.toString());
+            saveToFile(new File(MERKLE_STAT_FILE), stats.toString());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error saving " + MERKLE_FILE, e);
+        }
+        logInfo("Saved directory hashes to " + MERKLE_FILE);
+    }
+
+    private void loadPrevMerkleTree() {
+        prevMerkleTree = Collections.emptyMap();
+        prevMerkleStats = Collections.emptyMap();
+        File treeFile = new File(MERKLE_FILE);
+        File statFile = new File(MERKLE_STAT_FILE);
+        if (!treeFile.isFile() || !statFile.isFile()) {
+            return;
+        }
+        try {
+            List<String> stats = Files.readAllLines(statFile.toPath(), UTF_8);
+            if (stats.size() < 2
+                    || !stats.get(0).equals("hashAlgorithm " + hashAlgorithm.name())
+                    || !stats.get(1).startsWith("time "))
+            {
+                logInfo("Not reusing directory hashes from " + MERKLE_FILE
+                        + ", they were computed with other parameters");
+                return;
+            }
+            prevMerkleTime = Long.parseLong(stats.get(1).substring(5));
+            prevMerkleStats = parseMerkleLines(
+                    stats.subList(2, stats.size()));
+            prevMerkleTree = parseMerkleLines(
+                    Files.readAllLines(treeFile.toPath(), UTF_8));
+        } catch (IOException | RuntimeException e) {
+            logWarn("Ignoring the previous directory hashes " + MERKLE_FILE
+                    + ": " + e);
+            prevMerkleTree = Collections.emptyMap();
+            prevMerkleStats = Collections.emptyMap();
+        }
+    }
+
+    // "<hash> <path>" lines -> map path to hash
+    private static Map<String, String> parseMerkleLines(List<String> lines) {
+        Map<String, String> result = new HashMap<>(lines.size() * 2);
+        for (String line : lines) {
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                throw new IllegalArgumentException("Invalid line: " + line);
+            }
+            result.put(line.substring(space + 1), line.substring(0, space));
+        }
+        return result;
+    }
+
     // Directory hash calculation includes not only content, but also
     // paths of all files and sub directories in it.
     // We use not just names, but paths relative to module root
@@ -381,33 +1135,30 @@ public class HashVerMojo extends AbstractMojo {
         }
     }
 
-    private static void fileHash(File f,
-                                 String parentPath,
-                                 MessageDigest digest)
+    private void fileHash(File f,
+                          String parentPath,
+                          MessageDigest digest)
             throws IOException
     {
         String myPath = parentPath + PATH_SEPARATOR + f.getName();
         digest.update(myPath.getBytes(UTF_8));
-        fileContentHash(f, digest);
+        if (fileDigestCache != null || useGitIndex) {
+            digest.update(fileDigest(f));
+        } else {
+            fileHasher.hash(f, digest);
+        }
     }
 
-    private static void fileContentHash(File f, MessageDigest digest)
-            throws IOException
-    {
-        try (InputStream in = new FileInputStream(f)) {
-            // TODO: use a single shared buf to avoid constant allocation and gc
-            byte[] buf = new byte[10240];
-            int len;
-            while ((len = in.read(buf)) != -1) {
-                // To check hashing CPU cost run the mojo one time normally
-                // and one time with this property set. The time difference
-                // is the CPU cost. In my experiment with maven-wagon
-                // there were no noticeable difference.
-                if (System.getProperty(hashverDigestSkip.name()) == null) {
-                    digest.update(buf, 0, len);
-                }
+    private byte[] fileDigest(File f) throws IOException {
+        if (gitIndex != null) {
+            byte[] blobId = gitIndex.cleanBlobId(f);
+            if (blobId != null) {
+                return blobId;
             }
         }
+        return fileDigestCache != null
+                ? fileDigestCache.fileDigest(f)
+                : FileDigestCache.blobDigest(f, f.length(), fileHasher);
     }
 
     /**
@@ -416,140 +1167,159 @@ public class HashVerMojo extends AbstractMojo {
      */
     enum ExtraProperties {
         hashverDigestSkip,
+        hashverMmapThreshold,
         hashverAncestorPomsForRelaxedHashing,
         hashverAncestorPomsIgnoreErrors,
         hashVerSnapshotDependencyMode,
     }
 
+    /**
+     * @param reactorHashes for an artifact key returns the hash
+     *                      representing the artifact in the dependency
+     *                      tree if the artifact is a reactor module,
+     *                      otherwise null
+     */
     String fullHash(MavenProject prj,
                     MavenSession session,
-                    DependencyGraphBuilder dependencyGraphBuilder,
-                    Map<String, String> ownHashByArtifact,
+                    RepositorySystemSession repositorySession,
+                    Function<String, String> reactorHashes,
+                    String ownHash,
                     // nullable
                     String extraHashData)
-            throws DependencyGraphBuilderException,
-                    IOException,
-                    MojoExecutionException
+            throws MojoExecutionException
     {
+        if (ownHash == null) {
+            throw new RuntimeException(
+                    "Can find own hash for module " + prj.getName());
+        }
+
         ProjectBuildingRequest buildingRequest =
                 new DefaultProjectBuildingRequest(
                         session.getProjectBuildingRequest());
 
         buildingRequest.setProject(prj);
+        buildingRequest.setRepositorySession(repositorySession);
 
-        DependencyNode rootNode = dependencyGraphBuilder.buildDependencyGraph(
-                buildingRequest,
-                null,
-                session.getProjects());
-
-        String ownHash = ownHashByArtifact.get(
-                ArtifactUtils.key(prj.getArtifact()));
-        if (ownHash == null) {
-            throw new RuntimeException(
-                    "Can find own hash for module " + prj.getName());
+        try {
+            DependencyNode rootNode = dependencyGraphBuilder.buildDependencyGraph(
+                    buildingRequest,
+                    null,
+                    session.getProjects());
+
+            MessageDigest depTreeDigest = ancestorPomsDigest(prj, extraHashData);
+            dependencyTreeHash(rootNode, reactorHashes, depTreeDigest);
+
+            return ownHash + "." + str(depTreeDigest)
+                    + hashAlgorithm.hashVerSuffix();
+        } catch (DependencyGraphBuilderException | IOException e) {
+            throw new MojoExecutionException(
+                    "prjVersion() failed for " + prj.getName(),
+                    e);
         }
-
-        MessageDigest depTreeDigest = newDigest(extraHashData);
-        ancestorPomsHash(prj, depTreeDigest);
-        dependencyTreeHash(rootNode, ownHashByArtifact, depTreeDigest);
-
-        return ownHash + "." + str(depTreeDigest);
     }
 
     private static final Base64.Encoder BASE_64
             = Base64.getEncoder().withoutPadding();
 
-    // Includes hashversion into the representation of the dependency tree
-    // elements that are part of the reactor.
-    static class MySerializingDependencyNodeVisitor 
-            extends SerializingDependencyNodeVisitor 
-    {
-        Map<String, String> ownHashByArtifact;
-
-        public MySerializingDependencyNodeVisitor(
-                Writer writer,
-                Map<String, String> ownHashByArtifact)
-        {
-            super(writer, SerializingDependencyNodeVisitor.STANDARD_TOKENS);
-            this.ownHashByArtifact = ownHashByArtifact;
-        }
-
-        @Override
-        public boolean visit(DependencyNode node) {
-            return super.visit(new DependencyNode() {
+    // Feeds to a digest the same text as the SerializingDependencyNodeVisitor
+    // with STANDARD_TOKENS produces, but includes hashversion into
+    // the representation of the dependency tree elements that are
+    // part of the reactor.
+    //
+    // The text is encoded directly into the digest, without building
+    // it in memory.
+    //
+    // Earlier versions of hashver used a SerializingDependencyNodeVisitor
+    // subclass which passed to the super.visit a fresh wrapper object
+    // for every node. Since the wrapper is not found among its parent
+    // children, the visitor never considered the node as the last child,
+    // and always used the "+- " indent for the node itself (the
+    // fill indents of the ancestors are correct). We preserve that
+    // to keep the hashversions unchanged.
+    static class DependencyTreeSerializer {
 
-                @Override
-                public Artifact getArtifact() {
-                    return node.getArtifact();
-                }
+        private static final SerializingDependencyNodeVisitor.GraphTokens TOKENS =
+                SerializingDependencyNodeVisitor.STANDARD_TOKENS;
 
-                @Override
-                public List<DependencyNode> getChildren() {
-                    return node.getChildren();
-                }
+        // As used by PrintWriter.println in the SerializingDependencyNodeVisitor
+        private static final String LINE_SEPARATOR = System.lineSeparator();
 
-                @Override
-                public boolean accept(DependencyNodeVisitor visitor) {
-                    return node.accept(visitor);
-                }
+        private final Utf8DigestEncoder out = new Utf8DigestEncoder(8192);
 
-                @Override
-                public DependencyNode getParent() {
-                    return node.getParent();
-                }
+        // isLast[d] - whether the ancestor at depth d of the current node
+        // is the last child of its parent
+        private boolean[] isLast = new boolean[16];
 
-                @Override
-                public String getPremanagedVersion() {
-                    return node.getPremanagedVersion();
-                }
+        private Function<String, String> reactorHashes;
 
-                @Override
-                public String getPremanagedScope() {
-                    return node.getPremanagedScope();
-                }
+        void serialize(DependencyNode root,
+                       Function<String, String> reactorHashes,
+                       MessageDigest digest)
+        {
+            this.reactorHashes = reactorHashes;
+            out.reset(digest);
+            try {
+                serialize(root, 0);
+            } finally {
+                out.flush();
+                this.reactorHashes = null;
+            }
+        }
 
-                @Override
-                public String getVersionConstraint() {
-                    return node.getVersionConstraint();
-                }
+        private void serialize(DependencyNode node, int depth) {
+            for (int i = 1; i < depth; i++) {
+                out.append(TOKENS.getFillIndent(isLast[i]));
+            }
+            if (depth > 0) {
+                out.append(TOKENS.getNodeIndent(false));
+            }
+            appendNodeString(node);
+            out.append(LINE_SEPARATOR);
 
-                @Override
-                public String toNodeString() {
-                    String ownHash = ownHashByArtifact.get(
-                            ArtifactUtils.key(node.getArtifact()));
+            List<DependencyNode> children = node.getChildren();
+            int childDepth = depth + 1;
+            if (childDepth >= isLast.length) {
+                isLast = Arrays.copyOf(isLast, isLast.length * 2);
+            }
+            for (int i = 0, size = children.size(); i < size; i++) {
+                isLast[childDepth] = (i == size - 1);
+                serialize(children.get(i), childDepth);
+            }
+        }
 
-                    if (ownHash != null) {
-                        return hashVerNodeString(node, ownHash);
-                    } else {
-                        if (node.getArtifact().isSnapshot()) {
+        private void appendNodeString(DependencyNode node) {
+            String reactorHash = reactorHashes.apply(
+                    ArtifactUtils.key(node.getArtifact()));
 
-                            final String ignore = "ignore";
-                            if (!ignore.equals(
-                                    System.getProperty(hashVerSnapshotDependencyMode.name())))
-                            {
-                                String errMsg = "You have a -SNAPSHOT "
-                                    + "dependency in the dependency tree, "
-                                    + "which is not very consistent with "
-                                    + "the idea of immutable hash versions: "
-                                    + node.getArtifact()
-                                    + ". Specify -D"
-                                    + hashVerSnapshotDependencyMode.name()
-                                    + "=" + ignore
-                                    + " if you are sure. See also "
-                                    + "https://github.com/avodonosov/hashver-maven-plugin/issues/7";
-
-                                throw new RuntimeException(errMsg);
-                            }
-                        }
-                        return node.toNodeString();
-                    }
-                }
+            if (reactorHash != null) {
+                appendHashVerNodeString(out, node, reactorHash);
+            } else {
+                checkSnapshot(node);
+                out.append(node.toNodeString());
+            }
+        }
+    }
 
-                @Override
-                public Boolean getOptional() {
-                    return node.getOptional();
-                }
-            });
+    private static void checkSnapshot(DependencyNode node) {
+        if (node.getArtifact().isSnapshot()) {
+
+            final String ignore = "ignore";
+            if (!ignore.equals(
+                    System.getProperty(hashVerSnapshotDependencyMode.name())))
+            {
+                String errMsg = "You have a -SNAPSHOT "
+                    + "dependency in the dependency tree, "
+                    + "which is not very consistent with "
+                    + "the idea of immutable hash versions: "
+                    + node.getArtifact()
+                    + ". Specify -D"
+                    + hashVerSnapshotDependencyMode.name()
+                    + "=" + ignore
+                    + " if you are sure. See also "
+                    + "https://github.com/avodonosov/hashver-maven-plugin/issues/7";
+
+                throw new RuntimeException(errMsg);
+            }
         }
     }
 
@@ -570,36 +1340,70 @@ public class HashVerMojo extends AbstractMojo {
      * and the "premanaged" properties can also include the
      * *.version property expression.
      */
-    private static String hashVerNodeString(DependencyNode node, String ownHash) {
+    static void appendHashVerNodeString(Utf8DigestEncoder result,
+                                        DependencyNode node,
+                                        String ownHash)
+    {
         // assert ownHash != null;
-        
-        StringBuilder result = new StringBuilder();
 
         Artifact artifact = node.getArtifact();
 
         if (artifact.getGroupId() != null) {
             result.append(artifact.getGroupId());
-            result.append(":");
+            result.append(':');
         }
         result.append(artifact.getArtifactId());
-        result.append(":");
+        result.append(':');
         result.append(artifact.getType());
         if (artifact.hasClassifier()) {
-            result.append(":");
+            result.append(':');
             result.append(artifact.getClassifier());
         }
-        result.append(":");
+        result.append(':');
         result.append(ownHash);
         if (artifact.getScope() != null ) {
-            result.append( ":" );
+            result.append(':');
             result.append(artifact.getScope());
         }
         
         if (node.getOptional() != null && node.getOptional()) {
             result.append(" (optional) ");
         }
+    }
+
+    /**
+     * Returns a new digest fed with the extraHashData and the poms
+     * of all the project ancestors, starting from the parent.
+     */
+    private MessageDigest ancestorPomsDigest(MavenProject prj,
+                                             // nullable
+                                             String extraHashData)
+            throws IOException, MojoExecutionException
+    {
+        MavenProject parent = prj.getParent();
+        if (parent == null) {
+            return newDigest(extraHashData);
+        }
 
-        return result.toString();
+        String parentKey = ArtifactUtils.key(parent.getGroupId(),
+                                             parent.getArtifactId(),
+                                             parent.getVersion());
+        MessageDigest chainDigest = ancestorChainDigests.get(parentKey);
+        if (chainDigest == null) {
+            chainDigest = newDigest(extraHashData);
+            ancestorPomsHash(prj, chainDigest);
+            // If another thread was quicker, its result is the same.
+            ancestorChainDigests.putIfAbsent(parentKey, chainDigest);
+        }
+        try {
+            // The memoized digests are never updated, only cloned,
+            // so concurrent cloning is safe.
+            return (MessageDigest) chainDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(
+                    "The digest is not cloneable: " + chainDigest.getAlgorithm(),
+                    e);
+        }
     }
 
     private void ancestorPomsHash(MavenProject prj,
@@ -616,13 +1420,6 @@ public class HashVerMojo extends AbstractMojo {
         // properties allowing to not fail in case of parent pom
         // hashing problems.
 
-        // TODO: prevent repeated hashing of the same pom.xml
-        //      (when it's in the ancestor chains of several projects).
-        //      Not super important, as hashing the same pom files even
-        //      couple hundred times (for projects with hundreds of modules)
-        //      is quick and constitutes usually a tiny fraction of the source
-        //      code files we hash.
-
         MavenProject parent = prj.getParent();
         Artifact parentArtifact = prj.getParentArtifact();
         while (parent != null) {
@@ -663,7 +1460,10 @@ public class HashVerMojo extends AbstractMojo {
                             + hashverAncestorPomsIgnoreErrors + " property.");
                 }
             } else {
-                fileContentHash(pomFile, digest);
+                byte[] content = ancestorPomContent(pomFile);
+                if (!fileHasher.skipDigest) {
+                    digest.update(content);
+                }
             }
 
             parentArtifact = parent.getParentArtifact();
@@ -671,6 +1471,15 @@ public class HashVerMojo extends AbstractMojo {
         }
     }
 
+    private byte[] ancestorPomContent(File pomFile) throws IOException {
+        byte[] content = ancestorPomContents.get(pomFile);
+        if (content == null) {
+            content = Files.readAllBytes(pomFile.toPath());
+            ancestorPomContents.putIfAbsent(pomFile, content);
+        }
+        return content;
+    }
+
     static boolean csvListMember(/* non-null */String elem,
                                  /* nullable */String csvList)
     {
@@ -685,39 +1494,72 @@ public class HashVerMojo extends AbstractMojo {
         return false;
     }
 
-    private static void dependencyTreeHash(DependencyNode theRootNode,
-                                           Map<String, String> ownHashByArtifact,
-                                           MessageDigest digest)
-    {
-        StringWriter writer = new StringWriter();
-
-        DependencyNodeVisitor visitor =
-                new MySerializingDependencyNodeVisitor(writer,
-                        ownHashByArtifact);
-        theRootNode.accept(visitor);
-
-        String tree = writer.toString();
+    private static final ThreadLocal<DependencyTreeSerializer> TREE_SERIALIZER =
+            ThreadLocal.withInitial(DependencyTreeSerializer::new);
 
-        digest.update(tree.getBytes(UTF_8));
+    static void dependencyTreeHash(DependencyNode theRootNode,
+                                   Function<String, String> reactorHashes,
+                                   MessageDigest digest)
+    {
+        TREE_SERIALIZER.get().serialize(theRootNode, reactorHashes, digest);
     }
 
     private static String str(MessageDigest digest) {
-        return BASE_64.encodeToString(digest.digest())
+        return str(digest.digest());
+    }
+
+    private static String str(byte[] digest) {
+        return BASE_64.encodeToString(digest)
                 .replaceAll("\\+", "-")
                 .replaceAll("/", "_");
     }
 
-    private static MessageDigest newDigest(String extraHashData) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGO);
-            if (extraHashData != null) {
-                digest.update(extraHashData.getBytes(UTF_8));
+    private MessageDigest newDigest(String extraHashData) {
+        MessageDigest digest = hashAlgorithm.newDigest();
+        if (extraHashData != null) {
+            digest.update(extraHashData.getBytes(UTF_8));
+        }
+        return digest;
+    }
+
+    /**
+     * The digest algorithms supported for hashversions.
+     */
+    enum HashAlgorithm {
+        sha1(DIGEST_ALGO, ""),
+        sha256("SHA-256", "sha256"),
+        murmur3(Murmur3Digest.ALGORITHM, "mm3");
+
+        final String javaName;
+
+        /**
+         * Appended to the hashversions to ensure hashversions
+         * produced by different algorithms never collide.
+         * Empty for the default algorithm, for compatibility with
+         * hashversions generated by earlier versions of the plugin.
+         */
+        final String id;
+
+        HashAlgorithm(String javaName, String id) {
+            this.javaName = javaName;
+            this.id = id;
+        }
+
+        MessageDigest newDigest() {
+            if (this == murmur3) {
+                return new Murmur3Digest();
             }
-            return digest;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(
-                    "Unexpected: " + DIGEST_ALGO + " is not supported by Java",
-                    e);
+            try {
+                return MessageDigest.getInstance(javaName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(
+                        "Unexpected: " + javaName + " is not supported by Java",
+                        e);
+            }
+        }
+
+        String hashVerSuffix() {
+            return id.isEmpty() ? "" : "." + id;
         }
     }
 }
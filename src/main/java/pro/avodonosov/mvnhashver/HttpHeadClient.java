@@ -0,0 +1,223 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.repository.Authentication;
+import org.eclipse.aether.repository.AuthenticationContext;
+import org.eclipse.aether.repository.RemoteRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.subUrl;
+
+/**
+ * Performs HTTP HEAD requests to remote repositories, shared
+ * by all the existence checks of a session.
+ *
+ * <p>Connections are kept alive and reused by subsequent requests
+ * to the same host (the JDK keeps up to http.maxConnections idle
+ * connections per host, 5 by default). For that we never call
+ * HttpURLConnection.disconnect() and always consume the response.
+ *
+ * <p>The proxy and the credentials of a repository are taken from
+ * the repository itself, or, if absent, from the selectors of the
+ * RepositorySystemSession (i.e. from the Maven settings),
+ * and are computed once per repository. Without a proxy in the settings
+ * the JVM proxy configuration applies (the http.proxyHost and similar
+ * properties, the default ProxySelector).
+ *
+ * <p>HTTPS requests through a proxy requiring authentication are not
+ * supported, see {@link #canHead(RemoteRepository)}.
+ *
+ * <p>The instances are thread safe.
+ */
+class HttpHeadClient {
+
+    private final RepositorySystemSession session;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    // repository id + url -> how to connect to it
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    HttpHeadClient(RepositorySystemSession session,
+                   int connectTimeoutMillis,
+                   int readTimeoutMillis)
+    {
+        this.session = session;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    static boolean supports(RemoteRepository repo) {
+        String protocol = repo.getProtocol();
+        return "http".equalsIgnoreCase(protocol)
+                || "https".equalsIgnoreCase(protocol);
+    }
+
+    /**
+     * Whether the {@link #head(RemoteRepository, String)} can be used
+     * for the repository.
+     *
+     * <p>False for HTTPS repositories accessed through a proxy with
+     * credentials. The HttpURLConnection sends the request headers
+     * set by us inside the CONNECT tunnel, i.e. to the target server
+     * instead of the proxy, and the proxy credentials for the tunnel
+     * can only be provided by the JVM-wide Authenticator (moreover,
+     * since JDK 8u111 the Basic scheme is disabled for tunneling
+     * by the jdk.http.auth.tunneling.disabledSchemes property).
+     * Use the repository connector for such repositories.
+     */
+    boolean canHead(RemoteRepository repo) {
+        if (!supports(repo)) {
+            return false;
+        }
+        Target target = target(repo);
+        return !(target.proxyAuthorization != null
+                && "https".equalsIgnoreCase(repo.getProtocol()));
+    }
+
+    /**
+     * Returns the response code of HTTP HEAD for the path
+     * relative to the repository URL.
+     *
+     * @throws IllegalArgumentException if the repository
+     *         is not {@link #canHead(RemoteRepository) supported}
+     */
+    int head(RemoteRepository repo, String path) throws IOException {
+        if (!canHead(repo)) {
+            throw new IllegalArgumentException(
+                    "HTTP HEAD is not supported for " + repo);
+        }
+        Target target = target(repo);
+
+        URL url = new URL(subUrl(repo.getUrl(), path));
+        HttpURLConnection connection = (HttpURLConnection)
+                (target.proxy == null
+                         ? url.openConnection()
+                         : url.openConnection(target.proxy));
+        connection.setRequestMethod("HEAD");
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setUseCaches(false);
+        if (target.authorization != null) {
+            connection.setRequestProperty("Authorization",
+                                          target.authorization);
+        }
+        if (target.proxyAuthorization != null) {
+            connection.setRequestProperty("Proxy-Authorization",
+                                          target.proxyAuthorization);
+        }
+
+        int code = connection.getResponseCode();
+        // A HEAD response has no body, but some servers send
+        // one anyway with error responses. Read it out, otherwise
+        // the connection is not returned to the keep-alive cache.
+        try (InputStream err = connection.getErrorStream()) {
+            if (err != null) {
+                byte[] buf = new byte[4096];
+                while (err.read(buf) != -1) {
+                    // skip
+                }
+            }
+        }
+        return code;
+    }
+
+    private static class Target {
+        // null - the JVM proxy configuration
+        final Proxy proxy;
+        // nullable
+        final String authorization;
+        // nullable
+        final String proxyAuthorization;
+
+        Target(Proxy proxy, String authorization, String proxyAuthorization) {
+            this.proxy = proxy;
+            this.authorization = authorization;
+            this.proxyAuthorization = proxyAuthorization;
+        }
+    }
+
+    private Target target(RemoteRepository repo) {
+        return targets.computeIfAbsent(repo.getId() + " " + repo.getUrl(),
+                                       key -> newTarget(repo));
+    }
+
+    private Target newTarget(RemoteRepository repo) {
+        org.eclipse.aether.repository.Proxy proxy = repo.getProxy();
+        if (proxy == null && session.getProxySelector() != null) {
+            proxy = session.getProxySelector().getProxy(repo);
+        }
+        Authentication auth = repo.getAuthentication();
+        if (auth == null && session.getAuthenticationSelector() != null) {
+            auth = session.getAuthenticationSelector().getAuthentication(repo);
+        }
+        RemoteRepository effectiveRepo = new RemoteRepository.Builder(repo)
+                .setProxy(proxy)
+                .setAuthentication(auth)
+                .build();
+
+        return new Target(
+                proxy == null
+                        ? null
+                        : new Proxy(Proxy.Type.HTTP,
+                                    InetSocketAddress.createUnresolved(
+                                            proxy.getHost(),
+                                            proxy.getPort())),
+                basicAuthorization(AuthenticationContext.forRepository(
+                        session, effectiveRepo)),
+                basicAuthorization(AuthenticationContext.forProxy(
+                        session, effectiveRepo)));
+    }
+
+    // nullable
+    private static String basicAuthorization(
+            // nullable
+            AuthenticationContext context)
+    {
+        if (context == null) {
+            return null;
+        }
+        try {
+            String username = context.get(AuthenticationContext.USERNAME);
+            if (username == null) {
+                return null;
+            }
+            String password = context.get(AuthenticationContext.PASSWORD);
+            String credentials = username + ":"
+                    + (password == null ? "" : password);
+            return "Basic " + Base64.getEncoder().encodeToString(
+                    credentials.getBytes(UTF_8));
+        } finally {
+            context.close();
+        }
+    }
+}
@@ -22,21 +22,34 @@ package pro.avodonosov.mvnhashver;
 import org.apache.maven.AbstractMavenLifecycleParticipant;
 import org.apache.maven.MavenExecutionException;
 import org.apache.maven.artifact.repository.layout.DefaultRepositoryLayout;
+import org.apache.maven.execution.BuildSuccess;
+import org.apache.maven.execution.BuildSummary;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectBuilder;
+import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.component.annotations.Requirement;
 import org.codehaus.plexus.logging.Logger;
 import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.impl.ArtifactResolver;
+import org.eclipse.aether.impl.RepositoryConnectorProvider;
 import org.eclipse.aether.repository.LocalArtifactRequest;
 import org.eclipse.aether.repository.LocalArtifactResult;
 import org.eclipse.aether.repository.LocalRepositoryManager;
 import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.repository.RepositoryPolicy;
 import org.eclipse.aether.resolution.ArtifactRequest;
 import org.eclipse.aether.resolution.ArtifactResolutionException;
 import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.spi.connector.ArtifactDownload;
+import org.eclipse.aether.spi.connector.RepositoryConnector;
+import org.eclipse.aether.transfer.ArtifactNotFoundException;
+import org.eclipse.aether.transfer.NoRepositoryConnectorException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -45,24 +58,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static pro.avodonosov.mvnhashver.Logging.LOG_PREFIX;
+import static pro.avodonosov.mvnhashver.Utils.daemonThreadFactory;
+import static pro.avodonosov.mvnhashver.Utils.mapInParallel;
 
 // TODO:
-//   - in the afterProjectsRead compute hashversions again and make sure
-//     corresponding property expressions have the same values.
-//     (duplicates user's wait time for hashver computations, but
-//     prevents mistakes).
-//     How to know what extraHashData was used during the mojo call?
-//     Store it in the generate target/hashversions.properties
-//     with name hashverMojo.extraHashData.
-//     An option to disable that - clean builds on build server won't usually
-//     have stale target/ directory, no need to waste their time.
 //   - help
 //   - by default don't skip modules if the user has specified an explicit
 //     list of projects (-pl)? (gitflow-incremental-builder adopted
@@ -76,6 +94,10 @@ public class MavenLifecycleParticipant
         extends AbstractMavenLifecycleParticipant
 {
 
+    // How long afterSessionEnd waits for the cancelled prefetch
+    // downloads to stop.
+    private static final int PREFETCH_STOP_SECONDS = 5;
+
     @Requirement
     @Inject
     private Logger logger;
@@ -83,10 +105,64 @@ public class MavenLifecycleParticipant
     @Inject
     ArtifactResolver artifactResolver;
 
+    @Inject
+    RepositoryConnectorProvider repositoryConnectorProvider;
+
+    @Inject
+    ProjectBuilder projectBuilder;
+
+    // Not the "default" one, which looks up the implementation
+    // in the container on every call, and the lookup fails
+    // when called in afterProjectsRead.
+    @Inject
+    @Named("maven31")
+    DependencyGraphBuilder dependencyGraphBuilder;
+
+    // Nullable. Present between afterSessionStart and afterProjectsRead
+    // if the hashversions are computed by the extension.
+    private EarlyHashVers earlyHashVers;
+
+    // Shared by the httpHead checks of the current session.
+    private HttpHeadClient httpHeadClient;
+
+    // Repository id + url -> connector. Shared by the remote
+    // checks of the current session, closed after the checks.
+    private final Map<String, RepositoryConnector> connectors =
+            new ConcurrentHashMap<>();
+
+    // Nullable. Present during the checks if the existenceCache
+    // is enabled.
+    private ExistenceCache existenceCache;
+    private boolean existenceCacheBypass;
+
+    // Nullable. Loaded for the checks if the index method is used.
+    private HashVerIndex hashVerIndex;
+
+    // Nullable. Present from afterProjectsRead till afterSessionEnd
+    // if the prefetchArtifacts is enabled.
+    private ExecutorService prefetchExecutor;
+
+    // Repository id -> local directory, for the filesystem checks.
+    private Map<String, String> repositoryMounts;
+
     @Override
     public void afterSessionStart(MavenSession session) throws MavenExecutionException {
         super.afterSessionStart(session);
         loadSysPropFiles(Config.sysPropFiles(), session);
+        if (Config.hashverCompute()) {
+            earlyHashVers = new EarlyHashVers(projectBuilder,
+                                              dependencyGraphBuilder,
+                                              logger,
+                                              session);
+            Map<String, String> hashVers = earlyHashVers.compute(session);
+            logInfo("Setting system properties from the computed hashversions");
+            setSysProps(session, hashVers);
+            // The computation has created the session project building
+            // request, with a copy of the system properties
+            // not including the hashversions.
+            session.getProjectBuildingRequest().setSystemProperties(
+                    session.getSystemProperties());
+        }
     }
 
     private void loadSysPropFiles(String filesSpec, MavenSession session)
@@ -139,15 +215,21 @@ public class MavenLifecycleParticipant
                     "Error loading " + file, e);
         }
         logInfo("Setting system properties from " + file);
+        for (Object propName : props.keySet()) {
+            logInfo(propName.toString() + "=" + props.get(propName));
+        }
+        setSysProps(session, props);
+    }
+
+    private static void setSysProps(MavenSession session, Map<?, ?> props) {
         // We need to modify the property collection already
         // assembled by maven, simply setting System.setProperty
         // was not enough - maven failed when property expression
         // was specified in dependencyManagement/dependency/version.
         Properties sessionSysProps = session.getSystemProperties();
-        for (Object propName : props.keySet()) {
-            logInfo(propName.toString() + "=" + props.get(propName));
-            String key = propName.toString();
-            String val = props.get(propName).toString();
+        for (Map.Entry<?, ?> prop : props.entrySet()) {
+            String key = prop.getKey().toString();
+            String val = prop.getValue().toString();
             System.setProperty(key, val);
             sessionSysProps.put(key, val);
         }
@@ -186,7 +268,21 @@ public class MavenLifecycleParticipant
     }
 
     @Override
-    public void afterProjectsRead(MavenSession session) {
+    public void afterProjectsRead(MavenSession session)
+            throws MavenExecutionException
+    {
+        if (earlyHashVers != null) {
+            try {
+                if (Config.hashverComputeVerify()) {
+                    earlyHashVers.verify(session);
+                }
+            } finally {
+                earlyHashVers = null;
+            }
+        } else if (Config.hashverVerifyInputs()) {
+            verifyHashVerInputs(session);
+        }
+
         if (!Config.skipExistingArtifacts(session)) {
             return;
         }
@@ -209,15 +305,470 @@ public class MavenLifecycleParticipant
 //                    + prj.getRemoteProjectRepositories());
 //        }
 
-        // TODO: detailed logging about artifact search and skipping
-        session.setProjects(
-            session.getProjects().stream()
-                    .filter(prj -> 
-                            "pom".equals(prj.getPackaging()) 
-                                || ! artifactExists(existenceChecks,
-                                                    session,
-                                                    prj))
-                    .collect(Collectors.toList()));
+        httpHeadClient = new HttpHeadClient(
+                session.getRepositorySession(),
+                Config.httpHeadConnectTimeout(session),
+                Config.httpHeadReadTimeout(session));
+
+        int threads = Config.existenceCheckThreads(session);
+        logInfo("Checking artifact existence of " + session.getProjects().size()
+                + " modules using " + threads + " threads.");
+
+        if (Arrays.asList(existenceChecks).contains(ExistenceCheckMethod.index)) {
+            hashVerIndex = loadIndex(session);
+        }
+        repositoryMounts = parseRepositoryMounts(
+                Config.repositoryMounts(session));
+        existenceCache = loadExistenceCache(session);
+        existenceCacheBypass = Config.existenceCacheBypass(session);
+
+        List<ModuleCheck> checks =
+                checkExistence(session, threads, existenceChecks);
+
+        List<MavenProject> remaining = new ArrayList<>();
+        Set<MavenProject> skipped = new HashSet<>();
+        for (ModuleCheck check : checks) {
+            for (String msg : check.messages) {
+                logInfo(msg);
+            }
+            if (check.exists) {
+                skipped.add(check.project);
+            } else {
+                remaining.add(check.project);
+            }
+        }
+        session.setProjects(remaining);
+
+        if (Config.prefetchArtifacts(session)
+                && session.getProjectDependencyGraph() != null)
+        {
+            prefetchArtifacts(
+                    session,
+                    skippedUpstream(session.getProjectDependencyGraph(),
+                                    remaining,
+                                    skipped),
+                    threads);
+        }
+    }
+
+    @Override
+    public void afterSessionEnd(MavenSession session)
+            throws MavenExecutionException
+    {
+        stopPrefetch();
+        if (session.getTopLevelProject() == null
+                || !Config.recordDurations(session))
+        {
+            return;
+        }
+        Map<String, Long> durations = new HashMap<>();
+        for (MavenProject prj : session.getProjects()) {
+            BuildSummary summary = session.getResult().getBuildSummary(prj);
+            if (summary instanceof BuildSuccess) {
+                durations.put(prj.getArtifactId(), summary.getTime());
+            }
+        }
+        File file = resolveFile(ProjectsToBuildMojo.BUILD_DURATIONS, session);
+        try {
+            HashVerDb.storeDurations(file, durations);
+            logInfo("Saved build durations of " + durations.size()
+                    + " modules to " + file);
+        } catch (IOException e) {
+            throw new MavenExecutionException(
+                    "Error saving build durations to " + file, e);
+        }
+    }
+
+    /**
+     * Checks that the target/hashversions.properties loaded in the
+     * hashver mode is up to date, using the inputs recorded by the
+     * hashver mojo. Only the modules whose input fingerprints changed,
+     * and the modules depending on them, are rehashed.
+     */
+    private void verifyHashVerInputs(MavenSession session)
+            throws MavenExecutionException
+    {
+        File inputsFile = resolveFile(HashVerMojo.HASHVER_INPUTS_FILE, session);
+        HashVerInputs inputs;
+        try {
+            inputs = HashVerInputs.load(inputsFile);
+        } catch (IOException e) {
+            throw new MavenExecutionException("Error loading " + inputsFile, e);
+        }
+        if (inputs == null) {
+            logger.warn(LOG_PREFIX + "Can not verify the hashversions are up"
+                        + " to date, " + inputsFile + " is absent or has"
+                        + " an unknown format. Re-run the hashver mojo.");
+            return;
+        }
+
+        Properties params = new Properties();
+        params.putAll(System.getProperties());
+        params.putAll(inputs.params);
+        HashVerMojo mojo = EarlyHashVers.hashVerMojo(
+                params, dependencyGraphBuilder, logger, session);
+
+        List<MavenProject> projects = session.getAllProjects() != null
+                ? session.getAllProjects()
+                : session.getProjects();
+        List<MavenProject> changed = new ArrayList<>();
+        for (MavenProject prj : projects) {
+            String key = HashVerMojo.hashVerKey(prj.getGroupId(),
+                                                prj.getArtifactId(),
+                                                mojo.includeGroupId);
+            String fingerprint;
+            try {
+                fingerprint = HashVerInputs.fingerprint(prj);
+            } catch (IOException e) {
+                throw new MavenExecutionException(
+                        "Error computing input fingerprint of " + prj, e);
+            }
+            if (!fingerprint.equals(inputs.fingerprints.get(key))
+                    || !inputs.ownHashes.containsKey(key))
+            {
+                changed.add(prj);
+            }
+        }
+        if (changed.isEmpty()) {
+            logInfo("The hashversions are up to date, inputs of "
+                    + projects.size() + " modules are unchanged.");
+            return;
+        }
+
+        List<MavenProject> rehashed = mojo.composeReactorHashes
+                ? projects
+                : withDownstream(session.getProjectDependencyGraph(),
+                                 projects,
+                                 changed);
+        logInfo("Inputs of " + changed.size() + " modules changed since"
+                + " the hashversions were computed, rehashing "
+                + rehashed.size() + " modules.");
+
+        MavenSession reactorSession = session.clone();
+        reactorSession.setProjects(projects);
+        Map<String, String> actual;
+        try {
+            actual = mojo.computeHashVers(reactorSession,
+                                          mojo.includeGroupId,
+                                          mojo.extraHashData,
+                                          rehashed,
+                                          inputs.ownHashes);
+        } catch (MojoExecutionException e) {
+            throw new MavenExecutionException(
+                    "Error verifying hashversions", e);
+        }
+
+        Map<String, String> loaded = new HashMap<>();
+        for (String key : actual.keySet()) {
+            String val = session.getSystemProperties().getProperty(key);
+            if (val != null) {
+                loaded.put(key, val);
+            }
+        }
+        List<String> mismatches = EarlyHashVers.mismatches(
+                loaded, actual, "loaded");
+        if (!mismatches.isEmpty()) {
+            for (String mismatch : mismatches) {
+                logger.error(LOG_PREFIX + mismatch);
+            }
+            throw new MavenExecutionException(
+                    "The " + HashVerMojo.HASHVER_PROP_FILE + " is stale, "
+                            + mismatches.size() + " hashversions differ."
+                            + " Re-run the hashver mojo.",
+                    (Throwable) null);
+        }
+        logInfo("The hashversions of the rehashed modules are up to date.");
+    }
+
+    /**
+     * The changed projects and the projects depending on them
+     * (directly or transitively), in the order of the projects list.
+     */
+    static List<MavenProject> withDownstream(
+            // nullable
+            ProjectDependencyGraph graph,
+            List<MavenProject> projects,
+            List<MavenProject> changed)
+    {
+        if (graph == null) {
+            return projects;
+        }
+        Set<MavenProject> affected = new HashSet<>(changed);
+        for (MavenProject prj : changed) {
+            affected.addAll(graph.getDownstreamProjects(prj, true));
+        }
+        List<MavenProject> result = new ArrayList<>();
+        for (MavenProject prj : projects) {
+            if (affected.contains(prj)) {
+                result.add(prj);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The skipped projects the remaining projects depend on (directly
+     * or transitively), in the build order.
+     */
+    static List<MavenProject> skippedUpstream(ProjectDependencyGraph graph,
+                                              List<MavenProject> remaining,
+                                              Set<MavenProject> skipped)
+    {
+        Set<MavenProject> needed = new HashSet<>();
+        for (MavenProject prj : remaining) {
+            for (MavenProject upstream : graph.getUpstreamProjects(prj, true)) {
+                if (skipped.contains(upstream)) {
+                    needed.add(upstream);
+                }
+            }
+        }
+        List<MavenProject> result = new ArrayList<>();
+        for (MavenProject prj : graph.getSortedProjects()) {
+            if (needed.contains(prj)) {
+                result.add(prj);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts downloading the artifacts (and poms) of the projects
+     * in background, so that when the build needs them they are
+     * already in the local repository, or at least their download
+     * is in progress.
+     */
+    private void prefetchArtifacts(MavenSession session,
+                                   List<MavenProject> projects,
+                                   int threads)
+    {
+        if (projects.isEmpty()) {
+            return;
+        }
+        logInfo("Prefetching in background the artifacts of "
+                + projects.size() + " skipped modules needed by the build.");
+        prefetchExecutor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threads, projects.size())),
+                daemonThreadFactory("hashver-prefetch-"));
+        RepositorySystemSession repoSession = session.getRepositorySession();
+        for (MavenProject prj : projects) {
+            prefetchExecutor.submit(() -> prefetchArtifact(repoSession, prj));
+        }
+        // Accept no more tasks, the threads exit when the
+        // downloads are done. The daemon threads don't prevent JVM
+        // exit if the build finishes before the downloads,
+        // see also stopPrefetch.
+        prefetchExecutor.shutdown();
+    }
+
+    /**
+     * Cancels the prefetch downloads still running at the end of
+     * the session (the build has already downloaded what it needed),
+     * so that they don't write to the local repository while the JVM
+     * exits or, in an embedded Maven, during the next session.
+     */
+    private void stopPrefetch() {
+        if (prefetchExecutor == null) {
+            return;
+        }
+        prefetchExecutor.shutdownNow();
+        try {
+            if (!prefetchExecutor.awaitTermination(PREFETCH_STOP_SECONDS,
+                                                   TimeUnit.SECONDS))
+            {
+                logInfo("Prefetch downloads are still running after "
+                        + PREFETCH_STOP_SECONDS + " seconds of waiting.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        prefetchExecutor = null;
+    }
+
+    private void prefetchArtifact(RepositorySystemSession repoSession,
+                                  MavenProject prj)
+    {
+        DefaultArtifact artifact = aetherArtifact(prj.getArtifact());
+        List<ArtifactRequest> requests = Arrays.asList(
+                new ArtifactRequest(
+                        new DefaultArtifact(artifact.getGroupId(),
+                                            artifact.getArtifactId(),
+                                            "pom",
+                                            artifact.getVersion()),
+                        prj.getRemoteProjectRepositories(),
+                        null),
+                new ArtifactRequest(artifact,
+                                    prj.getRemoteProjectRepositories(),
+                                    null));
+        try {
+            artifactResolver.resolveArtifacts(repoSession, requests);
+            logInfo("Prefetched " + prj.getArtifact());
+        } catch (ArtifactResolutionException | RuntimeException e) {
+            // Not a problem by itself, the build will try again
+            // when it needs the artifact.
+            if (!Thread.currentThread().isInterrupted()) {
+                logInfo("Failed to prefetch " + prj.getArtifact()
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The result of the artifact existence check for a module,
+     * with the log messages produced during the check.
+     *
+     * The checks of different modules can run concurrently, so the
+     * messages are collected and printed by the caller module after
+     * module, in the session project order.
+     */
+    static class ModuleCheck {
+        final MavenProject project;
+        final List<String> messages = new ArrayList<>();
+        boolean exists;
+
+        ModuleCheck(MavenProject project) {
+            this.project = project;
+        }
+
+        void log(String msg) {
+            messages.add(msg);
+        }
+    }
+
+    /**
+     * Checks artifact existence for every non-pom module, using up
+     * to the specified number of threads. The results are in the order
+     * of the projects list.
+     */
+    static List<ModuleCheck> checkModules(List<MavenProject> projects,
+                                          int threads,
+                                          ExistenceCheck existenceCheck,
+                                          MavenSession session)
+    {
+        return mapInParallel(
+                projects,
+                threads,
+                RuntimeException.class,
+                prj -> {
+                    ModuleCheck result = new ModuleCheck(prj);
+                    if (!"pom".equals(prj.getPackaging())) {
+                        result.exists = existenceCheck.artifactExists(
+                                session, prj, result);
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Checks existence of the session modules, then releases
+     * the resources shared by the checks, even if a check fails.
+     */
+    List<ModuleCheck> checkExistence(MavenSession session,
+                                     int threads,
+                                     ExistenceCheckMethod[] existenceChecks)
+    {
+        try {
+            return checkModules(
+                    session.getProjects(),
+                    threads,
+                    (prjSession, prj, check) ->
+                            artifactExists(existenceChecks, prjSession, prj, check),
+                    session);
+        } finally {
+            closeConnectors();
+            saveExistenceCache();
+            hashVerIndex = null;
+        }
+    }
+
+    // nullable
+    private HashVerIndex loadIndex(MavenSession session) {
+        String location = Config.existenceIndex(session);
+        if (location == null) {
+            logInfo("The existenceIndex property is not specified,"
+                    + " the index existence check will find nothing.");
+            return null;
+        }
+        try {
+            HashVerIndex index = HashVerIndex.load(
+                    location,
+                    HashVerIndex.isUrl(location)
+                            ? null
+                            : resolveFile(location, session));
+            logInfo("Loaded " + index.size() + " entries from the index "
+                    + location);
+            return index;
+        } catch (IOException e) {
+            logInfo("Failed to load the index " + location
+                    + ", the index existence check will find nothing.", e);
+            return null;
+        }
+    }
+
+    // nullable
+    private ExistenceCache loadExistenceCache(MavenSession session)
+            throws MavenExecutionException
+    {
+        if (!Config.existenceCache(session)) {
+            return null;
+        }
+        String fileName = Config.existenceCacheFile(session);
+        File file = fileName.isEmpty()
+                ? new File(session.getRepositorySession()
+                                  .getLocalRepository().getBasedir(),
+                           ".hashver/existence-cache")
+                : resolveFile(fileName, session);
+        try {
+            ExistenceCache cache = ExistenceCache.load(
+                    file,
+                    Config.existenceCacheNegativeTtl(session) * 1000L);
+            logInfo("Using existence cache " + file);
+            return cache;
+        } catch (IOException e) {
+            logInfo("Failed to load existence cache " + file
+                    + ", continuing without it", e);
+            return null;
+        }
+    }
+
+    private void saveExistenceCache() {
+        if (existenceCache == null) {
+            return;
+        }
+        try {
+            existenceCache.save();
+        } catch (IOException e) {
+            logInfo("Failed to save existence cache", e);
+        }
+        existenceCache = null;
+    }
+
+    /**
+     * Returns the remembered result of a previous existence check
+     * of the artifact in the repository, or null.
+     */
+    private Boolean cachedExistence(RemoteRepository repo,
+                                    Artifact artifact,
+                                    ModuleCheck check)
+    {
+        if (existenceCache == null || existenceCacheBypass) {
+            return null;
+        }
+        Boolean exists = existenceCache.get(repo, artifact);
+        if (exists != null) {
+            check.log("Existence cache: artifact "
+                    + (exists ? "exists" : "is absent")
+                    + " in " + repo.getId() + " for " + artifact);
+        }
+        return exists;
+    }
+
+    private void cacheExistence(RemoteRepository repo,
+                                Artifact artifact,
+                                boolean exists)
+    {
+        if (existenceCache != null) {
+            existenceCache.put(repo, artifact, exists);
+        }
     }
 
     private void logInfo(String s) {
@@ -229,7 +780,9 @@ public class MavenLifecycleParticipant
     }
 
     interface ExistenceCheck {
-        boolean artifactExists(MavenSession session, MavenProject project);
+        boolean artifactExists(MavenSession session,
+                               MavenProject project,
+                               ModuleCheck check);
     }
     
     ExistenceCheck implementation(ExistenceCheckMethod method) {
@@ -240,6 +793,12 @@ public class MavenLifecycleParticipant
                 return this::localArtifactExists;
             case httpHead:
                 return this::canHttpHeadArtifact;
+            case remote:
+                return this::remoteArtifactExists;
+            case index:
+                return this::indexContainsArtifact;
+            case filesystem:
+                return this::fileSystemArtifactExists;
             default:
                 throw new RuntimeException(
                         "Unexpected artifact existence check method: " + method);
@@ -248,10 +807,11 @@ public class MavenLifecycleParticipant
 
     boolean artifactExists(ExistenceCheckMethod[] methods,
                            MavenSession session,
-                           MavenProject prj)
+                           MavenProject prj,
+                           ModuleCheck check)
     {
         for (ExistenceCheckMethod method : methods) {
-            if (implementation(method).artifactExists(session, prj)) {
+            if (implementation(method).artifactExists(session, prj, check)) {
                 return true;
             }
         }
@@ -271,28 +831,65 @@ public class MavenLifecycleParticipant
                 a.getVersion());
     }
     
-    boolean canResolveArtifact(MavenSession session, MavenProject prj) {
-        logInfo("resolve-checking existence of " + prj.getArtifact());
+    boolean canResolveArtifact(MavenSession session,
+                               MavenProject prj,
+                               ModuleCheck check)
+    {
+        check.log("resolve-checking existence of " + prj.getArtifact());
+        DefaultArtifact artifact = aetherArtifact(prj.getArtifact());
+        // The resolution would only download the artifact found earlier,
+        // but not yet needed by the build.
+        for (RemoteRepository repo : prj.getRemoteProjectRepositories()) {
+            if (Boolean.TRUE.equals(cachedExistence(repo, artifact, check))) {
+                return true;
+            }
+        }
+
         ArtifactRequest req = new ArtifactRequest(
-                aetherArtifact(prj.getArtifact()),
+                artifact,
                 prj.getRemoteProjectRepositories(),
                 null);
         
+        ArtifactResult result;
         try {
-            ArtifactResult result = artifactResolver.resolveArtifact(
+            result = artifactResolver.resolveArtifact(
                     session.getRepositorySession(),
                     req);
-            logInfo(
+            check.log(
                     "Resolution result '" + result.isResolved()
                     + "' for " + prj.getArtifact());
-            return result.isResolved();
         } catch (ArtifactResolutionException e) {
-            logInfo("Failed to resolve artifact " + req);
-            return false;
+            check.log("Failed to resolve artifact " + req);
+            result = e.getResult();
         }
+
+        if (result.isResolved()) {
+            if (result.getRepository() instanceof RemoteRepository) {
+                cacheExistence((RemoteRepository) result.getRepository(),
+                               artifact,
+                               true);
+            }
+        } else {
+            for (Exception e : result.getExceptions()) {
+                if (e instanceof ArtifactNotFoundException
+                        && ((ArtifactNotFoundException) e).getRepository()
+                                instanceof RemoteRepository)
+                {
+                    cacheExistence(
+                            (RemoteRepository) ((ArtifactNotFoundException) e)
+                                    .getRepository(),
+                            artifact,
+                            false);
+                }
+            }
+        }
+        return result.isResolved();
     }
 
-    boolean localArtifactExists(MavenSession session, MavenProject prj) {
+    boolean localArtifactExists(MavenSession session,
+                                MavenProject prj,
+                                ModuleCheck check)
+    {
         RepositorySystemSession repoSession = session.getRepositorySession();
         LocalRepositoryManager lrm = repoSession.getLocalRepositoryManager();
         LocalArtifactResult result = lrm.find(
@@ -301,11 +898,196 @@ public class MavenLifecycleParticipant
                         aetherArtifact(prj.getArtifact()),
                         null,
                         null));
-        logInfo("localArtifactExists: " + result.isAvailable()
+        check.log("localArtifactExists: " + result.isAvailable()
                 + " for " + prj.getArtifact());
         return result.isAvailable();
     }
 
+    boolean remoteArtifactExists(MavenSession session,
+                                 MavenProject prj,
+                                 ModuleCheck check)
+    {
+        check.log("remote-checking existence of " + prj.getArtifact());
+        RepositorySystemSession repoSession = session.getRepositorySession();
+        if (repoSession.isOffline()) {
+            check.log("Offline mode, not checking remote repositories for "
+                    + prj.getArtifact());
+            return false;
+        }
+
+        DefaultArtifact artifact = aetherArtifact(prj.getArtifact());
+        for (RemoteRepository repo : prj.getRemoteProjectRepositories()) {
+            if (!repo.getPolicy(artifact.isSnapshot()).isEnabled()) {
+                continue;
+            }
+            Boolean cached = cachedExistence(repo, artifact, check);
+            if (cached != null) {
+                if (cached) {
+                    return true;
+                }
+                continue;
+            }
+            if (connectorArtifactExists(repoSession, repo, artifact, check)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks existence of the artifact in the repository using
+     * the repository connector, and caches the result.
+     */
+    private boolean connectorArtifactExists(RepositorySystemSession repoSession,
+                                            RemoteRepository repo,
+                                            DefaultArtifact artifact,
+                                            ModuleCheck check)
+    {
+        if (repoSession.isOffline()) {
+            check.log("Offline mode, not checking " + repo.getId()
+                    + " for " + artifact);
+            return false;
+        }
+        // The connector requires a file, but doesn't write it
+        // for existence checks.
+        File file = new File(
+                repoSession.getLocalRepository().getBasedir(),
+                repoSession.getLocalRepositoryManager()
+                        .getPathForLocalArtifact(artifact));
+        ArtifactDownload download = new ArtifactDownload(
+                artifact,
+                null,
+                file,
+                RepositoryPolicy.CHECKSUM_POLICY_IGNORE);
+        download.setExistenceCheck(true);
+        try {
+            connector(repoSession, repo).get(
+                    Collections.singletonList(download),
+                    null);
+        } catch (NoRepositoryConnectorException e) {
+            check.log("No connector for repository " + repo
+                    + ": " + e.getMessage());
+            return false;
+        }
+        if (download.getException() == null) {
+            check.log("Artifact exists in " + repo.getId()
+                    + " for " + artifact);
+            cacheExistence(repo, artifact, true);
+            return true;
+        }
+        if (download.getException() instanceof ArtifactNotFoundException) {
+            cacheExistence(repo, artifact, false);
+        }
+        check.log("Artifact is not found in " + repo.getId()
+                + " for " + artifact + ": "
+                + download.getException().getMessage());
+        return false;
+    }
+
+    boolean indexContainsArtifact(MavenSession session,
+                                  MavenProject prj,
+                                  ModuleCheck check)
+    {
+        org.apache.maven.artifact.Artifact a = prj.getArtifact();
+        boolean exists = hashVerIndex != null
+                && hashVerIndex.contains(a.getGroupId(),
+                                         a.getArtifactId(),
+                                         a.getVersion());
+        check.log("indexContainsArtifact: " + exists + " for " + a);
+        return exists;
+    }
+
+    boolean fileSystemArtifactExists(MavenSession session,
+                                     MavenProject prj,
+                                     ModuleCheck check)
+    {
+        check.log("filesystem-checking existence of " + prj.getArtifact());
+        String path = new DefaultRepositoryLayout().pathOf(prj.getArtifact());
+        for (RemoteRepository repo : prj.getRemoteProjectRepositories()) {
+            Path repoDir = repositoryDir(repo, repositoryMounts);
+            if (repoDir == null) {
+                continue;
+            }
+            Path artifactFile = repoDir.resolve(path);
+            boolean exists = Files.isRegularFile(artifactFile);
+            check.log("fileSystemArtifactExists: " + exists
+                    + " for " + artifactFile);
+            if (exists) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The local directory of the repository: the mount specified for the
+     * repository id, or the repository URL if it's a file: URL.
+     * Null if the repository is not available in the file system.
+     */
+    static Path repositoryDir(RemoteRepository repo,
+                              Map<String, String> mounts)
+    {
+        String mount = mounts.get(repo.getId());
+        if (mount != null) {
+            return Paths.get(mount);
+        }
+        if (!"file".equalsIgnoreCase(repo.getProtocol())) {
+            return null;
+        }
+        try {
+            return Paths.get(URI.create(repo.getUrl()));
+        } catch (IllegalArgumentException e) {
+            // URLs like file:relative/path are not supported by Paths
+            return Paths.get(repo.getUrl().substring("file:".length()));
+        }
+    }
+
+    static Map<String, String> parseRepositoryMounts(
+            // nullable
+            String mountsSpec)
+    {
+        Map<String, String> mounts = new HashMap<>();
+        if (mountsSpec == null) {
+            return mounts;
+        }
+        for (String spec : mountsSpec.split(",")) {
+            int eqPos = spec.indexOf('=');
+            if (eqPos <= 0) {
+                throw new IllegalArgumentException(
+                        "Expected repositoryId=path, got: " + spec);
+            }
+            mounts.put(spec.substring(0, eqPos).trim(),
+                       spec.substring(eqPos + 1).trim());
+        }
+        return mounts;
+    }
+
+    private RepositoryConnector connector(RepositorySystemSession repoSession,
+                                          RemoteRepository repo)
+            throws NoRepositoryConnectorException
+    {
+        String key = repo.getId() + " " + repo.getUrl();
+        RepositoryConnector connector = connectors.get(key);
+        if (connector == null) {
+            RepositoryConnector newConnector = repositoryConnectorProvider
+                    .newRepositoryConnector(repoSession, repo);
+            connector = connectors.putIfAbsent(key, newConnector);
+            if (connector == null) {
+                connector = newConnector;
+            } else {
+                newConnector.close();
+            }
+        }
+        return connector;
+    }
+
+    private void closeConnectors() {
+        for (RepositoryConnector connector : connectors.values()) {
+            connector.close();
+        }
+        connectors.clear();
+    }
+
     /** Joins baseUrl and subPath, making sure exactly one '/' separates them.
      */
     static String subUrl(String baseUrl, String subPath) {
@@ -324,30 +1106,54 @@ public class MavenLifecycleParticipant
         }
     }
     
-    boolean canHttpHeadArtifact(MavenSession session, MavenProject prj) {
-        logInfo("http-head-checking existence of " + prj.getArtifact());
+    boolean canHttpHeadArtifact(MavenSession session,
+                                MavenProject prj,
+                                ModuleCheck check)
+    {
+        check.log("http-head-checking existence of " + prj.getArtifact());
+        DefaultArtifact artifact = aetherArtifact(prj.getArtifact());
+        String path = new DefaultRepositoryLayout().pathOf(prj.getArtifact());
         for (RemoteRepository repo : prj.getRemoteProjectRepositories()) {
-            //repo.
-
-            DefaultRepositoryLayout layout = new DefaultRepositoryLayout();
-            URI artifactUri = URI.create(subUrl(
-                    repo.getUrl(), 
-                    layout.pathOf(prj.getArtifact())));
+            String artifactUrl = subUrl(repo.getUrl(), path);
+            if (!HttpHeadClient.supports(repo)) {
+                check.log("Skipping HTTP HEAD for non-HTTP repository URL "
+                        + artifactUrl);
+                continue;
+            }
+            Boolean cached = cachedExistence(repo, artifact, check);
+            if (cached != null) {
+                if (cached) {
+                    return true;
+                }
+                continue;
+            }
+            if (!httpHeadClient.canHead(repo)) {
+                check.log("Can not HTTP HEAD through the authenticating"
+                        + " proxy, using the repository connector for "
+                        + artifactUrl);
+                if (connectorArtifactExists(session.getRepositorySession(),
+                                            repo,
+                                            artifact,
+                                            check))
+                {
+                    return true;
+                }
+                continue;
+            }
             try {
-                HttpURLConnection connection =
-                        (HttpURLConnection)artifactUri.toURL().openConnection();
-                connection.setRequestMethod("HEAD");
-                connection.connect();
-                boolean exists = connection.getResponseCode() == 200;
-                logInfo("HTTP HEAD " + (exists ? "successful" : "failed")
-                            + " (" + connection.getResponseCode()
-                            + ") for " + artifactUri);
+                int code = httpHeadClient.head(repo, path);
+                boolean exists = code == 200;
+                check.log("HTTP HEAD " + (exists ? "successful" : "failed")
+                            + " (" + code + ") for " + artifactUrl);
+                if (exists || code == 404) {
+                    cacheExistence(repo, artifact, exists);
+                }
                 if (exists) {
                     return true;
                 }
             } catch (IOException e) {
-                logInfo("Failed to perform HTTP HEAD for "
-                    + artifactUri + " : " + e.getMessage());
+                check.log("Failed to perform HTTP HEAD for "
+                    + artifactUrl + " : " + e.getMessage());
             }
         }
         return false;
@@ -356,7 +1162,10 @@ public class MavenLifecycleParticipant
     enum ExistenceCheckMethod {
         resolve,
         local,
-        httpHead;
+        httpHead,
+        remote,
+        index,
+        filesystem;
         
         public static ExistenceCheckMethod[] parse(String methods) {
             String[] names = methods.split(",");
@@ -371,15 +1180,89 @@ public class MavenLifecycleParticipant
             return ConfigProps.existenceCheckMethods.get(session);
         }
 
+        public static int existenceCheckThreads(MavenSession session)
+                throws MavenExecutionException
+        {
+            return ConfigProps.existenceCheckThreads.getNonNegativeInt(session);
+        }
+
+        // nullable
+        public static String existenceIndex(MavenSession session) {
+            return ConfigProps.existenceIndex.get(session);
+        }
+
+        // nullable
+        public static String repositoryMounts(MavenSession session) {
+            return ConfigProps.repositoryMounts.get(session);
+        }
+
+        public static boolean prefetchArtifacts(MavenSession session) {
+            return isTrue(ConfigProps.prefetchArtifacts.get(session));
+        }
+
+        public static boolean existenceCache(MavenSession session) {
+            return isTrue(ConfigProps.existenceCache.get(session));
+        }
+
+        public static String existenceCacheFile(MavenSession session) {
+            return ConfigProps.existenceCacheFile.get(session);
+        }
+
+        public static int existenceCacheNegativeTtl(MavenSession session)
+                throws MavenExecutionException
+        {
+            return ConfigProps.existenceCacheNegativeTtl.getNonNegativeInt(session);
+        }
+
+        public static boolean existenceCacheBypass(MavenSession session) {
+            return isTrue(ConfigProps.existenceCacheBypass.get(session));
+        }
+
+        public static int httpHeadConnectTimeout(MavenSession session)
+                throws MavenExecutionException
+        {
+            return ConfigProps.httpHeadConnectTimeout.getNonNegativeInt(session);
+        }
+
+        public static int httpHeadReadTimeout(MavenSession session)
+                throws MavenExecutionException
+        {
+            return ConfigProps.httpHeadReadTimeout.getNonNegativeInt(session);
+        }
+
+        public static boolean recordDurations(MavenSession session) {
+            return isTrue(ConfigProps.recordDurations.get(session));
+        }
+
         public static boolean skipExistingArtifacts(MavenSession session) {
             return isTrue(ConfigProps.hashverMode.getSys())
                     || isTrue(ConfigProps.skipExistingArtifacts.get(session));
         }
 
+        // nullable
         public static String sysPropFiles() {
+            if (isTrue(ConfigProps.hashverMode.getSys())) {
+                // When the extension computes hashversions itself,
+                // only load the files specified explicitly.
+                return hashverCompute()
+                        ? System.getProperty(ConfigProps.sysPropFiles.name())
+                        : HashVerMojo.HASHVER_PROP_FILE;
+            }
+            return ConfigProps.sysPropFiles.getSys();
+        }
+
+        public static boolean hashverCompute() {
+            return isTrue(ConfigProps.hashverCompute.getSys());
+        }
+
+        public static boolean hashverVerifyInputs() {
             return isTrue(ConfigProps.hashverMode.getSys())
-                    ? HashVerMojo.HASHVER_PROP_FILE
-                    : ConfigProps.sysPropFiles.getSys();
+                    && !hashverCompute()
+                    && isTrue(ConfigProps.hashverVerifyInputs.getSys());
+        }
+
+        public static boolean hashverComputeVerify() {
+            return isTrue(ConfigProps.hashverComputeVerify.getSys());
         }
 
         public static boolean isTrue(String propVal) {
@@ -395,9 +1278,23 @@ public class MavenLifecycleParticipant
 
     enum ConfigProps {
         hashverMode("false"),
+        hashverCompute("false"),
+        hashverComputeVerify("true"),
+        hashverVerifyInputs("true"),
         sysPropFiles("versions.properties"),
         skipExistingArtifacts("false"),
-        existenceCheckMethods("resolve");
+        existenceCheckMethods("resolve"),
+        existenceCheckThreads("8"),
+        httpHeadConnectTimeout("10000"),
+        httpHeadReadTimeout("30000"),
+        existenceCache("false"),
+        existenceCacheFile(""),
+        existenceCacheNegativeTtl("300"),
+        existenceCacheBypass("false"),
+        existenceIndex(null),
+        repositoryMounts(null),
+        prefetchArtifacts("false"),
+        recordDurations("false");
 
         public final String defaultValue;
 
@@ -409,6 +1306,25 @@ public class MavenLifecycleParticipant
             return getProp(session, name(), defaultValue);
         }
 
+        public int getNonNegativeInt(MavenSession session)
+                throws MavenExecutionException
+        {
+            String val = get(session);
+            int result;
+            try {
+                result = Integer.parseInt(val.trim());
+            } catch (NumberFormatException e) {
+                result = -1;
+            }
+            if (result < 0) {
+                throw new MavenExecutionException(
+                        "Invalid " + name() + " value: \"" + val
+                                + "\", expected a non-negative integer",
+                        (Throwable) null);
+            }
+            return result;
+        }
+
         /**
          * For properties that are accessed before session.getTopLevelProject()
          * is available.
@@ -0,0 +1,205 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * MurmurHash3 x64 128 bit, seed 0, as a streaming MessageDigest.
+ * A fast non-cryptographic hash function.
+ *
+ * <p>The digest bytes are h1 and h2 in little-endian order,
+ * the same as produced by Guava's Hashing.murmur3_128().
+ *
+ * <p>Reference implementation:
+ * https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp
+ */
+class Murmur3Digest extends MessageDigest implements Cloneable {
+
+    static final String ALGORITHM = "MurmurHash3_x64_128";
+
+    private static final int BLOCK_SIZE = 16;
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private long h1;
+    private long h2;
+    private long length;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLen;
+
+    Murmur3Digest() {
+        super(ALGORITHM);
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        block[blockLen++] = input;
+        length++;
+        if (blockLen == BLOCK_SIZE) {
+            processBlock(block, 0);
+            blockLen = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        length += len;
+        int end = offset + len;
+
+        if (blockLen > 0) {
+            int n = Math.min(BLOCK_SIZE - blockLen, len);
+            System.arraycopy(input, offset, block, blockLen, n);
+            blockLen += n;
+            offset += n;
+            if (blockLen < BLOCK_SIZE) {
+                return;
+            }
+            processBlock(block, 0);
+            blockLen = 0;
+        }
+
+        if (offset + BLOCK_SIZE <= end) {
+            ByteBuffer le = ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN);
+            for (; offset + BLOCK_SIZE <= end; offset += BLOCK_SIZE) {
+                processBlock(le.getLong(offset), le.getLong(offset + 8));
+            }
+        }
+
+        blockLen = end - offset;
+        System.arraycopy(input, offset, block, 0, blockLen);
+    }
+
+    private void processBlock(byte[] data, int offset) {
+        processBlock(getLongLE(data, offset), getLongLE(data, offset + 8));
+    }
+
+    private void processBlock(long k1, long k2) {
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        if (blockLen > 0) {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = blockLen - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | (block[i] & 0xFF);
+            }
+            for (int i = Math.min(blockLen, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | (block[i] & 0xFF);
+            }
+            if (blockLen > 8) {
+                h2 ^= mixK2(k2);
+            }
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        byte[] result = new byte[16];
+        putLongLE(result, 0, h1);
+        putLongLE(result, 8, h2);
+        engineReset();
+        return result;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        Murmur3Digest copy = (Murmur3Digest) super.clone();
+        copy.block = block.clone();
+        return copy;
+    }
+
+    @Override
+    protected void engineReset() {
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        blockLen = 0;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLongLE(byte[] b, int offset) {
+        return (b[offset] & 0xFFL)
+                | (b[offset + 1] & 0xFFL) << 8
+                | (b[offset + 2] & 0xFFL) << 16
+                | (b[offset + 3] & 0xFFL) << 24
+                | (b[offset + 4] & 0xFFL) << 32
+                | (b[offset + 5] & 0xFFL) << 40
+                | (b[offset + 6] & 0xFFL) << 48
+                | (b[offset + 7] & 0xFFL) << 56;
+    }
+
+    private static void putLongLE(byte[] b, int offset, long v) {
+        for (int i = 0; i < 8; i++) {
+            b[offset + i] = (byte) (v >>> (8 * i));
+        }
+    }
+}
@@ -1,19 +1,33 @@
 package pro.avodonosov.mvnhashver;
 
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.artifact.ArtifactUtils;
 import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.model.Dependency;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -40,19 +54,71 @@ import static pro.avodonosov.mvnhashver.Utils.saveToFile;
  * <p>The database of previously successfully build modules is a directory
  * specified by property dbDir.
  *
- * <p>The mojo also produces content to be copied into the db directory
- * if the build of those modules succeeds:
+ * <p>The mojo also produces the db additions, target/hashver-db-additions
+ * directory, or target/hashver-db-additions.log file if the db directory
+ * is in the compact format (see {@link HashVerDb}) or -DdbCompact is
+ * specified. If the build of those modules succeeds, they are added
+ * to the db by the "record-successful-build" mojo:
  *
  * <pre>
- *    cp -r targer/hashver-db-additions/*  the-db-directory/
+ *    mvn hashver:record-successful-build -DdbDir=the-db-directory
  *</pre>
+ *
+ * <p>If the project uses the hashversions as module versions
+ * (see the build extension), -DminimalBuildPlan avoids rebuilding
+ * the unaffected modules -am would build: the mojo resolves their
+ * artifacts with the current hashversions, and saves to
+ * target/hashver-projects-to-build-minimal the affected modules
+ * and only those upstream modules whose artifacts are missing,
+ * to be built without -am:
+ *
+ * <pre>
+ *     mvn install -pl "$(cat target/hashver-projects-to-build-minimal)" \
+ *         -DsysPropFiles=target/hashversions.properties
+ *</pre>
+ *
+ * <p>For the modules to be built the mojo saves a build plan to
+ * target/hashver-build-plan (see {@link BuildPlan}): lines
+ * ":artifactId duration criticalPathFromIt", ordered by the critical
+ * path, and the recommended number of threads for the -T option
+ * to target/hashver-build-threads. The durations are estimated
+ * from the durations recorded in the db. The plan file is for
+ * information only, maven orders the module builds itself.
+ *
+ * <p>With -DbuildShards=N the modules to build by the minimal plan are
+ * split into N shards to be built on different machines, see
+ * {@link BuildPlan#shards}. For every shard the mojo saves
+ * target/hashver-shards/wave-w/shard-i with the modules to build,
+ * in the -pl format. Usually there is one wave; the shards of
+ * a later wave fetch the modules of the earlier ones from the
+ * repository, so must be built after them.
  */
 @Mojo(name = "projects-to-build", aggregator = true)
 public class ProjectsToBuildMojo extends HashVerMojo {
 
+    static final String DB_ADDITIONS_DIR = "target/hashver-db-additions";
+    static final String DB_ADDITIONS_LOG = "target/hashver-db-additions.log";
+    static final String BUILD_DURATIONS = "target/hashver-durations.properties";
+
     @Parameter(property = "dbDir", required = true)
     String dbDirPath;
 
+    @Parameter(property = "dbCompact", defaultValue = "false")
+    boolean dbCompact;
+
+    @Parameter(property = "minimalBuildPlan", defaultValue = "false")
+    boolean minimalBuildPlan;
+
+    /**
+     * Split the modules to build into this number of shards
+     * to be built on different machines. Implies minimalBuildPlan.
+     */
+    @Parameter(property = "buildShards", defaultValue = "1")
+    int buildShards;
+
+    @Component
+    RepositorySystem repositorySystem;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
 
@@ -61,27 +127,65 @@ public class ProjectsToBuildMojo extends HashVerMojo {
             throw new MojoExecutionException(
                     "Directory does not exist: " + dbDir.getAbsolutePath());
         }
+        if (buildShards < 1) {
+            throw new MojoExecutionException(
+                    "buildShards must be positive: " + buildShards);
+        }
 
         File targetDir = new File("target");
-        File dbAdditionsDir = new File(targetDir,"hashver-db-additions");
+        boolean compact = dbCompact || HashVerDb.exists(dbDir);
+        File dbAdditionsDir = new File(DB_ADDITIONS_DIR);
+        File dbAdditionsLog = new File(DB_ADDITIONS_LOG);
+        // Remove the additions of a previous run in either format
         ensureDirExists(dbAdditionsDir);
-
         try {
             cleanDir(dbAdditionsDir);
+            Files.deleteIfExists(dbAdditionsLog.toPath());
+            if (compact) {
+                Files.delete(dbAdditionsDir.toPath());
+            }
         } catch (IOException e) {
             throw new MojoExecutionException(
                     "Error cleaning " + dbAdditionsDir, e);
         }
 
-        Map<String, String> hashVers = super.executeImpl(mavenSession,
-                                                         includeGroupId,
-                                                         extraHashData);
+        HashVerDb db = null;
+        if (compact) {
+            try {
+                db = HashVerDb.open(dbDir);
+            } catch (IOException e) {
+                throw new MojoExecutionException(
+                        "Error opening db " + dbDir.getAbsolutePath(), e);
+            }
+        }
 
+        Map<String, String> hashVers;
         HashSet<MavenProject> affectedProjects = new HashSet<>();
-        for (MavenProject prj : mavenSession.getProjects()) {
-            String hashVer = hashVers.get(hashVerKey(prj, includeGroupId));
-            if (!dbContains(dbDir, prj, hashVer)) {
-                affectedProjects.add(prj);
+        try {
+            hashVers = super.executeImpl(mavenSession,
+                                         includeGroupId,
+                                         extraHashData);
+
+            for (MavenProject prj : mavenSession.getProjects()) {
+                String hashVer = hashVers.get(hashVerKey(prj, includeGroupId));
+                boolean built = compact
+                        ? db.contains(prj.getArtifactId(), hashVer)
+                        : dbContains(dbDir, prj, hashVer);
+                if (!built) {
+                    affectedProjects.add(prj);
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error reading db " + dbDir.getAbsolutePath(), e);
+        } finally {
+            if (db != null) {
+                try {
+                    db.close();
+                } catch (IOException e) {
+                    logWarn("Error closing db " + dbDir.getAbsolutePath()
+                            + ": " + e);
+                }
             }
         }
 
@@ -99,10 +203,14 @@ public class ProjectsToBuildMojo extends HashVerMojo {
                                 && !unaffectedButBuilt.contains(p))
                         .collect(Collectors.toCollection(HashSet::new));
 
-        for (MavenProject prj : affectedProjects) {
-            saveDbAddition(dbAdditionsDir,
-                           prj,
-                           hashVers.get(hashVerKey(prj, includeGroupId)));
+        if (compact) {
+            saveDbAdditionsLog(dbAdditionsLog, affectedProjects, hashVers);
+        } else {
+            for (MavenProject prj : affectedProjects) {
+                saveDbAddition(dbAdditionsDir,
+                               prj,
+                               hashVers.get(hashVerKey(prj, includeGroupId)));
+            }
         }
 
         String toBuild = artifactIds(affectedProjects);
@@ -112,13 +220,258 @@ public class ProjectsToBuildMojo extends HashVerMojo {
         logInfo("The projects unaffected but to be built with the `mvn -am`: "
                 + artifactIds(unaffectedButBuilt));
         logInfo("The projects skipped completely: " + artifactIds(notBuilt));
-        logInfo("To copy the successful hashversions to the dbDir: cp -r "
-                + dbAdditionsDir + "/* " + dbDir + "/");
+        logInfo("To record the successful build in the dbDir: "
+                + "mvn hashver:record-successful-build -DdbDir=" + dbDir);
         try {
             saveToFile(affectedProjectsFile, toBuild);
         } catch (IOException e) {
             throw new MojoExecutionException("Error saving 'projects to build' file", e);
         }
+
+        Set<MavenProject> built;
+        if (minimalBuildPlan || buildShards > 1) {
+            built = saveMinimalBuildPlan(targetDir,
+                                         affectedProjects,
+                                         unaffectedButBuilt,
+                                         hashVers);
+        } else {
+            built = new HashSet<>(affectedProjects);
+            built.addAll(unaffectedButBuilt);
+        }
+        BuildPlan plan = saveBuildPlan(targetDir, dbDir, depGraph, built);
+        if (buildShards > 1) {
+            saveShards(targetDir, depGraph, plan);
+        }
+    }
+
+    private void saveShards(File targetDir,
+                            ProjectDependencyGraph depGraph,
+                            BuildPlan plan)
+            throws MojoExecutionException
+    {
+        File shardsDir = new File(targetDir, "hashver-shards");
+        ensureDirExists(shardsDir);
+        try {
+            cleanDir(shardsDir);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error cleaning " + shardsDir, e);
+        }
+
+        if (plan.projects.isEmpty()) {
+            logWarn("Nothing to build, no shards saved.");
+            return;
+        }
+        List<List<List<MavenProject>>> waves = plan.shards(buildShards);
+        if (waves.size() > 1) {
+            logWarn("A group of modules depending on each other is longer"
+                    + " than 1/" + buildShards + " of the build, the shards"
+                    + " are built in " + waves.size() + " waves: every wave"
+                    + " after the earlier ones are built and deployed.");
+        }
+        for (int w = 0; w < waves.size(); w++) {
+            List<List<MavenProject>> shards = waves.get(w);
+            if (shards.size() < buildShards) {
+                logWarn("Wave " + (w + 1) + " has only " + shards.size()
+                        + " shards of " + buildShards + ", not enough"
+                        + " independent modules.");
+            }
+            File waveDir = new File(shardsDir, "wave-" + (w + 1));
+            ensureDirExists(waveDir);
+            for (int i = 0; i < shards.size(); i++) {
+                List<MavenProject> shard = shards.get(i);
+                Set<MavenProject> shardSet = new HashSet<>(shard);
+                Set<MavenProject> fetched = new HashSet<>();
+                for (MavenProject prj : shard) {
+                    for (MavenProject up
+                            : depGraph.getUpstreamProjects(prj, true))
+                    {
+                        if (!shardSet.contains(up)) {
+                            fetched.add(up);
+                        }
+                    }
+                }
+                File shardFile = new File(waveDir, "shard-" + (i + 1));
+                logInfo("Wave " + (w + 1) + ", shard " + (i + 1) + ": "
+                        + shard.size() + " modules, estimated duration "
+                        + plan.duration(shard)
+                        + ", upstream modules fetched " + fetched.size()
+                        + ": " + artifactIds(shard));
+                try {
+                    saveToFile(shardFile, artifactIds(shard));
+                } catch (IOException e) {
+                    throw new MojoExecutionException(
+                            "Error saving shard "
+                                    + shardFile.getAbsolutePath(), e);
+                }
+            }
+        }
+        logInfo("To build a shard: mvn install -pl \"$(cat "
+                + new File(shardsDir, "wave-W/shard-N").getPath()
+                + ")\" -DsysPropFiles=" + HASHVER_PROP_FILE
+                + (waves.size() > 1
+                           ? "  (deploy instead of install before"
+                                   + " the next wave)"
+                           : ""));
+    }
+
+    private BuildPlan saveBuildPlan(File targetDir,
+                                    File dbDir,
+                                    ProjectDependencyGraph depGraph,
+                                    Set<MavenProject> built)
+            throws MojoExecutionException
+    {
+        Map<String, Long> durations;
+        try {
+            durations = HashVerDb.durations(dbDir);
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error loading build durations from " + dbDir, e);
+        }
+        BuildPlan plan = new BuildPlan(depGraph, built, durations);
+
+        StringBuilder planContent = new StringBuilder();
+        for (MavenProject prj : plan.order()) {
+            planContent.append(':').append(prj.getArtifactId())
+                    .append(' ').append(plan.durations.get(prj))
+                    .append(' ').append(plan.tails.get(prj))
+                    .append('\n');
+        }
+        int threads = plan.recommendedThreads();
+        File planFile = new File(targetDir, "hashver-build-plan");
+        File threadsFile = new File(targetDir, "hashver-build-threads");
+        logInfo("Build plan of " + built.size() + " modules, "
+                + (durations.isEmpty()
+                           ? "no durations recorded, all modules count equal"
+                           : "estimated by the recorded durations")
+                + ": critical path " + plan.criticalPath()
+                + ", total " + plan.totalDuration()
+                + ", recommended threads " + threads
+                + " (mvn -T $(cat " + threadsFile.getPath() + "))");
+        logInfo("saving the critical path ordered plan to "
+                + planFile.getAbsolutePath());
+        try {
+            saveToFile(planFile, planContent.toString());
+            saveToFile(threadsFile, String.valueOf(threads));
+        } catch (IOException e) {
+            throw new MojoExecutionException("Error saving the build plan", e);
+        }
+        return plan;
+    }
+
+    // Returns the modules to build
+    Set<MavenProject> saveMinimalBuildPlan(File targetDir,
+                                           Set<MavenProject> affectedProjects,
+                                           Set<MavenProject> unaffectedUpstream,
+                                           Map<String, String> hashVers)
+            throws MojoExecutionException
+    {
+        Set<MavenProject> missing = missingArtifacts(unaffectedUpstream,
+                                                     hashVers);
+        // The upstream modules of the missing ones are either
+        // resolvable or missing too, so -am is not needed.
+        Set<MavenProject> plan = new HashSet<>(affectedProjects);
+        plan.addAll(missing);
+
+        String toBuild = artifactIds(plan);
+        File planFile = new File(targetDir,
+                                 "hashver-projects-to-build-minimal");
+        logInfo("The unaffected projects resolved from the repository: "
+                + artifactIds(unaffectedUpstream.stream()
+                                      .filter(p -> !missing.contains(p))
+                                      .collect(Collectors.toList())));
+        logInfo("The unaffected projects with missing artifacts, to be built: "
+                + artifactIds(missing));
+        logInfo("hashver-projects-to-build-minimal: " + toBuild);
+        logInfo("saving to " + planFile.getAbsolutePath());
+        logInfo("To build them: mvn install -pl \"$(cat " + planFile.getPath()
+                + ")\" -DsysPropFiles=" + HASHVER_PROP_FILE);
+        try {
+            saveToFile(planFile, toBuild);
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error saving file: " + planFile.getAbsolutePath(), e);
+        }
+        return plan;
+    }
+
+    /**
+     * The projects whose artifacts with the current hashversions
+     * can not be resolved: the main artifact, and the artifacts
+     * other reactor modules depend on by classifier or type,
+     * like test-jar. Attached artifacts not referenced by
+     * a reactor module dependency are not checked.
+     */
+    Set<MavenProject> missingArtifacts(Collection<MavenProject> projects,
+                                       Map<String, String> hashVers)
+    {
+        Map<String, MavenProject> byKey = new HashMap<>();
+        for (MavenProject prj : projects) {
+            byKey.put(ArtifactUtils.versionlessKey(prj.getGroupId(),
+                                                   prj.getArtifactId()),
+                      prj);
+        }
+
+        List<MavenProject> requestProjects = new ArrayList<>();
+        List<ArtifactRequest> requests = new ArrayList<>();
+        Set<String> requested = new HashSet<>();
+        for (MavenProject prj : projects) {
+            org.apache.maven.artifact.Artifact a = prj.getArtifact();
+            addRequest(requestProjects, requests, requested, prj,
+                       new DefaultArtifact(
+                               a.getGroupId(),
+                               a.getArtifactId(),
+                               a.getClassifier(),
+                               a.getArtifactHandler().getExtension(),
+                               hashVers.get(hashVerKey(prj, includeGroupId))));
+        }
+        RepositorySystemSession repositorySession =
+                mavenSession.getRepositorySession();
+        for (MavenProject downstream : mavenSession.getProjects()) {
+            for (Dependency dep : downstream.getDependencies()) {
+                MavenProject prj = byKey.get(ArtifactUtils.versionlessKey(
+                        dep.getGroupId(), dep.getArtifactId()));
+                if (prj == null) {
+                    continue;
+                }
+                Artifact artifact = RepositoryUtils.toDependency(
+                                dep,
+                                repositorySession.getArtifactTypeRegistry())
+                        .getArtifact()
+                        .setVersion(hashVers.get(
+                                hashVerKey(prj, includeGroupId)));
+                addRequest(requestProjects, requests, requested, prj, artifact);
+            }
+        }
+
+        List<ArtifactResult> results;
+        try {
+            results = repositorySystem.resolveArtifacts(repositorySession,
+                                                        requests);
+        } catch (ArtifactResolutionException e) {
+            results = e.getResults();
+        }
+
+        Set<MavenProject> missing = new HashSet<>();
+        for (int i = 0; i < requests.size(); i++) {
+            if (!results.get(i).isResolved()) {
+                logDebug("Can not resolve " + requests.get(i).getArtifact());
+                missing.add(requestProjects.get(i));
+            }
+        }
+        return missing;
+    }
+
+    private static void addRequest(List<MavenProject> requestProjects,
+                                   List<ArtifactRequest> requests,
+                                   Set<String> requested,
+                                   MavenProject prj,
+                                   Artifact artifact)
+    {
+        if (requested.add(artifact.toString())) {
+            requestProjects.add(prj);
+            requests.add(new ArtifactRequest(
+                    artifact, prj.getRemoteProjectRepositories(), null));
+        }
     }
 
     private static String artifactIds(Collection<MavenProject> projects) {
@@ -146,6 +499,28 @@ public class ProjectsToBuildMojo extends HashVerMojo {
         }
     }
 
+    private void saveDbAdditionsLog(File file,
+                                    Collection<MavenProject> projects,
+                                    Map<String, String> hashVers)
+            throws MojoExecutionException
+    {
+        long now = System.currentTimeMillis();
+        StringBuilder content = new StringBuilder();
+        for (MavenProject prj : projects) {
+            HashVerDb.Entry entry = new HashVerDb.Entry(
+                    prj.getArtifactId(),
+                    hashVers.get(hashVerKey(prj, includeGroupId)),
+                    now);
+            content.append(entry.line()).append('\n');
+        }
+        try {
+            saveToFile(file, content.toString());
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error saving file: " + file.getAbsolutePath(), e);
+        }
+    }
+
     static void ensureDirExists(File dir) throws MojoExecutionException {
         if (!dir.exists() && !dir.mkdirs()) {
             throw new MojoExecutionException(
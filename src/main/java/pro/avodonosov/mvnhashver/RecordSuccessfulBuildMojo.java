@@ -0,0 +1,100 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static pro.avodonosov.mvnhashver.Logging.LOG_PREFIX;
+
+/**
+ * <p>Adds the db additions produced by the "projects-to-build" mojo
+ * to the db directory, after the build of the modules succeeded:
+ *
+ * <pre>
+ *     mvn hashver:projects-to-build -DdbDir=/shared/hashver-db
+ *     mvn install -pl "$(cat target/hashver-projects-to-build)" -am
+ *     mvn hashver:record-successful-build -DdbDir=/shared/hashver-db
+ * </pre>
+ *
+ * <p>Safe when many builds share the db directory: the additions
+ * are merged under an exclusive lock on the dbDir/hashver-db.lock file,
+ * and the "projects-to-build" mojo reads the db under a shared lock.
+ *
+ * <p>The module build durations saved by the build extension
+ * (see its recordDurations property) are recorded too,
+ * for planning of the next builds.
+ */
+@Mojo(name = "record-successful-build", requiresProject = false)
+public class RecordSuccessfulBuildMojo extends AbstractMojo {
+
+    @Parameter(property = "dbDir", required = true)
+    String dbDirPath;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        File dbDir = new File(dbDirPath);
+        if (!dbDir.isDirectory()) {
+            throw new MojoExecutionException(
+                    "Directory does not exist: " + dbDir.getAbsolutePath());
+        }
+
+        File additionsLog = new File(ProjectsToBuildMojo.DB_ADDITIONS_LOG);
+        File additionsDir = new File(ProjectsToBuildMojo.DB_ADDITIONS_DIR);
+        try {
+            int count;
+            if (additionsLog.exists()) {
+                List<HashVerDb.Entry> entries =
+                        HashVerDb.readEntries(additionsLog);
+                HashVerDb.add(dbDir, entries);
+                count = entries.size();
+            } else if (additionsDir.isDirectory()) {
+                count = HashVerDb.addLegacy(dbDir, additionsDir);
+            } else {
+                throw new MojoExecutionException(
+                        "No db additions found, run the projects-to-build"
+                                + " mojo first: "
+                                + additionsLog.getAbsolutePath());
+            }
+            getLog().info(LOG_PREFIX + "Recorded " + count
+                                  + " successfully built modules in the db "
+                                  + dbDir.getAbsolutePath());
+
+            File durationsFile = new File(ProjectsToBuildMojo.BUILD_DURATIONS);
+            if (durationsFile.exists()) {
+                Map<String, Long> durations =
+                        HashVerDb.loadDurations(durationsFile);
+                HashVerDb.recordDurations(dbDir, durations);
+                getLog().info(LOG_PREFIX + "Recorded build durations of "
+                                      + durations.size() + " modules");
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error adding to the db " + dbDir.getAbsolutePath(), e);
+        }
+    }
+}
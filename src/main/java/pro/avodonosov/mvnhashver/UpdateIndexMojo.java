@@ -0,0 +1,78 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Computes hashversions of the modules, and adds their artifacts
+ * to the index file used by the "index" existence check method
+ * of the build extension.
+ *
+ * <p>Intended to run after a successful deploy of the modules:
+ *
+ * <pre>
+ *     mvn hashver:update-index -DexistenceIndex=/shared/hashver-index.gz
+ * </pre>
+ *
+ * <p>The index must be a local file. If the extension reads it from
+ * a URL, publish the updated file there afterwards.
+ */
+@Mojo(name = "update-index", aggregator = true)
+public class UpdateIndexMojo extends HashVerMojo {
+
+    @Parameter(property = "existenceIndex", required = true)
+    File existenceIndex;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        Map<String, String> hashVers = super.executeImpl(mavenSession,
+                                                         includeGroupId,
+                                                         extraHashData);
+
+        List<String> entries = new ArrayList<>();
+        for (MavenProject prj : mavenSession.getProjects()) {
+            entries.add(HashVerIndex.entry(
+                    prj.getGroupId(),
+                    prj.getArtifactId(),
+                    hashVers.get(hashVerKey(prj, includeGroupId))));
+        }
+
+        try {
+            int added = HashVerIndex.add(existenceIndex, entries);
+            logInfo("Added " + added + " new artifacts to the index "
+                    + existenceIndex.getAbsolutePath());
+        } catch (IOException e) {
+            throw new MojoExecutionException(
+                    "Error updating index " + existenceIndex.getAbsolutePath(),
+                    e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import java.security.MessageDigest;
+
+/**
+ * Encodes characters to UTF-8 directly into a MessageDigest,
+ * through a reusable byte buffer, without creating intermediate
+ * strings or byte arrays.
+ *
+ * <p>The bytes fed to the digest are the same as
+ * String.getBytes(UTF_8) of all the appended text concatenated:
+ * surrogate pairs split between appends are combined,
+ * unpaired surrogates are replaced with '?'.
+ *
+ * <p>Not thread safe. Can be reused for several digests, see
+ * {@link #reset(MessageDigest)}.
+ */
+class Utf8DigestEncoder implements Appendable {
+
+    private static final byte REPLACEMENT = '?';
+
+    private final byte[] buf;
+    private int pos;
+
+    private MessageDigest digest;
+
+    // A high surrogate waiting for the low surrogate, or 0
+    private char pendingHigh;
+
+    Utf8DigestEncoder(int bufSize) {
+        // space for one 4-byte sequence at least
+        this.buf = new byte[Math.max(bufSize, 4)];
+    }
+
+    Utf8DigestEncoder reset(MessageDigest digest) {
+        this.digest = digest;
+        this.pos = 0;
+        this.pendingHigh = 0;
+        return this;
+    }
+
+    @Override
+    public Utf8DigestEncoder append(CharSequence csq) {
+        for (int i = 0, len = csq.length(); i < len; i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Utf8DigestEncoder append(CharSequence csq, int start, int end) {
+        for (int i = start; i < end; i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Utf8DigestEncoder append(char c) {
+        if (pendingHigh != 0) {
+            char high = pendingHigh;
+            pendingHigh = 0;
+            if (Character.isLowSurrogate(c)) {
+                writeCodePoint(Character.toCodePoint(high, c));
+                return this;
+            }
+            put(REPLACEMENT);
+        }
+
+        if (c < 0x80) {
+            put((byte) c);
+        } else if (c < 0x800) {
+            ensureSpace(2);
+            buf[pos++] = (byte) (0xC0 | (c >> 6));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHigh = c;
+        } else if (Character.isLowSurrogate(c)) {
+            put(REPLACEMENT);
+        } else {
+            ensureSpace(3);
+            buf[pos++] = (byte) (0xE0 | (c >> 12));
+            buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return this;
+    }
+
+    private void writeCodePoint(int cp) {
+        ensureSpace(4);
+        buf[pos++] = (byte) (0xF0 | (cp >> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+    }
+
+    private void put(byte b) {
+        ensureSpace(1);
+        buf[pos++] = b;
+    }
+
+    private void ensureSpace(int n) {
+        if (pos + n > buf.length) {
+            digest.update(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    /**
+     * Feeds the buffered bytes to the digest. Must be called
+     * after the last append.
+     */
+    void flush() {
+        if (pendingHigh != 0) {
+            pendingHigh = 0;
+            put(REPLACEMENT);
+        }
+        if (pos > 0) {
+            digest.update(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
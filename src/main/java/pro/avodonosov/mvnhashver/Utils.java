@@ -3,6 +3,20 @@ package pro.avodonosov.mvnhashver;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -33,4 +47,125 @@ public class Utils {
             }
         }
     }
+
+    interface IOAction<R> {
+        R run() throws IOException;
+    }
+
+    private static final Map<String, Object> IN_PROCESS_LOCKS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Runs the action holding a lock on the file.lock file, to synchronize
+     * access to the file with other processes. Creates the parent directory
+     * of the file if absent.
+     *
+     * A separate lock file is used because the file itself may be
+     * replaced by renaming a new version over it.
+     *
+     * File locks are held on behalf of the whole JVM (locking a file
+     * already locked by another thread of the JVM fails with
+     * OverlappingFileLockException), so threads of the same JVM
+     * are serialized by an in-process lock before that.
+     */
+    static <R> R withFileLock(File file, boolean shared, IOAction<R> action)
+            throws IOException
+    {
+        File lockFile = new File(file.getAbsolutePath() + ".lock");
+        Files.createDirectories(lockFile.getParentFile().toPath());
+        Object inProcessLock = IN_PROCESS_LOCKS.computeIfAbsent(
+                lockFile.getCanonicalPath(),
+                path -> new Object());
+        synchronized (inProcessLock) {
+            try (FileChannel channel = FileChannel.open(
+                    lockFile.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock(0, Long.MAX_VALUE, shared))
+            {
+                return action.run();
+            }
+        }
+    }
+
+    interface Task<T, R, E extends Exception> {
+        R apply(T elem) throws E;
+    }
+
+    /**
+     * Applies the task to every element of the list, using up to
+     * the specified number of threads. The results are returned
+     * in the order of the input elements, regardless of the order
+     * the tasks completed.
+     *
+     * When threads is 1 or less, the elements are processed
+     * sequentially in the current thread.
+     *
+     * If any task fails, the exception of the first failed
+     * element (in the input order) is rethrown.
+     */
+    static <T, R, E extends Exception> List<R> mapInParallel(
+            List<T> elems,
+            int threads,
+            Class<E> exceptionClass,
+            Task<T, R, E> task)
+            throws E
+    {
+        List<R> result = new ArrayList<>(elems.size());
+        if (threads <= 1 || elems.size() <= 1) {
+            for (T elem : elems) {
+                result.add(task.apply(elem));
+            }
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threads, elems.size()),
+                daemonThreadFactory("hashver-"));
+        try {
+            List<Future<R>> futures = new ArrayList<>(elems.size());
+            for (T elem : elems) {
+                futures.add(executor.submit(() -> task.apply(elem)));
+            }
+            for (Future<R> future : futures) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (exceptionClass.isInstance(cause)) {
+                throw exceptionClass.cast(cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return runnable -> {
+            Thread t = new Thread(
+                    runnable,
+                    namePrefix + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    static int availableThreads(int requested) {
+        return requested > 0
+                ? requested
+                : Runtime.getRuntime().availableProcessors();
+    }
 }
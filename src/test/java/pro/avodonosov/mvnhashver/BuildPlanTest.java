@@ -0,0 +1,196 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.project.MavenProject;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class BuildPlanTest {
+
+    private static List<String> ids(List<MavenProject> projects) {
+        return projects.stream()
+                .map(MavenProject::getArtifactId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void criticalPathTest() {
+        TestProjectGraph graph = new TestProjectGraph()
+                .add("a")
+                .add("c", "a")
+                .add("d", "c")
+                .add("b", "a");
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a", 10L);
+        durations.put("b", 100L);
+        durations.put("c", 50L);
+        durations.put("d", 50L);
+        BuildPlan plan = new BuildPlan(graph,
+                                       graph.getSortedProjects(),
+                                       durations);
+
+        assertEquals(110, plan.criticalPath());
+        assertEquals(210, plan.totalDuration());
+        // b is on the critical path, but ordered in the graph after c
+        assertEquals(Arrays.asList("a", "c", "b", "d"), ids(plan.order()));
+        assertEquals(110L, plan.tails.get(graph.get("a")));
+        assertEquals(100L, plan.tails.get(graph.get("c")));
+
+        assertEquals(210, plan.makespan(1));
+        assertEquals(110, plan.makespan(2));
+        assertEquals(2, plan.recommendedThreads());
+    }
+
+    @Test
+    public void estimatedDurationsTest() {
+        TestProjectGraph graph = new TestProjectGraph()
+                .add("a")
+                .add("b", "a")
+                .add("c", "a")
+                .add("d", "b", "c");
+
+        // Nothing recorded: all modules are equal
+        BuildPlan plan = new BuildPlan(graph,
+                                       graph.getSortedProjects(),
+                                       Collections.emptyMap());
+        assertEquals(3, plan.criticalPath());
+        assertEquals(2, plan.recommendedThreads());
+
+        // Unrecorded modules get the average duration,
+        // the modules not being built are not counted.
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a", 1000L);
+        durations.put("b", 30L);
+        durations.put("d", 10L);
+        plan = new BuildPlan(graph,
+                             Arrays.asList(graph.get("b"),
+                                           graph.get("c"),
+                                           graph.get("d")),
+                             durations);
+        assertEquals(20L, plan.durations.get(graph.get("c")));
+        assertEquals(Arrays.asList("b", "c", "d"), ids(plan.order()));
+        assertEquals(40, plan.criticalPath());
+    }
+
+    @Test
+    public void zeroDurationsTest() {
+        TestProjectGraph graph = new TestProjectGraph()
+                .add("a")
+                .add("b", "a")
+                .add("c", "a");
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a", 0L);
+        durations.put("b", 0L);
+        durations.put("c", -5L);
+        BuildPlan plan = new BuildPlan(graph,
+                                       graph.getSortedProjects(),
+                                       durations);
+        assertEquals(2, plan.criticalPath());
+        assertEquals(3, plan.totalDuration());
+        assertEquals(2, plan.recommendedThreads());
+    }
+
+    @Test
+    public void shardsTest() {
+        TestProjectGraph graph = new TestProjectGraph()
+                .add("a")
+                .add("c")
+                .add("b", "a")
+                .add("d", "c")
+                .add("e")
+                .add("x", "e")
+                .add("f", "x");
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a", 10L);
+        durations.put("b", 10L);
+        durations.put("c", 50L);
+        durations.put("d", 10L);
+        durations.put("e", 15L);
+        durations.put("f", 15L);
+        // x is not built, but connects e and f
+        List<MavenProject> toBuild = graph.getSortedProjects();
+        toBuild.remove(graph.get("x"));
+        BuildPlan plan = new BuildPlan(graph, toBuild, durations);
+
+        // The connected groups are chains, they are not split
+        List<List<List<MavenProject>>> waves = plan.shards(2);
+        assertEquals(1, waves.size());
+        List<List<MavenProject>> shards = waves.get(0);
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList("c", "d"), ids(shards.get(0)));
+        assertEquals(Arrays.asList("a", "b", "e", "f"), ids(shards.get(1)));
+
+        // No empty shards
+        shards = plan.shards(4).get(0);
+        assertEquals(3, shards.size());
+        assertEquals(Arrays.asList("c", "d"), ids(shards.get(0)));
+        assertEquals(Arrays.asList("e", "f"), ids(shards.get(1)));
+        assertEquals(Arrays.asList("a", "b"), ids(shards.get(2)));
+
+        // Without recorded durations the shards get equal module counts
+        plan = new BuildPlan(graph, toBuild, Collections.emptyMap());
+        shards = plan.shards(3).get(0);
+        assertEquals(Arrays.asList("a", "b"), ids(shards.get(0)));
+        assertEquals(Arrays.asList("c", "d"), ids(shards.get(1)));
+        assertEquals(Arrays.asList("e", "f"), ids(shards.get(2)));
+    }
+
+    @Test
+    public void shardWavesTest() {
+        TestProjectGraph graph = new TestProjectGraph()
+                .add("a")
+                .add("b", "a")
+                .add("c", "a")
+                .add("d", "a")
+                .add("e");
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a", 10L);
+        durations.put("b", 40L);
+        durations.put("c", 40L);
+        durations.put("d", 40L);
+        durations.put("e", 10L);
+        BuildPlan plan = new BuildPlan(graph,
+                                       graph.getSortedProjects(),
+                                       durations);
+
+        // The group of a is longer than a half of the build,
+        // it is split by the dependency levels
+        List<List<List<MavenProject>>> waves = plan.shards(2);
+        assertEquals(2, waves.size());
+        assertEquals(Arrays.asList("a"), ids(waves.get(0).get(0)));
+        assertEquals(Arrays.asList("e"), ids(waves.get(0).get(1)));
+        assertEquals(Arrays.asList("b", "d"), ids(waves.get(1).get(0)));
+        assertEquals(Arrays.asList("c"), ids(waves.get(1).get(1)));
+
+        // Fits into one shard of one
+        waves = plan.shards(1);
+        assertEquals(1, waves.size());
+        assertEquals(1, waves.get(0).size());
+    }
+}
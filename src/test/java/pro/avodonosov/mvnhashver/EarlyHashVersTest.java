@@ -0,0 +1,284 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.building.ModelProblem;
+import org.apache.maven.model.building.ModelSource;
+import org.apache.maven.model.io.xpp3.MavenXpp3Reader;
+import org.apache.maven.project.DependencyResolutionResult;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectBuilder;
+import org.apache.maven.project.ProjectBuildingException;
+import org.apache.maven.project.ProjectBuildingRequest;
+import org.apache.maven.project.ProjectBuildingResult;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+public class EarlyHashVersTest {
+
+    @TempDir
+    Path tmp;
+
+    private void pom(String dir, String content) throws IOException {
+        File file = tmp.resolve(dir).resolve("pom.xml").toFile();
+        file.getParentFile().mkdirs();
+        saveToFile(file, "<project>" + content + "</project>");
+    }
+
+    @Test
+    public void versionPropertiesTest() throws Exception {
+        pom(".", "<groupId>g</groupId><artifactId>root</artifactId>"
+                + "<modules><module>a</module><module>missing</module></modules>"
+                + "<profiles><profile><id>p</id>"
+                + "<modules><module>b/pom.xml</module></modules>"
+                + "</profile></profiles>");
+        pom("a", "<parent><groupId>g</groupId><artifactId>root</artifactId></parent>"
+                + "<artifactId>a</artifactId>"
+                + "<modules><module>../b</module></modules>");
+        pom("b", "<groupId>other</groupId><artifactId>b</artifactId>");
+
+        File rootPom = tmp.resolve("pom.xml").toFile();
+        assertEquals(new TreeSet<>(Arrays.asList(
+                             "root.version", "a.version", "b.version")),
+                     EarlyHashVers.versionProperties(rootPom, false));
+        assertEquals(new TreeSet<>(Arrays.asList(
+                             "g.root.version", "g.a.version", "other.b.version")),
+                     EarlyHashVers.versionProperties(rootPom, true));
+    }
+
+    @Test
+    public void mismatchesTest() {
+        Map<String, String> expected = new HashMap<>();
+        expected.put("a.version", "A");
+        expected.put("b.version", "B");
+        expected.put("c.version", "C");
+        Map<String, String> actual = new HashMap<>(expected);
+        assertEquals(0, EarlyHashVers.mismatches(expected, actual, "early")
+                .size());
+
+        actual.put("b.version", "B2");
+        actual.remove("c.version");
+        actual.put("d.version", "D");
+        assertEquals(Arrays.asList(
+                             "b.version: early B, actual B2",
+                             "c.version: early C, actual null",
+                             "d.version: early null, actual D"),
+                     EarlyHashVers.mismatches(expected, actual, "early"));
+    }
+
+    /**
+     * Reads the reactor poms, interpolating the ${...} versions
+     * with the system properties of the request, the way maven
+     * does it for the hashver properties.
+     */
+    static class StubProjectBuilder implements ProjectBuilder {
+        final TestReactor reactor;
+        final List<Properties> requestProperties = new ArrayList<>();
+
+        StubProjectBuilder(TestReactor reactor) {
+            this.reactor = reactor;
+        }
+
+        @Override
+        public List<ProjectBuildingResult> build(List<File> poms,
+                                                 boolean recursive,
+                                                 ProjectBuildingRequest request)
+                throws ProjectBuildingException
+        {
+            assertEquals(Collections.singletonList(
+                                 new File(reactor.root, "pom.xml")),
+                         poms);
+            assertTrue(recursive);
+            Properties props = request.getSystemProperties();
+            requestProperties.add(props);
+
+            List<ProjectBuildingResult> results = new ArrayList<>();
+            MavenProject root = null;
+            for (MavenProject original : reactor.projects()) {
+                Model model;
+                try (InputStream in = new FileInputStream(original.getFile())) {
+                    model = new MavenXpp3Reader().read(in);
+                } catch (IOException | XmlPullParserException e) {
+                    throw new ProjectBuildingException(
+                            original.getId(), e.getMessage(), e);
+                }
+                String version = model.getVersion();
+                assertTrue(version.startsWith("${") && version.endsWith("}"));
+                version = props.getProperty(
+                        version.substring(2, version.length() - 1),
+                        version);
+
+                MavenProject prj = new MavenProject();
+                prj.setGroupId("g");
+                prj.setArtifactId(model.getArtifactId());
+                prj.setVersion(version);
+                prj.setPackaging(model.getPackaging());
+                prj.setFile(original.getFile());
+                prj.setArtifact(TestReactor.artifact(
+                        "g", model.getArtifactId(), version, null));
+                if (root == null) {
+                    root = prj;
+                } else {
+                    prj.setParent(root);
+                }
+                results.add(result(prj));
+            }
+            return results;
+        }
+
+        private static ProjectBuildingResult result(MavenProject prj) {
+            return new ProjectBuildingResult() {
+                public String getProjectId() { return prj.getId(); }
+                public File getPomFile() { return prj.getFile(); }
+                public MavenProject getProject() { return prj; }
+                public List<ModelProblem> getProblems() { return Collections.emptyList(); }
+                public DependencyResolutionResult getDependencyResolutionResult() { return null; }
+            };
+        }
+
+        @Override
+        public ProjectBuildingResult build(File projectFile,
+                                           ProjectBuildingRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ProjectBuildingResult build(Artifact projectArtifact,
+                                           ProjectBuildingRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ProjectBuildingResult build(Artifact projectArtifact,
+                                           boolean allowStubModel,
+                                           ProjectBuildingRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ProjectBuildingResult build(ModelSource modelSource,
+                                           ProjectBuildingRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void computeTest() throws Exception {
+        TestReactor reactor = new TestReactor(tmp.toFile())
+                .module("a")
+                .module("b", "a")
+                .module("c", "a", "b");
+        reactor.file("b", "src/main/resources/b.txt", "b");
+
+        // The two-invocation hashver mode: the hashver mojo
+        // computes the hashversions of the projects read by maven
+        Map<String, String> expected =
+                HashVerMojoTest.hashVers(reactor, 1, false, false);
+
+        MavenSession session = reactor.session();
+        session.getRequest().setPom(new File(reactor.root, "pom.xml"));
+        StubProjectBuilder projectBuilder = new StubProjectBuilder(reactor);
+        EarlyHashVers early = new EarlyHashVers(
+                projectBuilder,
+                reactor.mojo().dependencyGraphBuilder,
+                new ConsoleLogger(Logger.LEVEL_DISABLED, "test"),
+                session);
+
+        assertEquals(expected, early.compute(session));
+        // computed from the projects read with the placeholder versions
+        Properties props = projectBuilder.requestProperties.get(0);
+        for (String prop : expected.keySet()) {
+            assertEquals(EarlyHashVers.PLACEHOLDER_VERSION,
+                         props.getProperty(prop));
+        }
+
+        // the projects read by maven with the computed hashversions
+        for (MavenProject prj : reactor.projects()) {
+            String version = expected.get(prj.getArtifactId() + ".version");
+            prj.setVersion(version);
+            prj.setArtifact(TestReactor.artifact(prj.getGroupId(),
+                                                 prj.getArtifactId(),
+                                                 version,
+                                                 null));
+        }
+        early.verify(reactor.session());
+
+        // a module read by maven differently fails the verification
+        reactor.file("c", "src/main/java/c/Main.java", "changed");
+        assertThrows(MavenExecutionException.class,
+                     () -> early.verify(reactor.session()));
+    }
+
+    @Test
+    public void invalidPropertiesTest() throws Exception {
+        MavenSession session = new TestReactor(tmp.toFile()).session();
+        Logger logger = new ConsoleLogger(Logger.LEVEL_DISABLED, "test");
+
+        Properties props = new Properties();
+        props.setProperty("hashverThreads", "4");
+        props.setProperty("hashAlgorithm", "murmur3");
+        HashVerMojo mojo = EarlyHashVers.hashVerMojo(props, null, logger, session);
+        assertEquals(4, mojo.threads);
+        assertEquals(HashVerMojo.HashAlgorithm.murmur3, mojo.hashAlgorithm);
+
+        for (String[] invalid : new String[][] {{"hashverThreads", "four"},
+                                                {"hashverThreads", "-1"},
+                                                {"hashAlgorithm", "md5"}})
+        {
+            Properties invalidProps = new Properties();
+            invalidProps.setProperty(invalid[0], invalid[1]);
+            MavenExecutionException e = assertThrows(
+                    MavenExecutionException.class,
+                    () -> EarlyHashVers.hashVerMojo(
+                            invalidProps, null, logger, session));
+            assertTrue(e.getMessage().contains(invalid[0]), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+public class ExistenceCacheTest {
+
+    private static final long TTL = 60_000;
+
+    private static final RemoteRepository REPO = new RemoteRepository.Builder(
+            "r", "default", "http://example.com/repo").build();
+
+    private static final RemoteRepository OTHER_REPO = new RemoteRepository.Builder(
+            "r", "default", "http://example.com/other").build();
+
+    @TempDir
+    Path tmp;
+
+    private static Artifact artifact(String version) {
+        return new DefaultArtifact("g", "a", "jar", version);
+    }
+
+    @Test
+    public void getPutTest() throws IOException {
+        File file = tmp.resolve("cache").toFile();
+
+        ExistenceCache cache = ExistenceCache.load(file, TTL);
+        assertNull(cache.get(REPO, artifact("1")));
+
+        cache.put(REPO, artifact("1"), true);
+        cache.put(REPO, artifact("2"), false);
+        assertEquals(true, cache.get(REPO, artifact("1")));
+        assertEquals(false, cache.get(REPO, artifact("2")));
+        // the key includes repository URL
+        assertNull(cache.get(OTHER_REPO, artifact("1")));
+        cache.save();
+
+        cache = ExistenceCache.load(file, TTL);
+        assertEquals(true, cache.get(REPO, artifact("1")));
+        assertEquals(false, cache.get(REPO, artifact("2")));
+        assertNull(cache.get(REPO, artifact("3")));
+
+        // negative entries expire, positive ones don't
+        cache = ExistenceCache.load(file, 0);
+        assertEquals(true, cache.get(REPO, artifact("1")));
+        assertNull(cache.get(REPO, artifact("2")));
+    }
+
+    @Test
+    public void concurrentBuildsTest() throws IOException {
+        File file = tmp.resolve("cache").toFile();
+
+        // Two builds load the cache before any of them saved
+        ExistenceCache build1 = ExistenceCache.load(file, TTL);
+        ExistenceCache build2 = ExistenceCache.load(file, TTL);
+
+        build1.put(REPO, artifact("1"), true);
+        build1.put(REPO, artifact("2"), true);
+        build2.put(REPO, artifact("2"), false);
+        build2.put(REPO, artifact("3"), false);
+
+        build1.save();
+        build2.save();
+
+        ExistenceCache cache = ExistenceCache.load(file, TTL);
+        assertEquals(true, cache.get(REPO, artifact("1")));
+        // a found artifact stays found
+        assertEquals(true, cache.get(REPO, artifact("2")));
+        assertEquals(false, cache.get(REPO, artifact("3")));
+    }
+
+    @Test
+    public void compactionTest() throws IOException {
+        File file = tmp.resolve("cache").toFile();
+
+        // enough saves for the obsolete lines to exceed the slack
+        int saves = ExistenceCache.COMPACTION_SLACK / 100 + 3;
+        for (int i = 0; i < saves; i++) {
+            ExistenceCache cache = ExistenceCache.load(file, TTL);
+            for (int j = 0; j < 100; j++) {
+                cache.put(REPO, artifact(String.valueOf(j)), j % 2 == 0);
+            }
+            cache.save();
+        }
+
+        List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+        assertEquals(ExistenceCache.FORMAT_VERSION, lines.get(0));
+        assertEquals(true,
+                     lines.size() < ExistenceCache.COMPACTION_SLACK + 200,
+                     "lines: " + lines.size());
+
+        ExistenceCache cache = ExistenceCache.load(file, TTL);
+        for (int j = 0; j < 100; j++) {
+            assertEquals(j % 2 == 0, cache.get(REPO, artifact(String.valueOf(j))));
+        }
+    }
+
+    @Test
+    public void unknownFormatTest() throws IOException {
+        File file = tmp.resolve("cache").toFile();
+        saveToFile(file, "something else\n+ 1 r x g:a:jar::1\n");
+
+        ExistenceCache cache = ExistenceCache.load(file, TTL);
+        assertNull(cache.get(REPO, artifact("1")));
+        cache.put(REPO, artifact("1"), true);
+        cache.save();
+
+        List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals(ExistenceCache.FORMAT_VERSION, lines.get(0));
+        assertEquals(true, ExistenceCache.load(file, TTL).get(REPO, artifact("1")));
+    }
+}
@@ -0,0 +1,110 @@
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+public class FileDigestCacheTest {
+
+    static final FileHasher HASHER = FileHasher.fromSystemProperties();
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void blobDigestTest() throws IOException {
+        // Same as `echo hello | git hash-object --stdin`
+        File f = new File(tmp.toFile(), "a.txt");
+        saveToFile(f, "hello\n");
+        assertEquals("ce013625030ba8dba906f756967f9e9ca394464a",
+                     hex(FileDigestCache.blobDigest(f, f.length(), HASHER)));
+    }
+
+    @Test
+    public void cacheTest() throws IOException {
+        File baseDir = tmp.toFile();
+        File cacheFile = new File(baseDir, "target/cache");
+        File a = new File(baseDir, "a.txt");
+        File b = new File(baseDir, "b.txt");
+        saveToFile(a, "a content");
+        saveToFile(b, "b content");
+        long past = System.currentTimeMillis() - 60000;
+        a.setLastModified(past);
+
+        FileDigestCache cache = FileDigestCache.load(cacheFile, baseDir, HASHER);
+        byte[] aDigest = cache.fileDigest(a);
+        cache.fileDigest(b);
+        assertEquals(2, cache.misses.get());
+        cache.save(cacheFile);
+
+        cache = FileDigestCache.load(cacheFile, baseDir, HASHER);
+        assertArrayEquals(aDigest, cache.fileDigest(a));
+        // b was modified just now, the entry is racy and is not trusted
+        cache.fileDigest(b);
+        assertEquals(1, cache.hits.get());
+        assertEquals(1, cache.misses.get());
+        cache.save(cacheFile);
+
+        // modification with the same size and mtime of a non racy entry
+        // is not noticed - that's the cache contract
+        saveToFile(a, "A content");
+        a.setLastModified(past);
+        cache = FileDigestCache.load(cacheFile, baseDir, HASHER);
+        assertArrayEquals(aDigest, cache.fileDigest(a));
+
+        // mtime change is noticed
+        a.setLastModified(past + 1000);
+        cache = FileDigestCache.load(cacheFile, baseDir, HASHER);
+        byte[] newDigest = cache.fileDigest(a);
+        assertEquals(0, cache.hits.get());
+        assertEquals(hex(FileDigestCache.blobDigest(a, a.length(), HASHER)),
+                     hex(newDigest));
+    }
+
+    @Test
+    public void shortFileNameTest() throws IOException {
+        // File.createTempFile requires a prefix of 3+ characters,
+        // so the temp file name must not be based on the cache file name.
+        File baseDir = tmp.toFile();
+        File cacheFile = new File(baseDir, "fc");
+        File a = new File(baseDir, "a.txt");
+        saveToFile(a, "a content");
+        a.setLastModified(System.currentTimeMillis() - 60000);
+
+        FileDigestCache cache = FileDigestCache.load(cacheFile, baseDir, HASHER);
+        byte[] aDigest = cache.fileDigest(a);
+        cache.save(cacheFile);
+
+        cache = FileDigestCache.load(cacheFile, baseDir, HASHER);
+        assertArrayEquals(aDigest, cache.fileDigest(a));
+        assertEquals(1, cache.hits.get());
+    }
+
+    @Test
+    public void unknownFormatTest() throws IOException {
+        File baseDir = tmp.toFile();
+        File cacheFile = new File(baseDir, "cache");
+        saveToFile(cacheFile, "garbage");
+        File a = new File(baseDir, "a.txt");
+        saveToFile(a, "a content");
+
+        FileDigestCache cache = FileDigestCache.load(cacheFile, baseDir, HASHER);
+        cache.fileDigest(a);
+        assertEquals(1, cache.misses.get());
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
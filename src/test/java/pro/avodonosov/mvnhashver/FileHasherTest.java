@@ -0,0 +1,56 @@
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+public class FileHasherTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void hashTest() throws Exception {
+        Random random = new Random(1);
+        FileHasher reading = new FileHasher(false, Long.MAX_VALUE);
+        FileHasher mapping = new FileHasher(false, 0);
+        int[] sizes = {0, 1, 1000, FileHasher.BUF_SIZE, FileHasher.BUF_SIZE + 1,
+                       3 * FileHasher.BUF_SIZE + 17};
+        for (int size : sizes) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            File f = new File(tmp.toFile(), "f" + size);
+            saveToFile(f, content);
+
+            MessageDigest expected = MessageDigest.getInstance("SHA-1");
+            expected.update(Files.readAllBytes(f.toPath()));
+            byte[] expectedDigest = expected.digest();
+
+            for (FileHasher hasher : new FileHasher[] {reading, mapping}) {
+                MessageDigest actual = MessageDigest.getInstance("SHA-1");
+                hasher.hash(f, actual);
+                assertArrayEquals(expectedDigest, actual.digest());
+            }
+        }
+    }
+
+    @Test
+    public void mmapThresholdTest() {
+        assertEquals(0, FileHasher.parseMmapThreshold("0"));
+        assertEquals(1048576, FileHasher.parseMmapThreshold(" 1048576 "));
+        assertThrows(IllegalArgumentException.class,
+                     () -> FileHasher.parseMmapThreshold("1M"));
+        assertThrows(IllegalArgumentException.class,
+                     () -> FileHasher.parseMmapThreshold("-1"));
+    }
+}
@@ -0,0 +1,151 @@
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static pro.avodonosov.mvnhashver.FileDigestCacheTest.hex;
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+public class GitIndexTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void sameTimeTest() {
+        assertTrue(GitIndex.sameTime(1_123_456_789L, 1_123_456_789L));
+        assertTrue(GitIndex.sameTime(1_123_456_789L, 1_123_456_000L));
+        assertTrue(GitIndex.sameTime(1_123_456_789L, 1_123_000_000L));
+        assertTrue(GitIndex.sameTime(1_123_456_789L, 1_000_000_000L));
+        assertFalse(GitIndex.sameTime(1_123_456_789L, 1_123_456_788L));
+        assertFalse(GitIndex.sameTime(1_123_456_789L, 1_123_457_000L));
+        assertFalse(GitIndex.sameTime(1_123_456_789L, 2_000_000_000L));
+    }
+
+    @Test
+    public void indexV2Test() throws Exception {
+        indexTest(2);
+    }
+
+    @Test
+    public void indexV3Test() throws Exception {
+        indexTest(3);
+    }
+
+    @Test
+    public void indexV4Test() throws Exception {
+        indexTest(4);
+    }
+
+    private void indexTest(int version) throws Exception {
+        File repo = tmp.toFile();
+        assumeTrue(git(repo, "init", "-q") != null, "git is not available");
+
+        File dir = new File(repo, "module/src/main/some-rather-long-directory-name");
+        assertTrue(dir.mkdirs());
+        File a = new File(dir, "a.txt");
+        File b = new File(dir, "b.txt");
+        File c = new File(repo, "module/src/c.txt");
+        File untracked = new File(repo, "module/src/untracked.txt");
+        saveToFile(a, "a content");
+        saveToFile(b, "b content\n");
+        saveToFile(c, "");
+        saveToFile(untracked, "untracked");
+        long past = System.currentTimeMillis() - 60000;
+        for (File f : new File[] {a, b, c, untracked}) {
+            f.setLastModified(past);
+        }
+        git(repo, "add", "module/src/main", "module/src/c.txt");
+        git(repo, "update-index", "--index-version", String.valueOf(version));
+
+        GitIndex index = GitIndex.find(new File(repo, "module"));
+        assertNotNull(index);
+        assertEquals(3, index.size());
+        for (File f : new File[] {a, b, c}) {
+            assertEquals(git(repo, "hash-object", f.getPath()),
+                         hex(index.cleanBlobId(f)));
+        }
+        assertNull(index.cleanBlobId(untracked));
+
+        saveToFile(b, "modified\n");
+        assertNull(index.cleanBlobId(b));
+    }
+
+    @Test
+    public void contentConversionTest() throws Exception {
+        File repo = tmp.toFile();
+        assumeTrue(git(repo, "init", "-q") != null, "git is not available");
+        File a = new File(repo, "a.txt");
+        saveToFile(a, "a content");
+        git(repo, "add", "a.txt");
+
+        List<File> none = Collections.emptyList();
+        assertNull(GitIndex.find(repo).contentConversion(none, none));
+
+        git(repo, "config", "core.autocrlf", "input");
+        assertNotNull(GitIndex.find(repo).contentConversion(none, none));
+        git(repo, "config", "core.autocrlf", "false");
+        assertNull(GitIndex.find(repo).contentConversion(none, none));
+
+        File sub = new File(repo, "sub");
+        assertTrue(sub.mkdirs());
+        File attributes = new File(sub, ".gitattributes");
+        saveToFile(attributes, "# comment\n*.bin binary\n*.png -text\n");
+        git(repo, "add", "sub/.gitattributes");
+        assertNull(GitIndex.find(repo).contentConversion(none, none));
+
+        saveToFile(attributes, "*.java eol=lf\n");
+        assertNotNull(GitIndex.find(repo).contentConversion(none, none));
+
+        // untracked .gitattributes is not seen
+        saveToFile(attributes, "");
+        saveToFile(new File(repo, ".gitattributes"), "* text=auto\n");
+        assertNull(GitIndex.find(repo).contentConversion(none, none));
+
+        File global = new File(repo, "global-attributes");
+        saveToFile(global, "*.txt filter=lfs\n");
+        assertNotNull(GitIndex.find(repo).contentConversion(
+                none, Collections.singletonList(global)));
+    }
+
+    private static String git(File dir, String... args) throws InterruptedException {
+        String[] cmd = new String[args.length + 1];
+        cmd[0] = "git";
+        System.arraycopy(args, 0, cmd, 1, args.length);
+        try {
+            Process p = new ProcessBuilder(cmd)
+                    .directory(dir)
+                    .redirectErrorStream(true)
+                    .start();
+            String firstLine;
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(p.getInputStream(), UTF_8)))
+            {
+                firstLine = in.readLine();
+                while (in.readLine() != null) {
+                    // drain
+                }
+            }
+            return p.waitFor() == 0
+                    ? (firstLine == null ? "" : firstLine.trim())
+                    : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Many processes adding to the same db and reading it concurrently,
+ * with frequent compactions.
+ */
+public class HashVerDbStressTest {
+
+    static final int PROCESSES = 8;
+    static final int ROUNDS = 40;
+    static final int BATCH = 5;
+    static final int COMPACTION_THRESHOLD = 30;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void concurrentProcessesTest() throws Exception {
+        File dir = tmp.toFile();
+        String java = System.getProperty("java.home")
+                + File.separator + "bin" + File.separator + "java";
+
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < PROCESSES; i++) {
+            processes.add(new ProcessBuilder(
+                    java,
+                    "-cp", System.getProperty("java.class.path"),
+                    HashVerDbStressTest.class.getName(),
+                    dir.getAbsolutePath(),
+                    "p" + i)
+                    .redirectErrorStream(true)
+                    .redirectOutput(tmp.resolve("p" + i + ".out").toFile())
+                    .start());
+        }
+        for (int i = 0; i < PROCESSES; i++) {
+            Process p = processes.get(i);
+            String name = "p" + i;
+            assertTrue(p.waitFor(2, TimeUnit.MINUTES), name + " timeout");
+            assertEquals(0, p.exitValue(), () -> output(name));
+        }
+
+        HashVerDb.compact(dir);
+        List<String> lines = Files.readAllLines(
+                tmp.resolve(HashVerDb.INDEX_FILE), UTF_8);
+        // every process adds its own entries and a shared one
+        assertEquals(PROCESSES * ROUNDS * BATCH + 1, lines.size());
+        HashVerDb db = HashVerDb.open(dir);
+        for (int i = 0; i < PROCESSES; i++) {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int b = 0; b < BATCH; b++) {
+                    assertTrue(db.contains("p" + i, hashVer(r, b)));
+                }
+            }
+        }
+    }
+
+    private String output(String name) {
+        try {
+            return new String(Files.readAllBytes(tmp.resolve(name + ".out")),
+                              UTF_8);
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    static String hashVer(int round, int elem) {
+        return "H" + round + ".D" + elem;
+    }
+
+    /**
+     * A writer process: adds its batches and checks after each batch
+     * that a db snapshot contains all the batches added so far.
+     */
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args[0]);
+        String artifactId = args[1];
+        for (int r = 0; r < ROUNDS; r++) {
+            List<HashVerDb.Entry> entries = new ArrayList<>();
+            for (int b = 0; b < BATCH; b++) {
+                entries.add(new HashVerDb.Entry(artifactId,
+                                                hashVer(r, b),
+                                                System.currentTimeMillis()));
+            }
+            entries.add(new HashVerDb.Entry("shared", "S.1",
+                                            System.currentTimeMillis()));
+            HashVerDb.add(dir, entries, COMPACTION_THRESHOLD);
+
+            HashVerDb db = HashVerDb.open(dir);
+            for (int pr = 0; pr <= r; pr++) {
+                for (int b = 0; b < BATCH; b++) {
+                    if (!db.contains(artifactId, hashVer(pr, b))) {
+                        throw new AssertionError("Missing " + artifactId
+                                                 + " " + hashVer(pr, b)
+                                                 + " in round " + r);
+                    }
+                }
+            }
+        }
+    }
+}
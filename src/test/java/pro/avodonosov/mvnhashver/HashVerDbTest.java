@@ -0,0 +1,255 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+public class HashVerDbTest {
+
+    @TempDir
+    Path tmp;
+
+    private static HashVerDb.Entry entry(String artifactId, String hashVer) {
+        return new HashVerDb.Entry(artifactId, hashVer, 1);
+    }
+
+    private List<String> indexLines() throws IOException {
+        return Files.readAllLines(tmp.resolve(HashVerDb.INDEX_FILE), UTF_8);
+    }
+
+    @Test
+    public void addContainsTest() throws IOException {
+        File dir = tmp.toFile();
+        assertFalse(HashVerDb.exists(dir));
+        assertFalse(HashVerDb.open(dir).contains("a", "A.B"));
+
+        HashVerDb.add(dir, Arrays.asList(entry("a", "A.B"),
+                                         entry("b", "B.C")));
+        assertTrue(HashVerDb.exists(dir));
+        HashVerDb db = HashVerDb.open(dir);
+        assertTrue(db.contains("a", "A.B"));
+        assertTrue(db.contains("b", "B.C"));
+        assertFalse(db.contains("a", "B.C"));
+
+        // a snapshot
+        HashVerDb.add(dir, Collections.singletonList(entry("c", "C.D")));
+        assertFalse(db.contains("c", "C.D"));
+        assertTrue(HashVerDb.open(dir).contains("c", "C.D"));
+    }
+
+    @Test
+    public void binarySearchTest() throws IOException {
+        File dir = tmp.toFile();
+        List<HashVerDb.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 300; i += 3) {
+            // prefixes of each other, to check the key end detection
+            entries.add(entry("m" + i, "H.D"));
+            entries.add(entry("m" + i, "H.D" + i));
+            entries.add(entry("m" + i + "x", "H.D"));
+        }
+        HashVerDb.add(dir, entries);
+        assertEquals(300, HashVerDb.compact(dir));
+        assertFalse(tmp.resolve(HashVerDb.LOG_FILE).toFile().exists());
+
+        HashVerDb db = HashVerDb.open(dir);
+        for (HashVerDb.Entry e : entries) {
+            assertTrue(db.contains(e.artifactId, e.hashVer), e.line());
+        }
+        assertFalse(db.contains("m0", "H"));
+        assertFalse(db.contains("m0", "H.D0x"));
+        assertFalse(db.contains("m1", "H.D"));
+        assertFalse(db.contains("a", "H.D"));
+        assertFalse(db.contains("z", "H.D"));
+    }
+
+    @Test
+    public void compactionTest() throws IOException {
+        File dir = tmp.toFile();
+        HashVerDb.add(dir, Arrays.asList(new HashVerDb.Entry("b", "B.1", 5),
+                                         new HashVerDb.Entry("a", "A.1", 5)));
+        HashVerDb.compact(dir);
+        HashVerDb.add(dir, Arrays.asList(new HashVerDb.Entry("b", "B.1", 7),
+                                         new HashVerDb.Entry("a", "A.2", 3)));
+        HashVerDb.compact(dir);
+        assertEquals(Arrays.asList("a A.1 5", "a A.2 3", "b B.1 7"),
+                     indexLines());
+
+        // compaction when the log reaches the threshold
+        List<HashVerDb.Entry> entries = new ArrayList<>();
+        for (int i = 0; i <= HashVerDb.LOG_COMPACTION_THRESHOLD; i++) {
+            entries.add(entry("c", "C." + i));
+        }
+        HashVerDb.add(dir, entries);
+        assertFalse(tmp.resolve(HashVerDb.LOG_FILE).toFile().exists());
+        assertEquals(HashVerDb.LOG_COMPACTION_THRESHOLD + 4,
+                     indexLines().size());
+    }
+
+    @Test
+    public void legacyMigrationTest() throws IOException {
+        File dir = tmp.toFile();
+        for (String path : Arrays.asList("b-X.Y/X1.Y1",
+                                         "a-X.Y/X1.Y2",
+                                         "a-X.Y/X1.Y1",
+                                         "a-Z.Y/Z1.Y1"))
+        {
+            File f = new File(dir, path);
+            f.getParentFile().mkdirs();
+            saveToFile(f, "1");
+            assertTrue(f.setLastModified(1000));
+        }
+        saveToFile(new File(dir, "notes.txt"), "not an entry");
+        // named like legacy directories, but not of the db
+        File backup = new File(dir, "backup-1.2/data.txt");
+        backup.getParentFile().mkdirs();
+        saveToFile(backup, "not an entry");
+        File other = new File(dir, "c-X!Y/X1.Y1");
+        other.getParentFile().mkdirs();
+        saveToFile(other, "not an entry");
+        // not an entry in a legacy directory
+        File readme = new File(dir, "b-X.Y/README");
+        saveToFile(readme, "not an entry");
+
+        assertEquals(4, HashVerDb.compact(dir));
+        assertEquals(Arrays.asList("a X1.Y1 1000",
+                                   "a X1.Y2 1000",
+                                   "a Z1.Y1 1000",
+                                   "b X1.Y1 1000"),
+                     indexLines());
+        assertFalse(new File(dir, "a-X.Y").exists());
+        assertTrue(new File(dir, "notes.txt").exists());
+        assertTrue(backup.exists());
+        assertTrue(other.exists());
+        assertTrue(readme.exists());
+        assertFalse(new File(dir, "b-X.Y/X1.Y1").exists());
+    }
+
+    @Test
+    public void incompleteLogLineTest() throws IOException {
+        File dir = tmp.toFile();
+        HashVerDb.add(dir, Collections.singletonList(entry("a", "A.1")));
+        // as if a writer was killed in the middle of an append
+        Files.write(tmp.resolve(HashVerDb.LOG_FILE),
+                    "b B.1 1".getBytes(UTF_8),
+                    StandardOpenOption.APPEND);
+        assertEquals(1, HashVerDb.readLog(dir).size());
+        assertFalse(HashVerDb.open(dir).contains("b", "B.1"));
+
+        HashVerDb.add(dir, Collections.singletonList(entry("c", "C.1")));
+        assertEquals(Arrays.asList("a A.1 1", "c C.1 1"),
+                     Files.readAllLines(tmp.resolve(HashVerDb.LOG_FILE)));
+    }
+
+    @Test
+    public void addLegacyTest() throws IOException {
+        File additions = tmp.resolve("additions").toFile();
+        File a = new File(additions, "a-X.Y/X1.Y1");
+        a.getParentFile().mkdirs();
+        saveToFile(a, "1");
+
+        File legacyDb = tmp.resolve("legacy").toFile();
+        assertEquals(1, HashVerDb.addLegacy(legacyDb, additions));
+        assertTrue(new File(legacyDb, "a-X.Y/X1.Y1").isFile());
+        assertEquals(1, new File(legacyDb, "a-X.Y").list().length);
+        assertFalse(HashVerDb.exists(legacyDb));
+
+        File compactDb = tmp.resolve("compact").toFile();
+        HashVerDb.add(compactDb, Collections.singletonList(entry("b", "B.1")));
+        assertEquals(1, HashVerDb.addLegacy(compactDb, additions));
+        assertTrue(HashVerDb.open(compactDb).contains("a", "X1.Y1"));
+    }
+
+    @Test
+    public void gcTest() throws IOException {
+        File dir = tmp.toFile();
+        List<HashVerDb.Entry> entries = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            entries.add(new HashVerDb.Entry("a", "A." + i, i * 10));
+        }
+        entries.add(new HashVerDb.Entry("b", "B.1", 10));
+        entries.add(new HashVerDb.Entry("b", "B.2", 50));
+        HashVerDb.add(dir, entries);
+        File legacy = new File(dir, "c-C.1/C.1");
+        legacy.getParentFile().mkdirs();
+        saveToFile(legacy, "1");
+        assertTrue(legacy.setLastModified(40));
+
+        HashVerDb.GcPolicy policy = new HashVerDb.GcPolicy(
+                3, 20, Collections.singleton("A.1"));
+        List<String> removed = new ArrayList<>();
+        HashVerDb.GcReport report = HashVerDb.gc(
+                dir, policy, true, e -> removed.add(e.line()));
+        assertEquals(Arrays.asList("a A.2 20", "b B.1 10"), removed);
+        assertEquals(2, report.removed);
+        assertEquals(6, report.kept);
+        assertEquals(1L, report.removedPerArtifact.get("a"));
+        // dry run changes nothing
+        assertTrue(legacy.exists());
+        assertFalse(tmp.resolve(HashVerDb.INDEX_FILE).toFile().exists());
+
+        removed.clear();
+        report = HashVerDb.gc(dir, policy, false, e -> removed.add(e.line()));
+        assertEquals(Arrays.asList("a A.2 20", "b B.1 10"), removed);
+        assertEquals(Arrays.asList("a A.1 10",
+                                   "a A.3 30",
+                                   "a A.4 40",
+                                   "a A.5 50",
+                                   "b B.2 50",
+                                   "c C.1 40"),
+                     indexLines());
+        assertFalse(legacy.exists());
+        assertFalse(tmp.resolve(HashVerDb.LOG_FILE).toFile().exists());
+    }
+
+    @Test
+    public void durationsTest() throws IOException {
+        File dir = tmp.toFile();
+        assertEquals(Collections.emptyMap(), HashVerDb.durations(dir));
+
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("a", 100L);
+        durations.put("b", 10L);
+        HashVerDb.recordDurations(dir, durations);
+        assertEquals(durations, HashVerDb.durations(dir));
+
+        HashVerDb.recordDurations(dir, Collections.singletonMap("a", 200L));
+        durations.put("a", 150L);
+        assertEquals(durations, HashVerDb.durations(dir));
+    }
+}
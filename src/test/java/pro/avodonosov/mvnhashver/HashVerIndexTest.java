@@ -0,0 +1,106 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pro.avodonosov.mvnhashver.HashVerIndex.entry;
+import static pro.avodonosov.mvnhashver.Utils.mapInParallel;
+
+public class HashVerIndexTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void addAndLoadTest() throws IOException {
+        for (String name : new String[] {"index.txt", "index.gz"}) {
+            File file = tmp.resolve(name).toFile();
+
+            assertEquals(2, HashVerIndex.add(file, Arrays.asList(
+                    entry("g", "b", "B.1"),
+                    entry("g", "a", "A.1"))));
+            assertEquals(1, HashVerIndex.add(file, Arrays.asList(
+                    entry("g", "a", "A.1"),
+                    entry("g", "a", "A.2"))));
+            assertEquals(0, HashVerIndex.add(file, Collections.singletonList(
+                    entry("g", "a", "A.2"))));
+
+            for (String location : new String[] {file.getPath(),
+                                                 file.toURI().toString()})
+            {
+                HashVerIndex index = HashVerIndex.load(location, file);
+                assertEquals(3, index.size());
+                assertTrue(index.contains("g", "a", "A.1"));
+                assertTrue(index.contains("g", "a", "A.2"));
+                assertTrue(index.contains("g", "b", "B.1"));
+                assertFalse(index.contains("g", "b", "B.2"));
+                assertFalse(index.contains("x", "a", "A.1"));
+            }
+        }
+
+        // the plain text index is sorted
+        assertEquals(Arrays.asList("g:a:A.1", "g:a:A.2", "g:b:B.1"),
+                     Files.readAllLines(tmp.resolve("index.txt"), UTF_8));
+    }
+
+    @Test
+    public void concurrentAddTest() throws Exception {
+        File file = tmp.resolve("index.gz").toFile();
+
+        List<Integer> builds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            builds.add(i);
+        }
+        mapInParallel(builds, 8, IOException.class, i -> HashVerIndex.add(
+                file,
+                Arrays.asList(entry("g", "common", "1"),
+                              entry("g", "m" + i, "1"))));
+
+        HashVerIndex index = HashVerIndex.load(file.getPath(), file);
+        assertEquals(21, index.size());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(index.contains("g", "m" + i, "1"));
+        }
+    }
+
+    @Test
+    public void isUrlTest() {
+        assertTrue(HashVerIndex.isUrl("https://example.com/index.gz"));
+        assertTrue(HashVerIndex.isUrl("file:///tmp/index.gz"));
+        assertFalse(HashVerIndex.isUrl("/tmp/index.gz"));
+        assertFalse(HashVerIndex.isUrl("target/index.gz"));
+        assertFalse(HashVerIndex.isUrl("C:\\index.gz"));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.project.MavenProject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+public class HashVerInputsTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void storeLoadTest() throws IOException {
+        File file = tmp.resolve("target/inputs.properties").toFile();
+        assertNull(HashVerInputs.load(file));
+
+        Properties params = new Properties();
+        params.setProperty("extraHashData", "x");
+        params.setProperty("hashAlgorithm", "murmur3");
+        Map<String, String> ownHashes = new HashMap<>();
+        ownHashes.put("a.version", "A");
+        ownHashes.put("b.version", "B");
+        HashVerInputs.store(file,
+                            params,
+                            ownHashes,
+                            Collections.singletonMap("a.version", "FA"));
+
+        HashVerInputs inputs = HashVerInputs.load(file);
+        assertEquals(params, inputs.params);
+        assertEquals(ownHashes, inputs.ownHashes);
+        assertEquals(Collections.singletonMap("a.version", "FA"),
+                     inputs.fingerprints);
+
+        saveToFile(file, "ownHash.a.version=A\n");
+        assertNull(HashVerInputs.load(file));
+    }
+
+    private File file(String path, String content) throws IOException {
+        File file = tmp.resolve(path).toFile();
+        file.getParentFile().mkdirs();
+        saveToFile(file, content);
+        return file;
+    }
+
+    @Test
+    public void fingerprintTest() throws IOException {
+        MavenProject parent = new MavenProject();
+        parent.setFile(file("pom.xml", "<project/>"));
+        MavenProject module = new MavenProject();
+        module.setFile(file("m/pom.xml", "<project/>"));
+        module.setParent(parent);
+        File src = file("m/src/main/java/A.java", "class A {}");
+
+        String fingerprint = HashVerInputs.fingerprint(module);
+        assertEquals(fingerprint, HashVerInputs.fingerprint(module));
+
+        // a source file modification
+        assertEquals(true, src.setLastModified(src.lastModified() - 10_000));
+        String modified = HashVerInputs.fingerprint(module);
+        assertNotEquals(fingerprint, modified);
+
+        // a new empty directory
+        assertEquals(true, tmp.resolve("m/src/test").toFile().mkdir());
+        String newDir = HashVerInputs.fingerprint(module);
+        assertNotEquals(modified, newDir);
+
+        // a parent pom change
+        file("pom.xml", "<project></project>");
+        assertNotEquals(newDir, HashVerInputs.fingerprint(module));
+
+        // files outside of src/ don't matter
+        String current = HashVerInputs.fingerprint(module);
+        file("m/target/classes/A.class", "x");
+        file("m/README", "x");
+        assertEquals(current, HashVerInputs.fingerprint(module));
+    }
+
+    @Test
+    public void racyFingerprintTest() throws IOException {
+        MavenProject module = new MavenProject();
+        module.setFile(file("m/pom.xml", "<project/>"));
+        File src = file("m/src/main/java/A.java", "class A {}");
+
+        // just modified, may be modified again with the same mtime
+        assertEquals(Collections.emptyMap(),
+                     HashVerInputs.fingerprints(
+                             Collections.singletonList(module),
+                             prj -> "m.version"));
+
+        long old = System.currentTimeMillis() - 10_000;
+        assertEquals(true, module.getFile().setLastModified(old));
+        assertEquals(true, src.setLastModified(old));
+        assertEquals(Collections.singletonMap(
+                             "m.version", HashVerInputs.fingerprint(module)),
+                     HashVerInputs.fingerprints(
+                             Collections.singletonList(module),
+                             prj -> "m.version"));
+    }
+}
@@ -1,15 +1,50 @@
 package pro.avodonosov.mvnhashver;
 
+import org.apache.maven.artifact.ArtifactUtils;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.internal.DefaultDependencyNode;
+import org.apache.maven.shared.dependency.graph.traversal.DependencyNodeVisitor;
+import org.apache.maven.shared.dependency.graph.traversal.SerializingDependencyNodeVisitor;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.DependencyCollectionContext;
+import org.eclipse.aether.collection.DependencySelector;
+import org.eclipse.aether.graph.Dependency;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class HashVerMojoTest {
+
+    @TempDir
+    Path tmp;
+
     @Test
     public void cvsListMemberTest() {
         assertFalse(HashVerMojo.csvListMember("a", null));
@@ -54,6 +89,415 @@ public class HashVerMojoTest {
                         "com.domain.project:version", "-lDRryjx9THUkYTgiF5-in4BiVQ.Sk5OTMzTwxuVkz9fRk1QA1bPrvI")));
     }
 
+    @Test
+    public void reactorPruningDependencySelectorTest() {
+        DependencySelector selector =
+                new HashVerMojo.ReactorPruningDependencySelector(
+                        null,
+                        new HashSet<>(Arrays.asList("g:reactor-module:1")));
+        Dependency reactorDep = dependency("g:reactor-module:1");
+        Dependency externalDep = dependency("g:external:1");
+
+        assertTrue(selector.selectDependency(reactorDep));
+        assertTrue(selector.selectDependency(externalDep));
+
+        DependencySelector underExternal =
+                selector.deriveChildSelector(context(externalDep));
+        assertTrue(underExternal.selectDependency(externalDep));
+        assertEquals(selector, underExternal);
+
+        DependencySelector underReactor =
+                selector.deriveChildSelector(context(reactorDep));
+        assertFalse(underReactor.selectDependency(externalDep));
+        assertFalse(underReactor.deriveChildSelector(context(externalDep))
+                            .selectDependency(externalDep));
+    }
+
+    private static Dependency dependency(String coords) {
+        return new Dependency(new DefaultArtifact(coords), "compile");
+    }
+
+    private static DependencyCollectionContext context(Dependency dependency) {
+        return new DependencyCollectionContext() {
+            @Override
+            public RepositorySystemSession getSession() {
+                return null;
+            }
+
+            @Override
+            public Artifact getArtifact() {
+                return dependency.getArtifact();
+            }
+
+            @Override
+            public Dependency getDependency() {
+                return dependency;
+            }
+
+            @Override
+            public List<Dependency> getManagedDependencies() {
+                return Collections.emptyList();
+            }
+        };
+    }
+
+    @Test
+    public void dependencyTreeHashTest() throws Exception {
+        DefaultDependencyNode root = node(null, "g", "root", "jar", null, "1", null, null);
+        DefaultDependencyNode a = node(root, "g", "a", "jar", null, "1", "compile", null);
+        DefaultDependencyNode a1 = node(a, "g2", "a1", "jar", "tests", "2.0", "test", true);
+        DefaultDependencyNode a2 = node(a, "g2", "a2\u00e9\u20ac\ud83d\ude00", "pom", null, "1", "runtime", false);
+        DefaultDependencyNode a21 = node(a2, "g3", "a21", "jar", null, "3", "runtime", null);
+        DefaultDependencyNode reactor = node(root, "g", "reactor", "jar", "cls", "1", "provided", true);
+        DefaultDependencyNode r1 = node(reactor, "g4", "r1", "jar", null, "4", "provided", null);
+        DefaultDependencyNode r2 = node(reactor, "g4", "r2", "jar", null, "4", "provided", null);
+        DefaultDependencyNode r21 = node(r2, "g4", "r21", "jar", null, "4", "provided", null);
+        DefaultDependencyNode r22 = node(r2, "g4", "r22", "jar", null, "4", "provided", null);
+        root.setChildren(Arrays.asList(a, reactor));
+        a.setChildren(Arrays.asList(a1, a2));
+        a2.setChildren(Arrays.asList(a21));
+        reactor.setChildren(Arrays.asList(r1, r2));
+        r2.setChildren(Arrays.asList(r21, r22));
+        for (DefaultDependencyNode leaf : Arrays.asList(a1, a21, r1, r21, r22)) {
+            leaf.setChildren(Collections.emptyList());
+        }
+
+        Map<String, String> reactorHashes = map("g:root:1", "rootHash",
+                                                "g:reactor:1", "reactorHash");
+
+        StringWriter expectedTree = new StringWriter();
+        root.accept(new LegacySerializingVisitor(expectedTree, reactorHashes));
+        MessageDigest expected = MessageDigest.getInstance("SHA-1");
+        expected.update(expectedTree.toString().getBytes(UTF_8));
+
+        MessageDigest actual = MessageDigest.getInstance("SHA-1");
+        HashVerMojo.dependencyTreeHash(root, reactorHashes::get, actual);
+
+        assertArrayEquals(expected.digest(), actual.digest());
+    }
+
+    @Test
+    public void utf8DigestEncoderTest() throws Exception {
+        String[] parts = {"", "abc", "\u00e9\u0436", "\u20ac", "\ud83d",
+                          "\ude00x", "\ude00", "\ud83d\ude00", "z\ud83d"};
+        Utf8DigestEncoder encoder = new Utf8DigestEncoder(5);
+        for (int i = 0; i < parts.length; i++) {
+            StringBuilder text = new StringBuilder();
+            MessageDigest actual = MessageDigest.getInstance("SHA-1");
+            encoder.reset(actual);
+            for (int j = i; j < parts.length; j++) {
+                text.append(parts[j]);
+                encoder.append(parts[j]);
+            }
+            encoder.flush();
+            MessageDigest expected = MessageDigest.getInstance("SHA-1");
+            expected.update(text.toString().getBytes(UTF_8));
+            assertArrayEquals(expected.digest(), actual.digest(), text.toString());
+        }
+    }
+
+    @Test
+    public void parallelHashingTest() throws Exception {
+        TestReactor reactor = new TestReactor(tmp.toFile())
+                .module("a")
+                .module("b", "a")
+                .module("c", "a")
+                .module("d", "b", "c");
+        reactor.file("b", "src/main/resources/b.txt", "b");
+        reactor.file("c", "src/test/java/c/CTest.java", "class CTest {}");
+
+        for (boolean compose : new boolean[] {false, true}) {
+            for (boolean merkle : new boolean[] {false, true}) {
+                Map<String, String> expected =
+                        hashVers(reactor, 1, compose, merkle);
+                assertEquals(5, expected.size());
+                for (int threads : new int[] {2, 4, 16}) {
+                    assertEquals(expected,
+                                 hashVers(reactor, threads, compose, merkle),
+                                 "threads: " + threads
+                                         + ", compose: " + compose
+                                         + ", merkle: " + merkle);
+                }
+            }
+        }
+    }
+
+    /**
+     * The dependency trees of independent modules are resolved
+     * concurrently. The resolution latency is simulated, so the
+     * resolutions overlap regardless of the number of CPUs.
+     */
+    @Test
+    public void parallelResolutionTest() throws Exception {
+        TestReactor reactor = new TestReactor(tmp.toFile());
+        for (int i = 0; i < 16; i++) {
+            reactor.module("m" + i);
+        }
+        reactor.resolutionMillis = 50;
+
+        Map<String, String> sequential = hashVers(reactor, 1, false, false);
+        assertEquals(1, reactor.peakResolutions.get());
+
+        reactor.peakResolutions.set(0);
+        Map<String, String> parallel = hashVers(reactor, 8, false, false);
+        assertEquals(sequential, parallel);
+        assertTrue(reactor.peakResolutions.get() > 1,
+                   "peak resolutions: " + reactor.peakResolutions.get());
+    }
+
+    @Test
+    public void merkleTest() throws Exception {
+        deleteMerkleFiles();
+        TestReactor reactor = new TestReactor(tmp.toFile()).module("a");
+        reactor.file("a", "src/main/resources/x/r.txt", "r");
+        reactor.file("a", "src/main/resources/y/s.txt", "s");
+
+        Map<String, String> hashVers = hashVers(reactor, 1, false, true);
+        Map<String, String> tree = merkleTree();
+        assertEquals(new HashSet<>(Arrays.asList(
+                             ".", "a", "a/src", "a/src/main",
+                             "a/src/main/java", "a/src/main/java/a",
+                             "a/src/main/resources",
+                             "a/src/main/resources/x",
+                             "a/src/main/resources/y")),
+                     tree.keySet());
+        // the module own hash
+        assertEquals(hashVers.get("a.version").split("\\.")[0], tree.get("a"));
+
+        // a directory hash is computed from (type, name, hash)
+        // of the children, like git tree objects
+        byte[] content = "package a;\nclass Main {}\n".getBytes(UTF_8);
+        MessageDigest blob = MessageDigest.getInstance("SHA-1");
+        blob.update(("blob " + content.length + "\0").getBytes(UTF_8));
+        blob.update(content);
+        MessageDigest dir = MessageDigest.getInstance("SHA-1");
+        dir.update("f Main.java\0".getBytes(UTF_8));
+        dir.update(blob.digest());
+        assertEquals(Base64.getUrlEncoder().withoutPadding()
+                             .encodeToString(dir.digest()),
+                     tree.get("a/src/main/java/a"));
+
+        // stable
+        assertEquals(hashVers, hashVers(reactor, 1, false, true));
+        assertEquals(tree, merkleTree());
+
+        // moving a file to another sub directory changes only
+        // the hashes of the directories on the way up
+        Files.move(tmp.resolve("a/src/main/resources/x/r.txt"),
+                   tmp.resolve("a/src/main/resources/y/r.txt"));
+        Map<String, String> moved = hashVers(reactor, 1, false, true);
+        Map<String, String> movedTree = merkleTree();
+        assertFalse(hashVers.get("a.version").equals(moved.get("a.version")));
+        for (String path : new String[] {"a", "a/src", "a/src/main",
+                                         "a/src/main/resources",
+                                         "a/src/main/resources/x",
+                                         "a/src/main/resources/y"})
+        {
+            assertFalse(tree.get(path).equals(movedTree.get(path)), path);
+        }
+        assertEquals(tree.get("a/src/main/java"),
+                     movedTree.get("a/src/main/java"));
+    }
+
+    @Test
+    public void merkleReuseTest() throws Exception {
+        deleteMerkleFiles();
+        TestReactor reactor = new TestReactor(tmp.toFile())
+                .module("a")
+                .module("b", "a");
+        File main = new File(tmp.toFile(), "a/src/main/java/a/Main.java");
+        File resource = reactor.file("b", "src/main/resources/r.txt", "r");
+        long past = System.currentTimeMillis() - 60000;
+        setLastModifiedRecursively(tmp.toFile(), past);
+
+        Map<String, String> expected = hashVers(reactor, 1, false, true);
+        assertEquals(expected, hashVers(reactor, 1, false, true));
+
+        // The hashes of the directories with unchanged stat data are
+        // reused: a change preserving the size and modification time
+        // (and the inode, as the file is rewritten in place) is not seen.
+        Files.write(main.toPath(), "package a;\nclass Mbin {}\n".getBytes(UTF_8));
+        assertTrue(main.setLastModified(past));
+        assertEquals(expected, hashVers(reactor, 1, false, true));
+
+        // Without the previous stats everything is recomputed
+        assertTrue(new File(HashVerMojo.MERKLE_STAT_FILE).delete());
+        Map<String, String> changed = hashVers(reactor, 1, false, true);
+        assertFalse(expected.get("a.version").equals(changed.get("a.version")));
+
+        // Normal changes are seen, the result is the same as from scratch
+        Files.write(resource.toPath(), "r2".getBytes(UTF_8));
+        Map<String, String> reused = hashVers(reactor, 1, false, true);
+        assertEquals(changed.get("a.version"), reused.get("a.version"));
+        assertFalse(changed.get("b.version").equals(reused.get("b.version")));
+        deleteMerkleFiles();
+        assertEquals(reused, hashVers(reactor, 1, false, true));
+
+        // A recently modified file is not trusted,
+        // even if the stat data is the same
+        long now = System.currentTimeMillis();
+        assertTrue(resource.setLastModified(now));
+        assertEquals(reused, hashVers(reactor, 1, false, true));
+        Files.write(resource.toPath(), "r3".getBytes(UTF_8));
+        assertTrue(resource.setLastModified(now));
+        Map<String, String> racy = hashVers(reactor, 1, false, true);
+        assertFalse(reused.get("b.version").equals(racy.get("b.version")));
+    }
+
+    private static void deleteMerkleFiles() {
+        new File(HashVerMojo.MERKLE_FILE).delete();
+        new File(HashVerMojo.MERKLE_STAT_FILE).delete();
+    }
+
+    private static Map<String, String> merkleTree() throws IOException {
+        Map<String, String> result = new HashMap<>();
+        for (String line : Files.readAllLines(
+                new File(HashVerMojo.MERKLE_FILE).toPath(), UTF_8))
+        {
+            String[] parts = line.split(" ", 2);
+            result.put(parts[1], parts[0]);
+        }
+        return result;
+    }
+
+    private static void setLastModifiedRecursively(File f, long time) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                setLastModifiedRecursively(child, time);
+            }
+        }
+        assertTrue(f.setLastModified(time));
+    }
+
+    @Test
+    public void partialHashingTest() throws Exception {
+        TestReactor reactor = new TestReactor(tmp.toFile())
+                .module("a")
+                .module("b", "a")
+                .module("c", "b")
+                .module("d");
+        HashVerMojo mojo = reactor.mojo();
+        Map<String, String> before = mojo.computeHashVers(
+                mojo.mavenSession, false, null);
+        Map<String, String> ownHashes = new HashMap<>(mojo.ownHashes);
+
+        reactor.file("b", "src/main/java/b/Main.java", "changed");
+        Map<String, String> after = hashVers(reactor, 1, false, false);
+        assertNotEquals(before.get("b.version"), after.get("b.version"));
+        assertNotEquals(before.get("c.version"), after.get("c.version"));
+
+        // the changed module and its downstream, with the own hashes
+        // of the others taken from the previous computation
+        HashVerMojo partialMojo = reactor.mojo();
+        List<MavenProject> modules = Arrays.asList(reactor.graph.get("b"),
+                                                   reactor.graph.get("c"));
+        Map<String, String> partial = partialMojo.computeHashVers(
+                partialMojo.mavenSession, false, null, modules, ownHashes);
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("b.version", after.get("b.version"));
+        expected.put("c.version", after.get("c.version"));
+        assertEquals(expected, partial);
+        assertEquals(before.get("a.version"), after.get("a.version"));
+        assertEquals(before.get("d.version"), after.get("d.version"));
+    }
+
+    @Test
+    public void invalidMmapThresholdTest() throws Exception {
+        TestReactor reactor = new TestReactor(tmp.toFile()).module("a");
+        String property = HashVerMojo.ExtraProperties.hashverMmapThreshold.name();
+        System.setProperty(property, "1M");
+        try {
+            MojoExecutionException e = assertThrows(
+                    MojoExecutionException.class,
+                    () -> hashVers(reactor, 1, false, false));
+            assertTrue(e.getMessage().contains(property), e.getMessage());
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    static Map<String, String> hashVers(TestReactor reactor,
+                                        int threads,
+                                        boolean compose,
+                                        boolean merkle)
+            throws Exception
+    {
+        HashVerMojo mojo = reactor.mojo();
+        mojo.threads = threads;
+        mojo.composeReactorHashes = compose;
+        mojo.merkle = merkle;
+        return mojo.computeHashVers(mojo.mavenSession, false, null);
+    }
+
+    private static DefaultDependencyNode node(DependencyNode parent,
+                                              String groupId,
+                                              String artifactId,
+                                              String type,
+                                              String classifier,
+                                              String version,
+                                              String scope,
+                                              Boolean optional)
+    {
+        org.apache.maven.artifact.Artifact artifact =
+                new org.apache.maven.artifact.DefaultArtifact(
+                        groupId, artifactId, version, scope, type, classifier,
+                        new DefaultArtifactHandler(type));
+        return new DefaultDependencyNode(parent, artifact, null, null, null, optional);
+    }
+
+    // The dependency tree serialization of the earlier hashver versions,
+    // to verify the hashes are not changed.
+    static class LegacySerializingVisitor extends SerializingDependencyNodeVisitor {
+        final Map<String, String> reactorHashes;
+
+        LegacySerializingVisitor(Writer writer, Map<String, String> reactorHashes) {
+            super(writer, SerializingDependencyNodeVisitor.STANDARD_TOKENS);
+            this.reactorHashes = reactorHashes;
+        }
+
+        @Override
+        public boolean visit(DependencyNode node) {
+            return super.visit(new DependencyNode() {
+                public org.apache.maven.artifact.Artifact getArtifact() { return node.getArtifact(); }
+                public List<DependencyNode> getChildren() { return node.getChildren(); }
+                public boolean accept(DependencyNodeVisitor visitor) { return node.accept(visitor); }
+                public DependencyNode getParent() { return node.getParent(); }
+                public String getPremanagedVersion() { return node.getPremanagedVersion(); }
+                public String getPremanagedScope() { return node.getPremanagedScope(); }
+                public String getVersionConstraint() { return node.getVersionConstraint(); }
+                public Boolean getOptional() { return node.getOptional(); }
+
+                public String toNodeString() {
+                    String hash = reactorHashes.get(
+                            ArtifactUtils.key(node.getArtifact()));
+                    if (hash == null) {
+                        return node.toNodeString();
+                    }
+                    org.apache.maven.artifact.Artifact artifact = node.getArtifact();
+                    StringBuilder result = new StringBuilder();
+                    if (artifact.getGroupId() != null) {
+                        result.append(artifact.getGroupId()).append(":");
+                    }
+                    result.append(artifact.getArtifactId()).append(":");
+                    result.append(artifact.getType());
+                    if (artifact.hasClassifier()) {
+                        result.append(":").append(artifact.getClassifier());
+                    }
+                    result.append(":").append(hash);
+                    if (artifact.getScope() != null) {
+                        result.append(":").append(artifact.getScope());
+                    }
+                    if (node.getOptional() != null && node.getOptional()) {
+                        result.append(" (optional) ");
+                    }
+                    return result.toString();
+                }
+            });
+        }
+    }
+
     static Map<String, String> map(String... keyVals) {
         if (keyVals.length % 2 != 0) {
             throw new IllegalArgumentException("Odd number of arguments");
@@ -0,0 +1,281 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.util.repository.AuthenticationBuilder;
+import org.eclipse.aether.util.repository.DefaultProxySelector;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HttpHeadClientTest {
+
+    @Test
+    public void headTest() throws Exception {
+        Set<Integer> clientPorts =
+                Collections.synchronizedSet(new HashSet<>());
+        Set<String> authorizations =
+                Collections.synchronizedSet(new HashSet<>());
+
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        server.createContext("/repo/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            String auth = exchange.getRequestHeaders().getFirst("Authorization");
+            authorizations.add(String.valueOf(auth));
+            // The server keeps the connection alive only
+            // if the request is read completely.
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() != -1) {
+                    // skip
+                }
+            }
+            boolean exists = exchange.getRequestURI().getPath()
+                    .equals("/repo/g/a/1/a-1.jar");
+            exchange.sendResponseHeaders(exists ? 200 : 404, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            RemoteRepository repo = new RemoteRepository.Builder(
+                    "test",
+                    "default",
+                    "http://localhost:" + server.getAddress().getPort()
+                            + "/repo/")
+                    .setAuthentication(new AuthenticationBuilder()
+                                               .addUsername("u")
+                                               .addPassword("p")
+                                               .build())
+                    .build();
+
+            HttpHeadClient client = new HttpHeadClient(
+                    new DefaultRepositorySystemSession(), 5000, 5000);
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(200, client.head(repo, "g/a/1/a-1.jar"));
+                assertEquals(404, client.head(repo, "/g/a/2/a-2.jar"));
+            }
+
+            // sequential requests reuse the same connection
+            assertEquals(1, clientPorts.size(), clientPorts.toString());
+            assertEquals(Collections.singleton("Basic dTpw"), authorizations);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void proxyTest() throws Exception {
+        Set<String> requests = Collections.synchronizedSet(new HashSet<>());
+
+        HttpServer proxy = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        proxy.createContext("/", exchange -> {
+            requests.add(exchange.getRequestURI()
+                    + " " + exchange.getRequestHeaders()
+                                    .getFirst("Proxy-Authorization"));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        proxy.start();
+        try {
+            DefaultRepositorySystemSession session =
+                    new DefaultRepositorySystemSession();
+            session.setProxySelector(new DefaultProxySelector().add(
+                    new org.eclipse.aether.repository.Proxy(
+                            "http",
+                            "localhost",
+                            proxy.getAddress().getPort(),
+                            new AuthenticationBuilder()
+                                    .addUsername("pu")
+                                    .addPassword("pp")
+                                    .build()),
+                    null));
+
+            HttpHeadClient client = new HttpHeadClient(session, 5000, 5000);
+
+            assertEquals(200, client.head(repo("http://repo.invalid/repo"),
+                                          "g/a/1/a-1.jar"));
+            assertEquals(
+                    Collections.singleton(
+                            "http://repo.invalid/repo/g/a/1/a-1.jar"
+                                    + " Basic cHU6cHA="),
+                    requests);
+        } finally {
+            proxy.stop(0);
+        }
+    }
+
+    @Test
+    public void jvmProxyTest() throws Exception {
+        Set<String> requests = Collections.synchronizedSet(new HashSet<>());
+
+        HttpServer proxy = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                0);
+        proxy.createContext("/", exchange -> {
+            requests.add(exchange.getRequestURI().toString());
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        proxy.start();
+        ProxySelector defaultSelector = ProxySelector.getDefault();
+        try {
+            // No proxy in the maven settings, the JVM one is used
+            ProxySelector.setDefault(new ProxySelector() {
+                @Override
+                public List<Proxy> select(URI uri) {
+                    return Collections.singletonList(new Proxy(
+                            Proxy.Type.HTTP, proxy.getAddress()));
+                }
+
+                @Override
+                public void connectFailed(URI uri,
+                                          SocketAddress sa,
+                                          IOException e)
+                {
+                }
+            });
+            HttpHeadClient client = new HttpHeadClient(
+                    new DefaultRepositorySystemSession(), 5000, 5000);
+
+            assertEquals(200, client.head(repo("http://repo.invalid/repo"),
+                                          "g/a/1/a-1.jar"));
+            assertEquals(
+                    Collections.singleton(
+                            "http://repo.invalid/repo/g/a/1/a-1.jar"),
+                    requests);
+        } finally {
+            ProxySelector.setDefault(defaultSelector);
+            proxy.stop(0);
+        }
+    }
+
+    @Test
+    public void httpsProxyTest() throws Exception {
+        // HttpServer does not support CONNECT, so a minimal proxy
+        // which records the request head and refuses the tunnel.
+        List<String> requestHead = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket proxy = new ServerSocket(
+                0, 1, InetAddress.getLoopbackAddress()))
+        {
+            Thread proxyThread = new Thread(() -> {
+                try (Socket socket = proxy.accept()) {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(),
+                                                  UTF_8));
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        requestHead.add(line);
+                    }
+                    socket.getOutputStream().write(
+                            ("HTTP/1.1 403 Forbidden\r\n"
+                                    + "Content-Length: 0\r\n"
+                                    + "Connection: close\r\n\r\n")
+                                    .getBytes(UTF_8));
+                } catch (IOException e) {
+                    requestHead.add(e.toString());
+                }
+            });
+            proxyThread.start();
+
+            DefaultRepositorySystemSession session =
+                    new DefaultRepositorySystemSession();
+            session.setProxySelector(new DefaultProxySelector().add(
+                    new org.eclipse.aether.repository.Proxy(
+                            "http", "localhost", proxy.getLocalPort()),
+                    null));
+            HttpHeadClient client = new HttpHeadClient(session, 5000, 5000);
+            RemoteRepository repo = repo("https://repo.invalid/repo");
+
+            assertTrue(client.canHead(repo));
+            assertThrows(IOException.class,
+                         () -> client.head(repo, "g/a/1/a-1.jar"));
+            proxyThread.join(5000);
+            assertEquals("CONNECT repo.invalid:443 HTTP/1.1",
+                         requestHead.get(0));
+        }
+    }
+
+    @Test
+    public void authenticatingProxyTest() {
+        DefaultRepositorySystemSession session =
+                new DefaultRepositorySystemSession();
+        session.setProxySelector(new DefaultProxySelector().add(
+                new org.eclipse.aether.repository.Proxy(
+                        "http",
+                        "localhost",
+                        3128,
+                        new AuthenticationBuilder()
+                                .addUsername("pu")
+                                .addPassword("pp")
+                                .build()),
+                null));
+        HttpHeadClient client = new HttpHeadClient(session, 5000, 5000);
+
+        assertTrue(client.canHead(repo("http://repo.invalid/repo")));
+        // The proxy credentials can't be passed for the CONNECT
+        // tunnel, and must not be sent to the target server.
+        RemoteRepository https = repo("https://repo.invalid/repo");
+        assertFalse(client.canHead(https));
+        assertThrows(IllegalArgumentException.class,
+                     () -> client.head(https, "g/a/1/a-1.jar"));
+        assertFalse(client.canHead(repo("file:///tmp/repo")));
+    }
+
+    @Test
+    public void supportsTest() {
+        assertTrue(HttpHeadClient.supports(repo("http://example.com/")));
+        assertTrue(HttpHeadClient.supports(repo("https://example.com/")));
+        assertFalse(HttpHeadClient.supports(repo("file:///tmp/repo")));
+    }
+
+    private static RemoteRepository repo(String url) {
+        return new RemoteRepository.Builder("test", "default", url).build();
+    }
+}
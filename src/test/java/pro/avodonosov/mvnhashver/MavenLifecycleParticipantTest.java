@@ -19,14 +19,55 @@
 
 package pro.avodonosov.mvnhashver;
 
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.impl.RepositoryConnectorProvider;
+import org.eclipse.aether.internal.impl.SimpleLocalRepositoryManagerFactory;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.spi.connector.ArtifactDownload;
+import org.eclipse.aether.spi.connector.ArtifactUpload;
+import org.eclipse.aether.spi.connector.MetadataDownload;
+import org.eclipse.aether.spi.connector.MetadataUpload;
+import org.eclipse.aether.spi.connector.RepositoryConnector;
+import org.eclipse.aether.transfer.ArtifactNotFoundException;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pro.avodonosov.mvnhashver.MavenLifecycleParticipant.ExistenceCheckMethod;
+import pro.avodonosov.mvnhashver.MavenLifecycleParticipant.ModuleCheck;
 import pro.avodonosov.mvnhashver.MavenLifecycleParticipant.SysPropFile;
 
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.checkModules;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.parseRepositoryMounts;
 import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.parseSysPropFilesSpec;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.repositoryDir;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.skippedUpstream;
+import static pro.avodonosov.mvnhashver.MavenLifecycleParticipant.withDownstream;
 
 public class MavenLifecycleParticipantTest {
 
@@ -49,4 +90,334 @@ public class MavenLifecycleParticipantTest {
                 .map(s -> (s.required ? "required " : "optional ") + s.file)
                 .collect(Collectors.joining("; "));
     }
+
+    @Test
+    public void checkModulesTest() {
+        List<MavenProject> projects = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            MavenProject prj = new MavenProject();
+            prj.setArtifactId("m" + i);
+            prj.setPackaging(i % 10 == 0 ? "pom" : "jar");
+            projects.add(prj);
+        }
+
+        MavenLifecycleParticipant.ExistenceCheck existenceCheck =
+                (session, prj, check) -> {
+                    int i = Integer.parseInt(prj.getArtifactId().substring(1));
+                    check.log("checking " + prj.getArtifactId());
+                    try {
+                        // make the checks complete out of order
+                        Thread.sleep((50 - i) % 7);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    check.log("checked " + prj.getArtifactId());
+                    return i % 3 == 0;
+                };
+
+        for (int threads : new int[] {1, 8}) {
+            List<ModuleCheck> checks =
+                    checkModules(projects, threads, existenceCheck, null);
+
+            assertEquals(projects.size(), checks.size());
+            for (int i = 0; i < projects.size(); i++) {
+                ModuleCheck check = checks.get(i);
+                assertEquals(projects.get(i), check.project);
+                if (i % 10 == 0) {
+                    // pom modules are never checked
+                    assertEquals(false, check.exists);
+                    assertEquals(Collections.emptyList(), check.messages);
+                } else {
+                    assertEquals(i % 3 == 0, check.exists);
+                    assertEquals(Arrays.asList("checking m" + i,
+                                               "checked m" + i),
+                                 check.messages);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void repositoryDirTest() {
+        Map<String, String> mounts =
+                parseRepositoryMounts("company= /mnt/company-repo ,other=/x");
+        assertEquals(2, mounts.size());
+
+        assertEquals(Paths.get("/mnt/company-repo"),
+                     repositoryDir(repo("company", "https://example.com/repo"),
+                                   mounts));
+        assertEquals(Paths.get("/tmp/repo"),
+                     repositoryDir(repo("shared", "file:///tmp/repo"), mounts));
+        assertEquals(Paths.get("/tmp/repo"),
+                     repositoryDir(repo("shared", "file:/tmp/repo"), mounts));
+        assertNull(repositoryDir(repo("central", "https://repo1.maven.org/"),
+                                 mounts));
+
+        assertEquals(Collections.emptyMap(), parseRepositoryMounts(null));
+    }
+
+    private static RemoteRepository repo(String id, String url) {
+        return new RemoteRepository.Builder(id, "default", url).build();
+    }
+
+    @Test
+    public void skippedUpstreamTest() {
+        //   a <- b <- d
+        //   c <- e
+        //   f
+        TestProjectGraph graph = new TestProjectGraph()
+                .add("a")
+                .add("c")
+                .add("b", "a")
+                .add("d", "b")
+                .add("e", "c")
+                .add("f");
+
+        // a and b are needed by d, c is needed by e, f is needed by nobody.
+        // The result is in the build order.
+        assertEquals(
+                Arrays.asList(graph.get("a"), graph.get("c"), graph.get("b")),
+                skippedUpstream(graph,
+                                Arrays.asList(graph.get("d"), graph.get("e")),
+                                new HashSet<>(Arrays.asList(graph.get("b"),
+                                                            graph.get("a"),
+                                                            graph.get("c"),
+                                                            graph.get("f")))));
+
+        assertEquals(
+                Collections.emptyList(),
+                skippedUpstream(graph,
+                                Collections.singletonList(graph.get("a")),
+                                new HashSet<>(Arrays.asList(graph.get("d"),
+                                                            graph.get("f")))));
+    }
+
+    @Test
+    public void withDownstreamTest() {
+        //   a <- b <- d
+        //   c <- e
+        TestProjectGraph graph = new TestProjectGraph()
+                .add("a")
+                .add("c")
+                .add("b", "a")
+                .add("d", "b")
+                .add("e", "c");
+        List<MavenProject> projects = graph.getSortedProjects();
+
+        assertEquals(
+                Arrays.asList(graph.get("b"), graph.get("d")),
+                withDownstream(graph,
+                               projects,
+                               Collections.singletonList(graph.get("b"))));
+        assertEquals(
+                Arrays.asList(graph.get("a"), graph.get("c"),
+                              graph.get("b"), graph.get("d"), graph.get("e")),
+                withDownstream(graph,
+                               projects,
+                               Arrays.asList(graph.get("e"), graph.get("a"),
+                                             graph.get("c"))));
+        // without the graph everything is affected
+        assertEquals(projects,
+                     withDownstream(null,
+                                    projects,
+                                    Collections.singletonList(graph.get("e"))));
+    }
+
+    /**
+     * Records the connectors created and closed. The connectors
+     * find the artifacts listed for the repository id.
+     */
+    static class StubConnectorProvider implements RepositoryConnectorProvider {
+        final Map<String, Set<String>> artifacts = new HashMap<>();
+        final List<String> created = new ArrayList<>();
+        final List<String> closed = new ArrayList<>();
+        final List<String> checked = new ArrayList<>();
+        RuntimeException failure;
+
+        @Override
+        public synchronized RepositoryConnector newRepositoryConnector(
+                RepositorySystemSession session,
+                RemoteRepository repo)
+        {
+            created.add(repo.getId());
+            return new RepositoryConnector() {
+                @Override
+                public void get(
+                        Collection<? extends ArtifactDownload> artifactDownloads,
+                        Collection<? extends MetadataDownload> metadataDownloads)
+                {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    for (ArtifactDownload download : artifactDownloads) {
+                        assertTrue(download.isExistenceCheck());
+                        Artifact a = download.getArtifact();
+                        synchronized (StubConnectorProvider.this) {
+                            checked.add(repo.getId() + " " + a);
+                        }
+                        if (!artifacts.getOrDefault(repo.getId(),
+                                                    Collections.emptySet())
+                                .contains(a.toString()))
+                        {
+                            download.setException(
+                                    new ArtifactNotFoundException(a, repo));
+                        }
+                    }
+                }
+
+                @Override
+                public void put(
+                        Collection<? extends ArtifactUpload> artifactUploads,
+                        Collection<? extends MetadataUpload> metadataUploads)
+                {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void close() {
+                    synchronized (StubConnectorProvider.this) {
+                        closed.add(repo.getId());
+                    }
+                }
+            };
+        }
+    }
+
+    private static MavenSession session(boolean offline, File localRepo,
+                                        MavenProject... projects)
+            throws Exception
+    {
+        DefaultRepositorySystemSession repoSession =
+                new DefaultRepositorySystemSession();
+        repoSession.setOffline(offline);
+        repoSession.setLocalRepositoryManager(
+                new SimpleLocalRepositoryManagerFactory().newInstance(
+                        repoSession, new LocalRepository(localRepo)));
+        @SuppressWarnings("deprecation")
+        MavenSession session = new MavenSession(
+                null,
+                repoSession,
+                new DefaultMavenExecutionRequest(),
+                new DefaultMavenExecutionResult());
+        session.setProjects(Arrays.asList(projects));
+        return session;
+    }
+
+    private static MavenProject project(String artifactId,
+                                        RemoteRepository... repos)
+    {
+        MavenProject prj = new MavenProject() {
+            @Override
+            public List<RemoteRepository> getRemoteProjectRepositories() {
+                return Arrays.asList(repos);
+            }
+        };
+        prj.setGroupId("g");
+        prj.setArtifactId(artifactId);
+        prj.setVersion("1");
+        prj.setPackaging("jar");
+        prj.setArtifact(TestReactor.artifact("g", artifactId, "1", null));
+        return prj;
+    }
+
+    @Test
+    public void remoteArtifactExistsTest(@TempDir Path tmp) throws Exception {
+        RemoteRepository r1 = repo("r1", "https://r1.invalid/");
+        RemoteRepository r2 = repo("r2", "https://r2.invalid/");
+        MavenProject a = project("a", r1, r2);
+        MavenProject b = project("b", r1, r2);
+        MavenProject c = project("c", r1, r2);
+
+        StubConnectorProvider provider = new StubConnectorProvider();
+        provider.artifacts.put("r1", Collections.singleton("g:a:jar:1"));
+        provider.artifacts.put("r2", Collections.singleton("g:b:jar:1"));
+        MavenLifecycleParticipant participant = new MavenLifecycleParticipant();
+        participant.repositoryConnectorProvider = provider;
+
+        // offline: no connectors
+        MavenSession offline = session(true, tmp.toFile(), a);
+        ModuleCheck offlineCheck = new ModuleCheck(a);
+        assertFalse(participant.remoteArtifactExists(offline, a, offlineCheck));
+        assertEquals(Collections.emptyList(), provider.created);
+        assertTrue(offlineCheck.messages.stream()
+                           .anyMatch(m -> m.startsWith("Offline mode")),
+                   offlineCheck.messages.toString());
+
+        MavenSession session = session(false, tmp.toFile(), a, b, c);
+        // found in the first repository
+        assertTrue(participant.remoteArtifactExists(session, a, new ModuleCheck(a)));
+        assertEquals(Arrays.asList("r1 g:a:jar:1"), provider.checked);
+        // not found in the first, found in the second
+        assertTrue(participant.remoteArtifactExists(session, b, new ModuleCheck(b)));
+        // found nowhere
+        assertFalse(participant.remoteArtifactExists(session, c, new ModuleCheck(c)));
+        assertEquals(Arrays.asList("r1 g:a:jar:1",
+                                   "r1 g:b:jar:1", "r2 g:b:jar:1",
+                                   "r1 g:c:jar:1", "r2 g:c:jar:1"),
+                     provider.checked);
+
+        // one connector per repository, reused by all the checks
+        assertEquals(Arrays.asList("r1", "r2"), provider.created);
+        assertEquals(Collections.emptyList(), provider.closed);
+    }
+
+    @Test
+    public void connectorsClosedTest(@TempDir Path tmp) throws Exception {
+        RemoteRepository r1 = repo("r1", "https://r1.invalid/");
+        MavenProject a = project("a", r1);
+        MavenProject b = project("b", r1);
+        MavenSession session = session(false, tmp.toFile(), a, b);
+        ExistenceCheckMethod[] methods = {ExistenceCheckMethod.remote};
+
+        StubConnectorProvider provider = new StubConnectorProvider();
+        provider.artifacts.put("r1", Collections.singleton("g:a:jar:1"));
+        MavenLifecycleParticipant participant = new MavenLifecycleParticipant();
+        participant.repositoryConnectorProvider = provider;
+
+        List<ModuleCheck> checks =
+                participant.checkExistence(session, 2, methods);
+        assertTrue(checks.get(0).exists);
+        assertFalse(checks.get(1).exists);
+        assertEquals(Collections.singletonList("r1"), provider.created);
+        assertEquals(Collections.singletonList("r1"), provider.closed);
+
+        // closed when a check fails too, and not reused after that
+        provider.failure = new IllegalStateException("connection reset");
+        assertThrows(IllegalStateException.class,
+                     () -> participant.checkExistence(session, 1, methods));
+        assertEquals(Arrays.asList("r1", "r1"), provider.created);
+        assertEquals(Arrays.asList("r1", "r1"), provider.closed);
+    }
+
+    @Test
+    public void invalidIntConfigTest(@TempDir Path tmp) throws Exception {
+        MavenProject root = project("root");
+        root.setExecutionRoot(true);
+        MavenSession session = session(false, tmp.toFile(), root);
+        for (MavenLifecycleParticipant.ConfigProps prop
+                : Arrays.asList(
+                        MavenLifecycleParticipant.ConfigProps.existenceCheckThreads,
+                        MavenLifecycleParticipant.ConfigProps.existenceCacheNegativeTtl,
+                        MavenLifecycleParticipant.ConfigProps.httpHeadConnectTimeout,
+                        MavenLifecycleParticipant.ConfigProps.httpHeadReadTimeout))
+        {
+            assertEquals(Integer.parseInt(prop.defaultValue),
+                         prop.getNonNegativeInt(session));
+            try {
+                System.setProperty(prop.name(), "4");
+                assertEquals(4, prop.getNonNegativeInt(session));
+                for (String invalid : Arrays.asList("x", "-1")) {
+                    System.setProperty(prop.name(), invalid);
+                    MavenExecutionException e = assertThrows(
+                            MavenExecutionException.class,
+                            () -> prop.getNonNegativeInt(session));
+                    assertTrue(e.getMessage().contains(
+                                       prop.name() + " value: \"" + invalid),
+                               e.getMessage());
+                }
+            } finally {
+                System.clearProperty(prop.name());
+            }
+        }
+    }
 }
@@ -0,0 +1,76 @@
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.MessageDigest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static pro.avodonosov.mvnhashver.FileDigestCacheTest.hex;
+
+public class Murmur3DigestTest {
+
+    // Reference values produced by Guava's Hashing.murmur3_128()
+    @Test
+    public void knownValuesTest() {
+        assertDigest("00000000000000000000000000000000", "");
+        assertDigest("897859f6655555855a890e51483ab5e6", "a");
+        assertDigest("6778ad3f3f3f96b4522dca264174a23b", "abc");
+        assertDigest("5123bfc0f6d52da6f04c547c0cf5cc4f", "0123456789abcde");
+        assertDigest("a7d14acf946de04bda08a7635c5bc387", "0123456789abcdef");
+        assertDigest("75c0a58587ae24ebca283131b368fb73", "0123456789abcdef0");
+        assertDigest("6c1b07bc7bbc4be347939ac4a93c437a",
+                     "The quick brown fox jumps over the lazy dog");
+    }
+
+    @Test
+    public void chunkedUpdatesTest() {
+        byte[] data = new byte[100003];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        String expected = "ddf150aafb2f127e19dbd4648ac22de8";
+
+        MessageDigest digest = new Murmur3Digest();
+        digest.update(data);
+        assertEquals(expected, hex(digest.digest()));
+
+        // after digest() the state is reset
+        for (int chunk : new int[] {1, 3, 15, 16, 17, 1000}) {
+            for (int pos = 0; pos < data.length; pos += chunk) {
+                if (chunk == 1) {
+                    digest.update(data[pos]);
+                } else {
+                    digest.update(data, pos, Math.min(chunk, data.length - pos));
+                }
+            }
+            assertEquals(expected, hex(digest.digest()), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    public void cloneTest() throws CloneNotSupportedException {
+        byte[] data = new byte[100003];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+
+        MessageDigest digest = new Murmur3Digest();
+        // leave a partial block pending in the original
+        digest.update(data, 0, 1001);
+        MessageDigest copy = (MessageDigest) digest.clone();
+
+        copy.update(data, 1001, data.length - 1001);
+        // the original is not affected by the updates of the copy
+        digest.update(data, 1001, data.length - 1001);
+
+        assertEquals("ddf150aafb2f127e19dbd4648ac22de8", hex(copy.digest()));
+        assertEquals("ddf150aafb2f127e19dbd4648ac22de8", hex(digest.digest()));
+    }
+
+    private static void assertDigest(String expectedHex, String input) {
+        MessageDigest digest = new Murmur3Digest();
+        digest.update(input.getBytes(UTF_8));
+        assertEquals(expectedHex, hex(digest.digest()), input);
+    }
+}
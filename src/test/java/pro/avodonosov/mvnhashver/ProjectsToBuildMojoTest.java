@@ -0,0 +1,347 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.testing.SilentLog;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.SyncContext;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifactType;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.collection.CollectResult;
+import org.eclipse.aether.deployment.DeployRequest;
+import org.eclipse.aether.deployment.DeployResult;
+import org.eclipse.aether.installation.InstallRequest;
+import org.eclipse.aether.installation.InstallResult;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.LocalRepositoryManager;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactDescriptorRequest;
+import org.eclipse.aether.resolution.ArtifactDescriptorResult;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.resolution.DependencyRequest;
+import org.eclipse.aether.resolution.DependencyResult;
+import org.eclipse.aether.resolution.MetadataRequest;
+import org.eclipse.aether.resolution.MetadataResult;
+import org.eclipse.aether.resolution.VersionRangeRequest;
+import org.eclipse.aether.resolution.VersionRangeResult;
+import org.eclipse.aether.resolution.VersionRequest;
+import org.eclipse.aether.resolution.VersionResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProjectsToBuildMojoTest {
+
+    @TempDir
+    Path tmp;
+
+    /**
+     * Resolves the artifacts listed as available, failing
+     * like the maven resolver if any of them is missing.
+     */
+    static class StubRepositorySystem implements RepositorySystem {
+        final Set<String> available = new HashSet<>();
+        final List<String> requested = new ArrayList<>();
+
+        @Override
+        public List<ArtifactResult> resolveArtifacts(
+                RepositorySystemSession session,
+                Collection<? extends ArtifactRequest> requests)
+                throws ArtifactResolutionException
+        {
+            List<ArtifactResult> results = new ArrayList<>();
+            boolean failed = false;
+            for (ArtifactRequest request : requests) {
+                Artifact artifact = request.getArtifact();
+                requested.add(artifact.toString());
+                ArtifactResult result = new ArtifactResult(request);
+                if (available.contains(artifact.toString())) {
+                    result.setArtifact(artifact.setFile(
+                            new File(artifact.getArtifactId() + ".jar")));
+                } else {
+                    result.addException(
+                            new IOException("Not found: " + artifact));
+                    failed = true;
+                }
+                results.add(result);
+            }
+            if (failed) {
+                throw new ArtifactResolutionException(results);
+            }
+            return results;
+        }
+
+        @Override
+        public VersionRangeResult resolveVersionRange(
+                RepositorySystemSession session, VersionRangeRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public VersionResult resolveVersion(RepositorySystemSession session,
+                                            VersionRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ArtifactDescriptorResult readArtifactDescriptor(
+                RepositorySystemSession session,
+                ArtifactDescriptorRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CollectResult collectDependencies(
+                RepositorySystemSession session, CollectRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DependencyResult resolveDependencies(
+                RepositorySystemSession session, DependencyRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ArtifactResult resolveArtifact(RepositorySystemSession session,
+                                              ArtifactRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<MetadataResult> resolveMetadata(
+                RepositorySystemSession session,
+                Collection<? extends MetadataRequest> requests)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InstallResult install(RepositorySystemSession session,
+                                     InstallRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DeployResult deploy(RepositorySystemSession session,
+                                   DeployRequest request)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public LocalRepositoryManager newLocalRepositoryManager(
+                RepositorySystemSession session,
+                LocalRepository localRepository)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SyncContext newSyncContext(RepositorySystemSession session,
+                                          boolean shared)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<RemoteRepository> newResolutionRepositories(
+                RepositorySystemSession session,
+                List<RemoteRepository> repositories)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RemoteRepository newDeploymentRepository(
+                RepositorySystemSession session,
+                RemoteRepository repository)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final StubRepositorySystem repositorySystem =
+            new StubRepositorySystem();
+
+    // a <- b <- c, a <- d
+    private TestReactor reactor() throws IOException {
+        return new TestReactor(tmp.toFile())
+                .module("a")
+                .module("b", "a")
+                .module("c", "b")
+                .module("d", "a");
+    }
+
+    private ProjectsToBuildMojo mojo(TestReactor reactor) {
+        ProjectsToBuildMojo mojo = new ProjectsToBuildMojo();
+        mojo.setLog(new SilentLog());
+        mojo.mavenSession = reactor.session();
+        ((DefaultRepositorySystemSession)
+                 mojo.mavenSession.getRepositorySession())
+                .setArtifactTypeRegistry(type -> "test-jar".equals(type)
+                        ? new DefaultArtifactType(
+                                "test-jar", "jar", "tests", "java")
+                        : null);
+        mojo.repositorySystem = repositorySystem;
+        return mojo;
+    }
+
+    private static Map<String, String> hashVers(TestReactor reactor) {
+        Map<String, String> result = new HashMap<>();
+        for (MavenProject prj : reactor.projects()) {
+            result.put(prj.getArtifactId() + ".version",
+                       prj.getArtifactId().toUpperCase() + ".1");
+        }
+        return result;
+    }
+
+    private Set<MavenProject> projects(TestReactor reactor, String... ids) {
+        Set<MavenProject> result = new HashSet<>();
+        for (String id : ids) {
+            result.add(reactor.graph.get(id));
+        }
+        return result;
+    }
+
+    @Test
+    public void missingArtifactsTest() throws IOException {
+        TestReactor reactor = reactor();
+        ProjectsToBuildMojo mojo = mojo(reactor);
+        Map<String, String> hashVers = hashVers(reactor);
+
+        // all resolvable
+        repositorySystem.available.addAll(Arrays.asList("g:a:jar:A.1",
+                                                        "g:b:jar:B.1"));
+        assertEquals(Collections.emptySet(),
+                     mojo.missingArtifacts(projects(reactor, "a", "b"),
+                                           hashVers));
+        assertEquals(new HashSet<>(Arrays.asList("g:a:jar:A.1",
+                                                 "g:b:jar:B.1")),
+                     new HashSet<>(repositorySystem.requested));
+
+        // the partial results of the resolution failure
+        repositorySystem.available.remove("g:a:jar:A.1");
+        assertEquals(projects(reactor, "a"),
+                     mojo.missingArtifacts(projects(reactor, "a", "b"),
+                                           hashVers));
+    }
+
+    @Test
+    public void missingTestJarTest() throws IOException {
+        TestReactor reactor = reactor();
+        Dependency testJar = new Dependency();
+        testJar.setGroupId("g");
+        testJar.setArtifactId("a");
+        testJar.setVersion("${a.version}");
+        testJar.setType("test-jar");
+        testJar.setScope("test");
+        reactor.graph.get("d").getModel().addDependency(testJar);
+        ProjectsToBuildMojo mojo = mojo(reactor);
+
+        repositorySystem.available.add("g:a:jar:A.1");
+        assertEquals(projects(reactor, "a"),
+                     mojo.missingArtifacts(projects(reactor, "a"),
+                                           hashVers(reactor)));
+        assertEquals(Arrays.asList("g:a:jar:A.1", "g:a:jar:tests:A.1"),
+                     repositorySystem.requested);
+
+        repositorySystem.available.add("g:a:jar:tests:A.1");
+        assertEquals(Collections.emptySet(),
+                     mojo.missingArtifacts(projects(reactor, "a"),
+                                           hashVers(reactor)));
+    }
+
+    @Test
+    public void saveMinimalBuildPlanTest() throws Exception {
+        TestReactor reactor = reactor();
+        ProjectsToBuildMojo mojo = mojo(reactor);
+        File targetDir = tmp.resolve("target").toFile();
+        assertTrue(targetDir.mkdir());
+
+        // b is missing, but its upstream a is resolvable
+        repositorySystem.available.add("g:a:jar:A.1");
+        Set<MavenProject> plan = mojo.saveMinimalBuildPlan(
+                targetDir,
+                projects(reactor, "c"),
+                projects(reactor, "a", "b"),
+                hashVers(reactor));
+        assertEquals(projects(reactor, "b", "c"), plan);
+        assertEquals(":b,:c",
+                     new String(Files.readAllBytes(
+                             new File(targetDir,
+                                      "hashver-projects-to-build-minimal")
+                                     .toPath()),
+                                UTF_8));
+
+        // all resolvable
+        repositorySystem.available.add("g:b:jar:B.1");
+        assertEquals(projects(reactor, "c"),
+                     mojo.saveMinimalBuildPlan(targetDir,
+                                               projects(reactor, "c"),
+                                               projects(reactor, "a", "b"),
+                                               hashVers(reactor)));
+    }
+
+    @Test
+    public void invalidBuildShardsTest() throws IOException {
+        ProjectsToBuildMojo mojo = mojo(reactor());
+        mojo.dbDirPath = tmp.toString();
+        mojo.buildShards = 0;
+        assertThrows(MojoExecutionException.class, mojo::execute);
+        // failed before writing anything
+        assertFalse(new File(ProjectsToBuildMojo.DB_ADDITIONS_DIR).exists());
+        assertFalse(new File(ProjectsToBuildMojo.DB_ADDITIONS_LOG).exists());
+    }
+}
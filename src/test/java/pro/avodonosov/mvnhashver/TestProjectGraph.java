@@ -0,0 +1,107 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.execution.ProjectDependencyGraph;
+import org.apache.maven.project.MavenProject;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A ProjectDependencyGraph for tests. The projects must be added
+ * after their dependencies, so the order of adding is the build order.
+ */
+class TestProjectGraph implements ProjectDependencyGraph {
+
+    private final Map<String, MavenProject> projects = new LinkedHashMap<>();
+    // By identity: the MavenProject hash code depends on the version,
+    // which tests may change after adding the project.
+    private final Map<MavenProject, List<MavenProject>> dependencies =
+            new IdentityHashMap<>();
+
+    /**
+     * Adds a jar project with groupId "g" and version "1".
+     */
+    TestProjectGraph add(String artifactId, String... dependencyIds) {
+        MavenProject prj = new MavenProject();
+        prj.setGroupId("g");
+        prj.setArtifactId(artifactId);
+        prj.setVersion("1");
+        prj.setPackaging("jar");
+        List<MavenProject> deps = new ArrayList<>();
+        for (String depId : dependencyIds) {
+            MavenProject dep = projects.get(depId);
+            if (dep == null) {
+                throw new IllegalArgumentException(
+                        "Dependency must be added first: " + depId);
+            }
+            deps.add(dep);
+        }
+        projects.put(artifactId, prj);
+        dependencies.put(prj, deps);
+        return this;
+    }
+
+    MavenProject get(String artifactId) {
+        return projects.get(artifactId);
+    }
+
+    @Override
+    public List<MavenProject> getSortedProjects() {
+        return new ArrayList<>(projects.values());
+    }
+
+    @Override
+    public List<MavenProject> getDownstreamProjects(MavenProject project,
+                                                    boolean transitive)
+    {
+        List<MavenProject> result = new ArrayList<>();
+        for (MavenProject prj : projects.values()) {
+            if (transitive
+                    ? getUpstreamProjects(prj, true).contains(project)
+                    : dependencies.get(prj).contains(project))
+            {
+                result.add(prj);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<MavenProject> getUpstreamProjects(MavenProject project,
+                                                  boolean transitive)
+    {
+        if (!transitive) {
+            return new ArrayList<>(dependencies.get(project));
+        }
+        Set<MavenProject> result = new LinkedHashSet<>();
+        for (MavenProject dep : dependencies.get(project)) {
+            result.addAll(getUpstreamProjects(dep, true));
+            result.add(dep);
+        }
+        return new ArrayList<>(result);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+    Copyright 2020 Anton Vodonosov (avodonosov@yandex.ru).
+
+    This file is part of hashver-maven-plugin.
+
+    hashver-maven-plugin is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    hashver-maven-plugin is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with hashver-maven-plugin.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package pro.avodonosov.mvnhashver;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.resolver.filter.ArtifactFilter;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.DefaultMavenExecutionResult;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.testing.SilentLog;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.ProjectBuildingRequest;
+import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
+import org.apache.maven.shared.dependency.graph.DependencyNode;
+import org.apache.maven.shared.dependency.graph.internal.DefaultDependencyNode;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static pro.avodonosov.mvnhashver.Utils.saveToFile;
+
+/**
+ * A multi-module project on disk for the hashver tests: a root
+ * aggregator pom and modules in the sub directories of the root,
+ * with the root as their parent. The poms specify the versions by
+ * the hashver properties, e.g. ${a.version}.
+ *
+ * <p>Dependency trees are built from the {@link TestProjectGraph},
+ * without a repository. The tree nodes of the reactor modules take
+ * the versions from the reactor projects given to the builder.
+ */
+class TestReactor {
+
+    final File root;
+    final TestProjectGraph graph = new TestProjectGraph();
+
+    /**
+     * Every dependency tree built sleeps that long,
+     * simulating the repository access latency.
+     */
+    volatile long resolutionMillis;
+
+    // The dependency trees being built, and their maximum number
+    private final AtomicInteger resolutions = new AtomicInteger();
+    final AtomicInteger peakResolutions = new AtomicInteger();
+
+    private final List<String> moduleIds = new ArrayList<>();
+
+    TestReactor(File root) throws IOException {
+        this.root = root;
+        graph.add("root");
+        graph.get("root").setPackaging("pom");
+        init(graph.get("root"), root);
+    }
+
+    /**
+     * Adds a module with a pom.xml and a java source file.
+     */
+    TestReactor module(String artifactId, String... dependencyIds)
+            throws IOException
+    {
+        graph.add(artifactId, dependencyIds);
+        moduleIds.add(artifactId);
+        MavenProject prj = graph.get(artifactId);
+        prj.setParent(graph.get("root"));
+        init(prj, new File(root, artifactId));
+        init(graph.get("root"), root);
+        file(artifactId,
+             "src/main/java/" + artifactId + "/Main.java",
+             "package " + artifactId + ";\nclass Main {}\n");
+        return this;
+    }
+
+    private void init(MavenProject prj, File dir) throws IOException {
+        File pom = new File(dir, "pom.xml");
+        pom.getParentFile().mkdirs();
+        StringBuilder content = new StringBuilder("<project>\n");
+        if (prj.getParent() != null) {
+            content.append("  <parent><groupId>g</groupId>"
+                    + "<artifactId>root</artifactId>"
+                    + "<version>${root.version}</version></parent>\n");
+        } else {
+            content.append("  <groupId>g</groupId>\n");
+        }
+        content.append("  <artifactId>").append(prj.getArtifactId())
+                .append("</artifactId>\n")
+                .append("  <version>${").append(prj.getArtifactId())
+                .append(".version}</version>\n")
+                .append("  <packaging>").append(prj.getPackaging())
+                .append("</packaging>\n");
+        if (prj.getParent() == null) {
+            content.append("  <modules>\n");
+            for (String module : moduleIds) {
+                content.append("    <module>").append(module)
+                        .append("</module>\n");
+            }
+            content.append("  </modules>\n");
+        }
+        content.append("</project>\n");
+        saveToFile(pom, content.toString());
+        prj.setFile(pom);
+        prj.setArtifact(artifact(prj.getGroupId(),
+                                 prj.getArtifactId(),
+                                 prj.getVersion(),
+                                 null));
+    }
+
+    /**
+     * Creates or overwrites a file in the module directory.
+     */
+    File file(String artifactId, String path, String content)
+            throws IOException
+    {
+        File f = new File(graph.get(artifactId).getBasedir(), path);
+        f.getParentFile().mkdirs();
+        saveToFile(f, content);
+        return f;
+    }
+
+    List<MavenProject> projects() {
+        return graph.getSortedProjects();
+    }
+
+    MavenSession session() {
+        DefaultMavenExecutionRequest request = new DefaultMavenExecutionRequest();
+        request.setBaseDirectory(root);
+        @SuppressWarnings("deprecation")
+        MavenSession session = new MavenSession(
+                null,
+                new DefaultRepositorySystemSession(),
+                request,
+                new DefaultMavenExecutionResult());
+        session.setProjects(projects());
+        session.setProjectDependencyGraph(graph);
+        return session;
+    }
+
+    HashVerMojo mojo() {
+        HashVerMojo mojo = new HashVerMojo();
+        mojo.setLog(new SilentLog());
+        mojo.mavenSession = session();
+        mojo.dependencyGraphBuilder = new DependencyGraphBuilder() {
+            @Override
+            public DependencyNode buildDependencyGraph(
+                    ProjectBuildingRequest buildingRequest,
+                    ArtifactFilter filter)
+            {
+                return buildDependencyGraph(buildingRequest, filter, null);
+            }
+
+            @Override
+            public DependencyNode buildDependencyGraph(
+                    ProjectBuildingRequest buildingRequest,
+                    ArtifactFilter filter,
+                    Collection<MavenProject> reactorProjects)
+            {
+                peakResolutions.accumulateAndGet(
+                        resolutions.incrementAndGet(), Math::max);
+                try {
+                    if (resolutionMillis > 0) {
+                        try {
+                            Thread.sleep(resolutionMillis);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    Map<String, MavenProject> reactor = new HashMap<>();
+                    for (MavenProject prj : reactorProjects == null
+                            ? projects()
+                            : reactorProjects)
+                    {
+                        reactor.put(prj.getArtifactId(), prj);
+                    }
+                    return node(null,
+                                buildingRequest.getProject(),
+                                null,
+                                reactor);
+                } finally {
+                    resolutions.decrementAndGet();
+                }
+            }
+        };
+        return mojo;
+    }
+
+    private DependencyNode node(DependencyNode parent,
+                                MavenProject prj,
+                                String scope,
+                                Map<String, MavenProject> reactor)
+    {
+        Artifact artifact = artifact(prj.getGroupId(),
+                                     prj.getArtifactId(),
+                                     prj.getVersion(),
+                                     scope);
+        DefaultDependencyNode node = new DefaultDependencyNode(
+                parent, artifact, null, null, null, null);
+        List<DependencyNode> children = new ArrayList<>();
+        MavenProject graphPrj = graph.get(prj.getArtifactId());
+        for (MavenProject dep : graph.getUpstreamProjects(graphPrj, false)) {
+            children.add(node(node,
+                              reactor.get(dep.getArtifactId()),
+                              "compile",
+                              reactor));
+        }
+        if (parent == null) {
+            Artifact external = artifact("ext", "lib", "2.0", "compile");
+            DefaultDependencyNode externalNode = new DefaultDependencyNode(
+                    node, external, null, null, null, null);
+            externalNode.setChildren(Collections.emptyList());
+            children.add(externalNode);
+        }
+        node.setChildren(children);
+        return node;
+    }
+
+    static Artifact artifact(String groupId,
+                             String artifactId,
+                             String version,
+                             String scope)
+    {
+        return new DefaultArtifact(groupId, artifactId, version, scope,
+                                   "jar", null,
+                                   new DefaultArtifactHandler("jar"));
+    }
+}
@@ -0,0 +1,48 @@
+package pro.avodonosov.mvnhashver;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class UtilsTest {
+
+    @Test
+    public void mapInParallelTest() throws IOException {
+        List<Integer> elems = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            elems.add(i);
+        }
+        for (int threads : new int[] {0, 1, 2, 8, 200}) {
+            List<String> result = Utils.mapInParallel(
+                    elems, threads, IOException.class, i -> "x" + i);
+            assertEquals(elems.size(), result.size());
+            for (int i = 0; i < elems.size(); i++) {
+                assertEquals("x" + i, result.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void mapInParallelErrorTest() {
+        for (int threads : new int[] {1, 4}) {
+            IOException e = assertThrows(IOException.class, () ->
+                    Utils.mapInParallel(
+                            Arrays.asList(1, 2, 3, 4, 5),
+                            threads,
+                            IOException.class,
+                            i -> {
+                                if (i >= 3) {
+                                    throw new IOException("failed " + i);
+                                }
+                                return i;
+                            }));
+            assertEquals("failed 3", e.getMessage());
+        }
+    }
+}